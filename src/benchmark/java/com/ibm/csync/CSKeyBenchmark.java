@@ -0,0 +1,54 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync;
+
+import org.junit.Test;
+
+/** Compares parsing keys with fromString() and with split() and make() */
+public class CSKeyBenchmark {
+  @Test public void fromString() {
+    final String[] paths = new String[1000];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = "rooms.r" + i % 10 + ".messages.m" + i;
+    }
+
+    //Warms up both and creates the keys, so that only parsing is measured
+    for (final String path : paths) {
+      CSKey.make(path.split("\\."));
+      CSKey.fromString(path);
+    }
+
+    long start = System.nanoTime();
+    for (int round = 0; round < 100; round++) {
+      for (final String path : paths) {
+        CSKey.make(path.split("\\."));
+      }
+    }
+    final long splitMs = (System.nanoTime() - start) / 1000000;
+
+    start = System.nanoTime();
+    for (int round = 0; round < 100; round++) {
+      for (final String path : paths) {
+        CSKey.fromString(path);
+      }
+    }
+    final long parseMs = (System.nanoTime() - start) / 1000000;
+    System.out.println("100000 keys: split " + splitMs + " ms, fromString " + parseMs
+        + " ms");
+  }
+}
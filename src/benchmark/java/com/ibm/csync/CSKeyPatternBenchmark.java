@@ -0,0 +1,55 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/** Compares matching keys with CSKey.matches() and with a compiled CSKeyPattern */
+public class CSKeyPatternBenchmark {
+  @Test public void matches() {
+    final CSKey pattern = CSKey.fromString("rooms.*.messages.#");
+    final CSKeyPattern compiled = CSKeyPattern.compile(pattern);
+    final CSKey[] keys = new CSKey[1000];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = CSKey.make("rooms", "r" + i % 10, i % 2 == 0 ? "messages" : "members", "m" + i);
+    }
+
+    int matched = 0;
+    long start = System.nanoTime();
+    for (int round = 0; round < 1000; round++) {
+      for (final CSKey key : keys) {
+        if (key.matches(pattern)) matched++;
+      }
+    }
+    final long matchesMs = (System.nanoTime() - start) / 1000000;
+
+    start = System.nanoTime();
+    for (int round = 0; round < 1000; round++) {
+      for (final CSKey key : keys) {
+        if (compiled.matches(key)) matched--;
+      }
+    }
+    final long compiledMs = (System.nanoTime() - start) / 1000000;
+
+    assertEquals(0, matched);
+    System.out.println("1000000 matches: CSKey.matches " + matchesMs
+        + " ms, CSKeyPattern " + compiledMs + " ms");
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.android;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.acls.CSAcl;
+import com.ibm.csync.internals.DBManager;
+import com.ibm.csync.internals.log.LogDBManager;
+import com.ibm.csync.internals.sqlite.SqliteDBManager;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Compares how fast the stores that persist the cache write values */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class StoreWriteBenchmark {
+  private static final int VALUES = 10000;
+  private final CSKey csKey = CSKey.make("rooms", "public", "msg1");
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test public void addData() throws Exception {
+    SqliteDBManager sqlite =
+        new SqliteDBManager(RuntimeEnvironment.application.getApplicationContext(), null);
+    LogDBManager log = new LogDBManager(folder.newFolder("log"));
+
+    long sqliteMs = addData(sqlite);
+    long logMs = addData(log);
+    sqlite.close();
+    log.closeDB();
+
+    System.out.println("addData of " + VALUES + " values: SqliteDBManager " + sqliteMs
+        + " ms, LogDBManager " + logMs + " ms");
+  }
+
+  private long addData(DBManager db) {
+    long start = System.nanoTime();
+    for (int vts = 1; vts <= VALUES; vts++) {
+      db.addData(new CSValue(csKey.child("k" + vts), "This is a test CSValue string", vts, vts,
+          CSAcl.PUBLIC_READ_WRITE_CREATE, false));
+    }
+    return (System.nanoTime() - start) / 1000000;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.android;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.acls.CSAcl;
+import com.ibm.csync.internals.sqlite.SqliteDBManager;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Times vtsToFetch() on an advance response larger than one query can bind */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class VtsToFetchBenchmark {
+  private static final int VTS = 10000;
+
+  @Test public void vtsToFetch() {
+    SqliteDBManager sqlite =
+        new SqliteDBManager(RuntimeEnvironment.application.getApplicationContext(), null);
+    CSKey csKey = CSKey.make("rooms", "public");
+    List<Long> advanceVts = new ArrayList<>();
+    for (long vts = 1; vts <= VTS; vts++) {
+      advanceVts.add(vts);
+      if (vts % 10 == 0) {
+        sqlite.addData(new CSValue(csKey.child("k" + vts), "data", vts, vts,
+            CSAcl.PUBLIC_READ_WRITE_CREATE, false));
+      }
+    }
+
+    long start = System.nanoTime();
+    sqlite.vtsToFetch(advanceVts).toBlocking().single();
+    long elapsedMs = (System.nanoTime() - start) / 1000000;
+    sqlite.close();
+
+    System.out.println("vtsToFetch of " + VTS + " vts took " + elapsedMs + " ms");
+  }
+}
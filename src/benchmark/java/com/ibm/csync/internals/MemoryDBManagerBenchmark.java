@@ -0,0 +1,42 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.acls.CSAcl;
+import org.junit.Test;
+
+/** Times writing values into MemoryDBManager */
+public class MemoryDBManagerBenchmark {
+  private static final int VALUES = 10000;
+
+  @Test public void addData() {
+    MemoryDBManager db = new MemoryDBManager();
+    CSKey csKey = CSKey.make("rooms", "public", "msg1");
+
+    long start = System.nanoTime();
+    for (int vts = 1; vts <= VALUES; vts++) {
+      db.addData(new CSValue(csKey.child("k" + vts), "data", vts, vts,
+          CSAcl.PUBLIC_READ_WRITE_CREATE, false));
+    }
+    long elapsedMs = (System.nanoTime() - start) / 1000000;
+    System.out.println("MemoryDBManager addData of " + VALUES + " values took " + elapsedMs
+        + " ms");
+  }
+}
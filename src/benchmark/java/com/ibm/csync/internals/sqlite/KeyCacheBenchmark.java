@@ -0,0 +1,69 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals.sqlite;
+
+import com.ibm.csync.CSKey;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import org.junit.Test;
+
+/** Compares decoding paths with PathCodec and with KeyCache, in time and allocations */
+public class KeyCacheBenchmark {
+  private static final int ROWS = 100000;
+
+  //Decodes ROWS paths spread over 1000 keys under 10 parents, as a scan of the cache would
+  @Test public void decode() {
+    byte[][] paths = new byte[1000][];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = PathCodec.encode(CSKey.make("rooms", "room" + (i % 10), "msg" + i));
+    }
+
+    KeyCache cache = new KeyCache(KeyCache.DEFAULT_CAPACITY);
+    for (int round = 0; round < 3; round++) {
+      long start = System.nanoTime();
+      long allocated = allocatedBytes();
+      for (int i = 0; i < ROWS; i++) {
+        PathCodec.decode(paths[i % paths.length]);
+      }
+      long uncachedBytes = allocatedBytes() - allocated;
+      long uncachedNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      allocated = allocatedBytes();
+      for (int i = 0; i < ROWS; i++) {
+        cache.decode(paths[i % paths.length]);
+      }
+      long cachedBytes = allocatedBytes() - allocated;
+      long cachedNanos = System.nanoTime() - start;
+
+      System.out.println("decode " + ROWS + " rows: PathCodec " + uncachedNanos / 1000000
+          + " ms, " + uncachedBytes + " bytes; KeyCache " + cachedNanos / 1000000 + " ms, "
+          + cachedBytes + " bytes");
+    }
+  }
+
+  //Bytes allocated by this thread so far, or 0 where the VM does not tell
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+          Thread.currentThread().getId());
+    }
+    return 0;
+  }
+}
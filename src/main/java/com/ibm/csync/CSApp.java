@@ -19,17 +19,32 @@ package com.ibm.csync;
 import android.content.Context;
 import com.ibm.csync.acls.CSAcl;
 import com.ibm.csync.internals.AdvanceManager;
+import com.ibm.csync.internals.CacheConfig;
+import com.ibm.csync.internals.CacheEvictor;
 import com.ibm.csync.internals.DBManager;
+import com.ibm.csync.internals.ExecutorDBManager;
+import com.ibm.csync.internals.HotTierDBManager;
+import com.ibm.csync.internals.ListenPipeline;
+import com.ibm.csync.internals.MaterializedView;
 import com.ibm.csync.internals.MemoryDBManager;
-import com.ibm.csync.internals.RetryWithExponentialDelay;
+import com.ibm.csync.internals.OnBackpressureConflate;
+import com.ibm.csync.internals.QueryCache;
+import com.ibm.csync.internals.Metrics;
 import com.ibm.csync.internals.RvtsPrime;
-import com.ibm.csync.internals.SubStateManager;
+import com.ibm.csync.internals.VtsWatermarks;
+import com.ibm.csync.internals.WriteQueue;
+import com.ibm.csync.internals.log.LogDBManager;
 import com.ibm.csync.internals.response.Happy;
 import com.ibm.csync.internals.sqlite.SqliteDBManager;
 import com.ibm.csync.internals.websocket.CSTransport;
 import com.ibm.csync.internals.websocket.OkHttpWebSocketConnection;
 import com.ibm.csync.internals.websocket.WebSocketConnection;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ScheduledExecutorService;
@@ -49,12 +64,20 @@ import rx.internal.util.RxThreadFactory;
 import rx.schedulers.Schedulers;
 
 public class CSApp {
+  private static final long QUERY_TIMEOUT = 30000;    //in ms
+
   private Builder builder;
   private CSAuthData authorizedUser;
   private final Scheduler scheduler;
   private CSTransport transport;
   private DBManager db;
+  private final Metrics metrics = new Metrics();
+  private final CacheEvictor cacheEvictor;
+  private final WriteQueue writeQueue;
+  private final QueryCache queryCache;
   private AdvanceManager advanceManager;
+  private ListenPipeline listenPipeline;
+  private final Map<CSKey, MaterializedView> views = new HashMap<>(); //guarded by this
   private RvtsPrime rvtsPrime;
   private AtomicBoolean isClosed = new AtomicBoolean(true);
 
@@ -62,19 +85,25 @@ public class CSApp {
     this.builder = builder;
     this.scheduler = builder.scheduler;
 
-    if (builder.inMemoryDB) {
-      this.db = new MemoryDBManager();
+    if (builder.logDirectory != null) {
+      this.db = hotTier(new ExecutorDBManager(
+          new LogDBManager(builder.logDirectory, builder.cacheConfig, metrics)));
+    } else if (builder.inMemoryDB) {
+      this.db = new MemoryDBManager(builder.cacheConfig, metrics);
     } else {
-      this.db = new SqliteDBManager(builder.context);
+      this.db = hotTier(new ExecutorDBManager(
+          new SqliteDBManager(builder.context, builder.cacheConfig, metrics)));
     }
+    this.cacheEvictor = new CacheEvictor(db, builder.cacheConfig.evictionInterval);
+    this.writeQueue =
+        new WriteQueue(db, WriteQueue.DEFAULT_MAX_IN_FLIGHT, builder.coalesceWrites);
+    this.queryCache = new QueryCache(builder.queryCacheSize);
     this.rvtsPrime = new RvtsPrime();
   }
 
-  private static boolean resolveDataOrder(CSValue csValue, Map<CSKey, Long> timeStamps) {
-    synchronized (timeStamps) {
-      Long latestVts = timeStamps.get(csValue.key());
-      return latestVts == null || latestVts < csValue.vts();
-    }
+  private DBManager hotTier(DBManager db) {
+    final int size = builder.cacheConfig.hotTierSize;
+    return size == CacheConfig.NO_HOT_TIER ? db : new HotTierDBManager(db, size, metrics);
   }
 
   public Observable<CSAuthData> authData() {
@@ -92,11 +121,36 @@ public class CSApp {
     return Observable.just(authorizedUser);
   }
 
+  /** Returns a snapshot of the current metrics of this CSApp, e.g. how large the cache is. */
+  public CSMetrics metrics() {
+    return new CSMetrics(metrics);
+  }
+
+  /**
+   * Emits the number of writes that have not been acknowledged by the server yet. Writes made
+   * while offline are kept and sent once the app is connected again.
+   */
+  public Observable<Integer> pendingWrites() {
+    return writeQueue.pendingWrites();
+  }
+
   public void unauthenticate() {
+    final List<MaterializedView> open;
+    synchronized (this) {
+      open = new ArrayList<>(views.values());
+      views.clear();
+    }
+    for (final MaterializedView view : open) {
+      view.close();
+    }
+    queryCache.clear();
+    writeQueue.disconnect();
+    cacheEvictor.stop();
     db.closeDB();
     transport.disconnect();
     transport = null;
     advanceManager = null;
+    listenPipeline = null;
     isClosed.compareAndSet(false, true);
   }
 
@@ -113,16 +167,19 @@ public class CSApp {
     WebSocketConnection connection
         = new OkHttpWebSocketConnection(request, client);
 
+    return connect(connection, authProvider, token);
+  }
+
+  Observable<CSAuthData> connect(WebSocketConnection connection, String authProvider,
+      String token) {
     transport = new CSTransport(connection);
 
     advanceManager = new AdvanceManager(transport, db, scheduler, rvtsPrime);
+    listenPipeline = new ListenPipeline(transport, advanceManager, db, rvtsPrime);
+
+    cacheEvictor.start(scheduler);
+    writeQueue.connect(transport);
 
-    //Observable.from(db.getDirtyData())
-    //    .subscribeOn(Schedulers.newThread())
-    //    .subscribe(dirtyData -> {
-    //      CSValue csValue = dirtyData.csValue;
-    //      write(csValue.getKey(), csValue.data, csValue.acl);
-    //    });
     isClosed.compareAndSet(true, false);
 
     //TODO: implement handshake.
@@ -138,48 +195,272 @@ public class CSApp {
    * on the wildcards available in CSKey.
    * @return Emits all CSValues for the given CSKey and current user's ACLs.
    */
-  public synchronized Observable<CSValue> listen(CSKey csKey) {
+  public Observable<CSValue> listen(CSKey csKey) {
+    return listen(csKey, CSBackpressure.NONE);
+  }
+
+  /**
+   * Listens like listen(), handling a subscriber that lags behind with the given strategy.
+   * CONFLATE keeps memory bounded by the number of keys matching the CSKey, at the cost of
+   * skipping intermediate values of a key.
+   *
+   * @param csKey The CSKey to listen to; Read the CSKey class documentation for further information
+   * on the wildcards available in CSKey.
+   * @param backpressure what to do with values the subscriber has not requested yet.
+   * @return Emits the CSValues for the given CSKey and current user's ACLs.
+   */
+  public synchronized Observable<CSValue> listen(final CSKey csKey,
+      CSBackpressure backpressure) {
     if (isClosed.get()) {
       return Observable.error(new CSyncClosedException());
     }
 
-    //Map of maximum vts for a CSKey delivered to this listener
-    final Map<CSKey, Long> timeStamps = new HashMap<>();
-    final SubStateManager subStateManager = new SubStateManager(transport, csKey);
+    final ListenPipeline pipeline = listenPipeline;
+    final Observable<CSValue> values = Observable.defer(new Func0<Observable<CSValue>>() {
+      @Override public Observable<CSValue> call() {
+        final Observable<CSValue> view = pipeline.view(csKey);
+        //The maximum vts for a CSKey delivered to this subscriber; cached values can arrive
+        //after newer ones from the view
+        final VtsWatermarks watermarks = new VtsWatermarks(db, builder.listenMaxKeys);
+        return newerValues(view, db.cachedValues(csKey, Long.MAX_VALUE), watermarks);
+      }
+    });
+    return withBackpressure(values, backpressure);
+  }
 
-    return transport.liveValues(csKey)
-        .mergeWith(advanceManager.advanceValues(csKey))
-        .mergeWith(db.cachedValues(csKey, Long.MAX_VALUE))
-        .filter(new Func1<CSValue, Boolean>() {
-          @Override public Boolean call(CSValue csValue) {
-            return resolveDataOrder(csValue, timeStamps);
+  //Only the view is buffered, as it cannot be held back while a value waits for the vts cached
+  //for its key; the cached values are still read as they are requested
+  static Observable<CSValue> newerValues(Observable<CSValue> view, Observable<CSValue> cached,
+      final VtsWatermarks watermarks) {
+    return view
+        .onBackpressureBuffer()
+        .mergeWith(cached)
+        .concatMap(new Func1<CSValue, Observable<CSValue>>() {
+          @Override public Observable<CSValue> call(CSValue csValue) {
+            return watermarks.ifNewer(csValue.key(), csValue.vts(), csValue);
           }
-        })
-        .doOnNext(new Action1<CSValue>() {
-          @Override public void call(CSValue csValue) {
-            timeStamps.put(csValue.key(), csValue.vts());
-            if (csValue.vts() > rvtsPrime.getRvtsPrime()) {
-              rvtsPrime.setRvtsPrime(csValue.vts());
+        });
+  }
+
+  static Observable<CSValue> withBackpressure(Observable<CSValue> values,
+      CSBackpressure backpressure) {
+    switch (backpressure) {
+      case BUFFER:
+        return values.onBackpressureBuffer();
+      case CONFLATE:
+        return values.lift(new OnBackpressureConflate());
+      default:
+        return values;
+    }
+  }
+
+  /**
+   * Returns a live view of the latest CSValue of every key matching the given CSKey, kept up to
+   * date from the cache and the server like listen(). Views of the same CSKey share their state,
+   * so opening another one is cheap. The view must be closed once it is no longer needed.
+   *
+   * @param csKey The CSKey to view; Read the CSKey class documentation for further information
+   * on the wildcards available in CSKey.
+   * @return The view of the given CSKey and current user's ACLs.
+   * @throws CSyncClosedException if this CSApp is closed.
+   */
+  public synchronized CSView view(final CSKey csKey) {
+    if (isClosed.get()) {
+      throw new CSyncClosedException();
+    }
+
+    MaterializedView shared = views.get(csKey);
+    if (shared == null || !shared.retain()) {
+      shared = new MaterializedView(listen(csKey));
+      shared.retain();
+      views.put(csKey, shared);
+    }
+    final MaterializedView view = shared;
+    return new CSView(view, new Action0() {
+      @Override public void call() {
+        if (view.release()) {
+          synchronized (CSApp.this) {
+            if (views.get(csKey) == view) {
+              views.remove(csKey);
             }
           }
-        })
-        .doOnNext(new Action1<CSValue>() {
-          @Override public void call(CSValue csValue) {
-            db.addData(csValue);
-          }
-        })
-        .doOnSubscribe(new Action0() {
-          @Override public void call() {
-            subStateManager.sub();
-          }
-        })
-        .doOnUnsubscribe(new Action0() {
-          @Override public void call() {
-            subStateManager.unsub();
+        }
+      }
+    });
+  }
+
+  /**
+   * Listens like listen(), but delivers the values in batches, for keys that change too often to
+   * handle every value on its own. A batch is emitted once it holds maxItems values and otherwise
+   * every maxLatency, so no value waits longer than that. Batches are collected on the scheduler
+   * of this CSApp and empty ones are never emitted.
+   *
+   * @param csKey The CSKey to listen to; Read the CSKey class documentation for further information
+   * on the wildcards available in CSKey.
+   * @param maxItems the maximum number of values in a batch; must be positive.
+   * @param maxLatency the longest a value waits for its batch to be emitted; must be positive.
+   * @param unit the time unit of maxLatency.
+   * @return Emits batches of the CSValues for the given CSKey, each in the order they arrived.
+   */
+  public Observable<List<CSValue>> listenBatched(CSKey csKey, int maxItems, long maxLatency,
+      TimeUnit unit) {
+    if (maxItems <= 0) {
+      throw new IllegalArgumentException("maxItems must be positive: " + maxItems);
+    }
+    if (maxLatency <= 0) {
+      throw new IllegalArgumentException("maxLatency must be positive: " + maxLatency);
+    }
+
+    return listen(csKey)
+        .buffer(maxLatency, unit, maxItems, scheduler)
+        .filter(new Func1<List<CSValue>, Boolean>() {
+          @Override public Boolean call(List<CSValue> batch) {
+            return !batch.isEmpty();
           }
         });
   }
 
+  /**
+   * Listens like listen(), but first emits the values cached for the given CSKey as a single
+   * SNAPSHOT event followed by SNAPSHOT_COMPLETE, so that the initial state can be rendered once.
+   * Every newer value then arrives as a DELTA event; values arriving while the cache is read are
+   * held back until the snapshot is emitted.
+   *
+   * @param csKey The CSKey to listen to; Read the CSKey class documentation for further information
+   * on the wildcards available in CSKey.
+   * @return Emits the snapshot, the marker and then the deltas for the given CSKey.
+   */
+  public synchronized Observable<CSListenEvent> listenWithSnapshot(final CSKey csKey) {
+    if (isClosed.get()) {
+      return Observable.error(new CSyncClosedException());
+    }
+
+    final ListenPipeline pipeline = listenPipeline;
+    return Observable.defer(new Func0<Observable<CSListenEvent>>() {
+      @Override public Observable<CSListenEvent> call() {
+        final Observable<CSValue> view = pipeline.view(csKey);
+        final VtsWatermarks watermarks = new VtsWatermarks(db, builder.listenMaxKeys);
+        final Observable<CSListenEvent> snapshot = db.cachedValues(csKey, Long.MAX_VALUE)
+            .toList()
+            .map(new Func1<List<CSValue>, CSListenEvent>() {
+              @Override public CSListenEvent call(List<CSValue> csValues) {
+                final Map<CSKey, CSValue> values = new LinkedHashMap<>();
+                for (final CSValue csValue : csValues) {
+                  values.put(csValue.key(), csValue);
+                }
+                return CSListenEvent.snapshot(values);
+              }
+            });
+
+        return view
+            .onBackpressureBuffer()
+            .map(new Func1<CSValue, CSListenEvent>() {
+              @Override public CSListenEvent call(CSValue csValue) {
+                return CSListenEvent.delta(csValue);
+              }
+            })
+            .mergeWith(snapshot)
+            .concatMap(new Func1<CSListenEvent, Observable<CSListenEvent>>() {
+              //Deltas that arrived before the snapshot, null once it is emitted
+              private List<CSListenEvent> early = new ArrayList<>();
+
+              @Override public Observable<CSListenEvent> call(CSListenEvent event) {
+                if (event.kind() == CSListenEvent.Kind.SNAPSHOT) {
+                  final List<Observable<CSListenEvent>> events = new ArrayList<>();
+                  for (final CSValue csValue : event.snapshot().values()) {
+                    //Only records the watermarks, the values are part of the snapshot
+                    events.add(watermarks.ifNewer(csValue.key(), csValue.vts(), event)
+                        .ignoreElements());
+                  }
+                  events.add(Observable.just(event, CSListenEvent.SNAPSHOT_COMPLETE));
+                  for (final CSListenEvent delta : early) {
+                    events.add(watermarks.ifNewer(delta.value().key(), delta.value().vts(), delta));
+                  }
+                  early = null;
+                  return Observable.concat(Observable.from(events));
+                }
+
+                if (early != null) {
+                  early.add(event);
+                  return Observable.empty();
+                }
+                return watermarks.ifNewer(event.value().key(), event.value().vts(), event);
+              }
+            });
+      }
+    });
+  }
+
+  /**
+   * Asks the server for the values matching the given CSKey and predicate, reduced to the given
+   * fields, so that a small slice of a large subtree can be read without listening to all of it.
+   * Results are kept in memory; a query repeated within the cache max age is answered from there,
+   * and an older result is emitted if the server does not answer in time.
+   *
+   * @param csKey The CSKey to query; Read the CSKey class documentation for further information
+   * on the wildcards available in CSKey.
+   * @param predicate the condition the values must meet, in the query syntax of the server; null
+   * for all values.
+   * @param projection the fields to return for every value; null or empty for all fields.
+   * @return Emits the rows of the result one by one, or a CSQueryException if the server rejects
+   * the query.
+   */
+  public synchronized Observable<String> query(final CSKey csKey, final String predicate,
+      List<String> projection) {
+    if (isClosed.get()) {
+      return Observable.error(new CSyncClosedException());
+    }
+
+    final List<String> fields = projection == null
+        ? Collections.<String>emptyList() : new ArrayList<>(projection);
+    final QueryCache.Query query = new QueryCache.Query(csKey, predicate, fields);
+    final CSTransport transport = this.transport;
+    return Observable.defer(new Func0<Observable<List<String>>>() {
+      @Override public Observable<List<String>> call() {
+        List<String> cached = queryCache.get(query, builder.queryCacheMaxAge);
+        if (cached != null) {
+          return Observable.just(cached);
+        }
+        return transport.query(csKey, predicate, fields)
+            .timeout(QUERY_TIMEOUT, TimeUnit.MILLISECONDS, scheduler)
+            .doOnNext(new Action1<List<String>>() {
+              @Override public void call(List<String> rows) {
+                queryCache.put(query, rows);
+              }
+            })
+            .onErrorResumeNext(new Func1<Throwable, Observable<List<String>>>() {
+              @Override public Observable<List<String>> call(Throwable e) {
+                List<String> stale = queryCache.get(query, QueryCache.ANY_AGE);
+                if (stale == null || e instanceof CSQueryException) {
+                  return Observable.error(e);
+                }
+                return Observable.just(stale);
+              }
+            });
+      }
+    }).concatMap(new Func1<List<String>, Observable<String>>() {
+      @Override public Observable<String> call(List<String> rows) {
+        return Observable.from(rows);
+      }
+    });
+  }
+
+  /**
+   * Reads the values selected by the query from the local cache only, e.g. while offline. The
+   * key pattern, vts and cts ranges, order and limit are evaluated by the cache, and values are
+   * read page by page as the subscriber requests them.
+   *
+   * @param query the values to read; Read the CSLocalQuery class documentation for examples.
+   * @return Emits the cached CSValues selected by the query, in its order.
+   */
+  public synchronized Observable<CSValue> queryLocal(CSLocalQuery query) {
+    if (isClosed.get()) {
+      return Observable.error(new CSyncClosedException());
+    }
+
+    return db.query(query);
+  }
+
   /**
    * write() writes the data to the specified CSKey with the specified ACL. Write() will overwrite
    * the data at the specified key if the key already exists. Otherwise, if the key does not exist
@@ -191,29 +472,18 @@ public class CSApp {
    * @param acl the desired acl for the data at the specified key.
    * @return succesfulWrite [true] the server acknowledges a successful write. In the event there is
    * a conflict resolution (two users write at the same time); the server will return a true result
-   * to both users even though only one user's write was the final successful entry.
+   * to both users even though only one user's write was the final successful entry. The write is
+   * queued when write() is called and kept until the server acknowledges it, even if the result
+   * is never subscribed to.
    */
   public Observable<Boolean> write(CSKey key, String data, CSAcl acl) {
     if (isClosed.get()) {
       return Observable.error(new CSyncClosedException());
     }
 
-    CSValue newCSValue = new CSValue(key, data, 0, 0, acl, false);
+    CSValue newCSValue = new CSValue(key, data, System.currentTimeMillis(), 0, acl, false);
 
-    final long id = db.addDirty(newCSValue);
-
-    return Observable.just(newCSValue)
-        .flatMap(new Func1<CSValue, Observable<Happy>>() {
-          @Override public Observable<Happy> call(CSValue csValue) {
-            return transport.write(csValue.key(), csValue.data(), csValue.acl());
-          }
-        })
-        .retryWhen(new RetryWithExponentialDelay(3, 1000))
-        .doOnNext(new Action1<Happy>() {
-          @Override public void call(Happy happy) {
-            db.deleteDirty(id);
-          }
-        })
+    return writeQueue.enqueue(newCSValue)
         .map(new Func1<Happy, Boolean>() {
           @Override public Boolean call(Happy happy) {
             return happy.code == 0;
@@ -261,8 +531,14 @@ public class CSApp {
 
     //optional
     private Context context;
+    private File logDirectory;
     private boolean useSSL = true;
     private boolean inMemoryDB = true;
+    private boolean coalesceWrites = false;
+    private int listenMaxKeys = VtsWatermarks.DEFAULT_MAX_KEYS;
+    private int queryCacheSize = QueryCache.DEFAULT_MAX_RESULTS;
+    private long queryCacheMaxAge = QueryCache.DEFAULT_MAX_AGE;
+    private CacheConfig cacheConfig = new CacheConfig();
     private int THREAD_POOL_SZ = 4;
     private ThreadFactory threadFactory = new RxThreadFactory("CSync Thread - ");
     private Scheduler scheduler = Schedulers.from(new ScheduledThreadPoolExecutor(THREAD_POOL_SZ, threadFactory));
@@ -300,6 +576,12 @@ public class CSApp {
       return this;
     }
 
+    //For tests that need to control time
+    Builder scheduler(Scheduler scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
     /**
      * cache creates a SQLiteDatabase for caching on the user's device. Caching aids in offline
      *    access.
@@ -310,6 +592,166 @@ public class CSApp {
     public Builder cache(Context context) {
       this.inMemoryDB = false;
       this.context = context;
+      this.logDirectory = null;
+      return this;
+    }
+
+    /**
+     * logStore caches data in an append-only log in the given directory instead of SQLite. It
+     * needs no Android APIs, so it is the cache to use when CSApp runs on a plain JVM.
+     *
+     * @param directory the directory holding the log; it is created if it does not exist.
+     */
+    public Builder logStore(File directory) {
+      this.inMemoryDB = false;
+      this.logDirectory = directory;
+      return this;
+    }
+
+    /**
+     * listenMaxKeys bounds how many keys every listen remembers the newest vts of, which it uses
+     * to drop values arriving after a newer one. Beyond that, keys are forgotten and their vts is
+     * looked up in the cache, which is slower and may deliver the newest value of a key twice.
+     * Defaults to 10000.
+     *
+     * @param maxKeys the number of keys remembered per listen; 0 to remember every key.
+     */
+    public Builder listenMaxKeys(int maxKeys) {
+      if (maxKeys < 0) {
+        throw new IllegalArgumentException("maxKeys must not be negative: " + maxKeys);
+      }
+      this.listenMaxKeys = maxKeys;
+      return this;
+    }
+
+    /**
+     * cachePageSize sets how many cached values are read from the cache per query when listening.
+     * Values are streamed page by page as the subscriber requests them, so a smaller page size
+     * lowers memory use while a larger one lowers the number of queries. Defaults to 100.
+     *
+     * @param pageSize the number of cached values to read per query; must be positive.
+     */
+    public Builder cachePageSize(int pageSize) {
+      if (pageSize <= 0) {
+        throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+      }
+      this.cacheConfig.pageSize = pageSize;
+      return this;
+    }
+
+    /**
+     * cacheMaxRows bounds the number of values kept in the cache. Once the cache grows larger the
+     * least recently read values are evicted, in the background unless the cache is in memory.
+     * Unbounded by default.
+     *
+     * @param maxRows the maximum number of cached values.
+     */
+    public Builder cacheMaxRows(long maxRows) {
+      if (maxRows <= 0) {
+        throw new IllegalArgumentException("maxRows must be positive: " + maxRows);
+      }
+      this.cacheConfig.maxRows = maxRows;
+      return this;
+    }
+
+    /**
+     * cacheMaxBytes bounds the size of the cache, on disk or in memory. Once the cache grows larger
+     * the least recently read values are evicted, in the background unless the cache is in memory.
+     * Unbounded by default.
+     *
+     * @param maxBytes the maximum size of the cache in bytes.
+     */
+    public Builder cacheMaxBytes(long maxBytes) {
+      if (maxBytes <= 0) {
+        throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+      }
+      this.cacheConfig.maxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * cacheTtl evicts cached values that have not been read for the given time. Values are kept
+     * regardless of age by default.
+     *
+     * @param ttl how long a cached value is kept without being read.
+     * @param unit the time unit of ttl.
+     */
+    public Builder cacheTtl(long ttl, TimeUnit unit) {
+      if (ttl <= 0) {
+        throw new IllegalArgumentException("ttl must be positive: " + ttl);
+      }
+      this.cacheConfig.ttl = unit.toMillis(ttl);
+      return this;
+    }
+
+    /**
+     * cacheHotTierSize sets how many values of recently used keys are kept in memory in front of
+     * the cache on disk. Listens on patterns whose values are all in memory do not touch the disk.
+     * Defaults to 1000; 0 turns the hot tier off.
+     *
+     * @param size the number of values kept in memory; must not be negative.
+     */
+    public Builder cacheHotTierSize(int size) {
+      if (size < 0) {
+        throw new IllegalArgumentException("size must not be negative: " + size);
+      }
+      this.cacheConfig.hotTierSize = size;
+      return this;
+    }
+
+    /**
+     * cacheCompressionThreshold stores the data of cached values and pending writes compressed
+     * once it is at least the given number of characters long. Smaller values are stored as they
+     * are. Compressed data is only decompressed when CSValue.data() is called. Off by default.
+     *
+     * @param threshold the length of data from which on it is compressed; must be positive.
+     */
+    public Builder cacheCompressionThreshold(int threshold) {
+      if (threshold <= 0) {
+        throw new IllegalArgumentException("threshold must be positive: " + threshold);
+      }
+      this.cacheConfig.compressionThreshold = threshold;
+      return this;
+    }
+
+    /**
+     * queryCacheSize sets how many query results are kept in memory. Defaults to 100.
+     *
+     * @param size the number of query results kept; must be positive.
+     */
+    public Builder queryCacheSize(int size) {
+      if (size <= 0) {
+        throw new IllegalArgumentException("size must be positive: " + size);
+      }
+      this.queryCacheSize = size;
+      return this;
+    }
+
+    /**
+     * queryCacheMaxAge sets for how long a query result answers the same query again without
+     * asking the server. Older results are only used when the server does not answer in time.
+     * Defaults to 1 minute.
+     *
+     * @param maxAge how long a query result is fresh; must not be negative.
+     * @param unit the time unit of maxAge.
+     */
+    public Builder queryCacheMaxAge(long maxAge, TimeUnit unit) {
+      if (maxAge < 0) {
+        throw new IllegalArgumentException("maxAge must not be negative: " + maxAge);
+      }
+      this.queryCacheMaxAge = unit.toMillis(maxAge);
+      return this;
+    }
+
+    /**
+     * coalesceWrites keeps only the latest pending write of every key. A write that has not been
+     * sent yet, e.g. while offline, is dropped once a newer write to the same key is made and its
+     * result is the result of the newer write. Off by default.
+     *
+     * @param coalesceWrites true to drop pending writes that are overwritten by a newer write.
+     */
+    public Builder coalesceWrites(boolean coalesceWrites) {
+      this.coalesceWrites = coalesceWrites;
       return this;
     }
 
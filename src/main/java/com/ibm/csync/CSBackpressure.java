@@ -0,0 +1,34 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync;
+
+/**
+ * How CSApp.listen() treats a subscriber that requests values more slowly than they arrive.
+ */
+public enum CSBackpressure {
+  /** Values are emitted as they arrive, regardless of what the subscriber requested */
+  NONE,
+  /** Values the subscriber has not requested yet are buffered without a bound */
+  BUFFER,
+  /**
+   * Only the latest pending value of every CSKey is kept until the subscriber requests it, so
+   * memory is bounded by the number of keys and a lagging subscriber catches up to the latest
+   * state
+   */
+  CONFLATE
+}
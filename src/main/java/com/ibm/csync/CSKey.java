@@ -17,7 +17,11 @@
 package com.ibm.csync;
 
 import com.ibm.csync.internals.query.Predicate;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -27,13 +31,21 @@ import java.util.UUID;
  * is used as the last part of the path, then the user will listen to all changes at and below the
  * given path in the tree.</li> <li> '*' - if the asterisk is used in any part of the path, then the
  * user will listen to all parts of the tree at that specified level in the tree.</li> </ul>
+ *
+ * Keys are interned: every key keeps weak references to its children, so equal keys are the same
+ * instance for as long as one of them is in use and equals() is a reference comparison.
  */
 public final class CSKey {
   public static final CSKey root = new CSKey(null, null, null);
   private static final String TAG = CSKey.class.getName();
+  //Children that were garbage collected, removed from their parent by the next child()
+  private static final ReferenceQueue<CSKey> collected = new ReferenceQueue<>();
   public final int length;
   final CSKey parent;
   final String me;
+  private final int hash;
+  //Guarded by this, created with the first child
+  private Map<String, Child> children;
   private WeakReference<String[]> asArray;
   private WeakReference<String> asString = new WeakReference<>(null);
 
@@ -42,6 +54,7 @@ public final class CSKey {
     this.me = me;
     this.asArray = new WeakReference<>(asArray);
     this.length = (parent == null) ? 0 : parent.length + 1;
+    this.hash = (parent == null) ? 0 : 31 * parent.hash + (me == null ? 0 : me.hashCode());
   }
 
   public static CSKey make(String... parts) {
@@ -54,8 +67,25 @@ public final class CSKey {
     return p;
   }
 
+  /**
+   * Parses a key in its dotted form, e.g. "rooms.*.messages", in a single pass. Prefixes that are
+   * in use are shared with the keys using them. The empty string, the form of root, is root.
+   *
+   * @throws IllegalArgumentException if a component is invalid, see child()
+   */
   public static CSKey fromString(final String x) {
-    return make(x.split("\\."));
+    CSKey key = root;
+    if (x.length() == 0) return key;
+
+    int start = 0;
+    final int length = x.length();
+    for (int i = 0; i <= length; i++) {
+      if (i == length || x.charAt(i) == '.') {
+        key = key.child((start == 0 && i == length) ? x : x.substring(start, i));
+        start = i + 1;
+      }
+    }
+    return key;
   }
 
   public int length() {
@@ -92,8 +122,56 @@ public final class CSKey {
     return ret;
   }
 
+  /**
+   * Returns the child of this key with the given component. Components must not be empty or
+   * contain '.', whitespace or control characters, and '*' and '#' must be whole components.
+   *
+   * @throws IllegalArgumentException if the component is invalid
+   */
   public CSKey child(String x) {
-    return new CSKey(this, x, null);
+    expungeCollected();
+
+    synchronized (this) {
+      if (children == null) {
+        children = new HashMap<>(4);
+      }
+      final Child existing = children.get(x);
+      final CSKey key = (existing == null) ? null : existing.get();
+      if (key != null) {
+        return key;
+      }
+      //Components are interned so that CSKeyPattern can compare them by identity
+      final CSKey created = new CSKey(this, checkComponent(x).intern(), null);
+      children.put(x, new Child(created));
+      return created;
+    }
+  }
+
+  private static String checkComponent(final String x) {
+    if (x == null || x.length() == 0) {
+      throw new IllegalArgumentException("Empty key component");
+    }
+    final int length = x.length();
+    for (int i = 0; i < length; i++) {
+      final char c = x.charAt(i);
+      if (c == '.' || Character.isWhitespace(c) || Character.isISOControl(c)
+          || ((c == '*' || c == '#') && length > 1)) {
+        throw new IllegalArgumentException("Invalid key component: \"" + x + "\"");
+      }
+    }
+    return x;
+  }
+
+  private static void expungeCollected() {
+    Reference<? extends CSKey> ref;
+    while ((ref = collected.poll()) != null) {
+      final Child child = (Child) ref;
+      synchronized (child.parent) {
+        if (child.parent.children.get(child.me) == child) {
+          child.parent.children.remove(child.me);
+        }
+      }
+    }
   }
 
   public CSKey uuidChild() {
@@ -125,21 +203,19 @@ public final class CSKey {
 
   @Override
   public int hashCode() {
-    return toString().hashCode();
+    return hash;
   }
 
+  //Keys are interned, so equal keys are the same instance
   @Override
   public boolean equals(Object obj) {
-    if (obj == null) return false;
-    if (obj == this) return true;
-    if (!(obj instanceof CSKey)) return false;
-
-    final CSKey other = (CSKey) obj;
-    return toString().equals(other.toString());
+    return obj == this;
   }
 
   @Override
   public String toString() {
+    if (parent == null) return "";
+
     final String it = asString.get();
     if (it == null) {
       final String[] arr = toArray();
@@ -196,4 +272,15 @@ public final class CSKey {
 
     return p;
   }
+
+  private static final class Child extends WeakReference<CSKey> {
+    final CSKey parent;
+    final String me;
+
+    Child(CSKey key) {
+      super(key, collected);
+      this.parent = key.parent;
+      this.me = key.me;
+    }
+  }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync;
+
+/**
+ * A CSKey used as a pattern, compiled once for matching many concrete keys. Its components are
+ * classified up front as literals, '*' or a trailing '#', so that matching walks the parent chain
+ * of the key without allocating and compares components by identity, as both are interned.
+ *
+ * For a concrete key k, compile(pattern).matches(k) is the same as k.matches(pattern). Wildcards
+ * in k itself are not treated as wildcards.
+ */
+public final class CSKeyPattern {
+  private final CSKey key;
+  //The components before the first '#'; null stands for '*'
+  private final String[] literals;
+  //Whether the pattern ends with '#', i.e. matches keys of any greater length
+  private final boolean tail;
+
+  private CSKeyPattern(CSKey key, String[] literals, boolean tail) {
+    this.key = key;
+    this.literals = literals;
+    this.tail = tail;
+  }
+
+  public static CSKeyPattern compile(CSKey key) {
+    final String[] parts = new String[key.length];
+    key.fill(parts);
+    int length = 0;
+    while (length < parts.length && !"#".equals(parts[length])) {
+      length++;
+    }
+
+    final String[] literals = new String[length];
+    for (int i = 0; i < length; i++) {
+      literals[i] = "*".equals(parts[i]) ? null : parts[i].intern();
+    }
+    return new CSKeyPattern(key, literals, length < parts.length);
+  }
+
+  public CSKey key() {
+    return key;
+  }
+
+  public boolean matches(CSKey csKey) {
+    if (csKey == null) return false;
+    if (tail ? csKey.length < literals.length : csKey.length != literals.length) return false;
+
+    CSKey k = csKey;
+    while (k.length > literals.length) {
+      k = k.parent;
+    }
+    for (int i = literals.length - 1; i >= 0; i--, k = k.parent) {
+      if (literals[i] != null && literals[i] != k.me) return false;
+    }
+    return true;
+  }
+
+  @Override public String toString() {
+    return key.toString();
+  }
+}
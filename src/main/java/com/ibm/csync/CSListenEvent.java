@@ -0,0 +1,70 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An event of CSApp.listenWithSnapshot(). A listen first emits one SNAPSHOT with the cached
+ * values, then SNAPSHOT_COMPLETE, then a DELTA for every value that arrives afterwards.
+ */
+public final class CSListenEvent {
+  public enum Kind {
+    /** The values cached when the listen started, by key */
+    SNAPSHOT,
+    /** Marks the end of the initial state; only deltas follow */
+    SNAPSHOT_COMPLETE,
+    /** A value newer than the snapshot, or than the previous delta of its key */
+    DELTA
+  }
+
+  static final CSListenEvent SNAPSHOT_COMPLETE =
+      new CSListenEvent(Kind.SNAPSHOT_COMPLETE, Collections.<CSKey, CSValue>emptyMap(), null);
+
+  private final Kind kind;
+  private final Map<CSKey, CSValue> snapshot;
+  private final CSValue value;
+
+  private CSListenEvent(Kind kind, Map<CSKey, CSValue> snapshot, CSValue value) {
+    this.kind = kind;
+    this.snapshot = snapshot;
+    this.value = value;
+  }
+
+  static CSListenEvent snapshot(Map<CSKey, CSValue> snapshot) {
+    return new CSListenEvent(Kind.SNAPSHOT, Collections.unmodifiableMap(snapshot), null);
+  }
+
+  static CSListenEvent delta(CSValue value) {
+    return new CSListenEvent(Kind.DELTA, Collections.<CSKey, CSValue>emptyMap(), value);
+  }
+
+  public Kind kind() {
+    return kind;
+  }
+
+  /** The cached values by key for a SNAPSHOT, empty otherwise */
+  public Map<CSKey, CSValue> snapshot() {
+    return snapshot;
+  }
+
+  /** The new value for a DELTA, null otherwise */
+  public CSValue value() {
+    return value;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync;
+
+/**
+ * A read of the local cache for CSApp.queryLocal(): the values of the keys matching a CSKey,
+ * optionally limited to vts and cts ranges, in the given order and up to a limit. Deleted keys are
+ * never returned. Instances are immutable; every method returns a new query.
+ *
+ * For example, the latest 20 values under a.*.c:
+ * <pre>CSLocalQuery.of(CSKey.fromString("a.*.c")).limit(20)</pre>
+ * and the values created after t, oldest first:
+ * <pre>CSLocalQuery.of(key).ctsFrom(t + 1).orderBy(CSLocalQuery.Order.CTS_ASC)</pre>
+ */
+public final class CSLocalQuery {
+  public static final int NO_LIMIT = 0;
+
+  public enum Order {
+    /** Newest vts first, the default */
+    VTS_DESC,
+    VTS_ASC,
+    /** Newest cts first, ties by vts */
+    CTS_DESC,
+    CTS_ASC
+  }
+
+  private final CSKey key;
+  private final long minVts;
+  private final long maxVts;
+  private final long minCts;
+  private final long maxCts;
+  private final Order order;
+  private final int limit;
+
+  private CSLocalQuery(CSKey key, long minVts, long maxVts, long minCts, long maxCts, Order order,
+      int limit) {
+    this.key = key;
+    this.minVts = minVts;
+    this.maxVts = maxVts;
+    this.minCts = minCts;
+    this.maxCts = maxCts;
+    this.order = order;
+    this.limit = limit;
+  }
+
+  /**
+   * @param key The CSKey to query; Read the CSKey class documentation for further information on
+   * the wildcards available in CSKey.
+   * @return A query of every cached value matching key, newest vts first.
+   */
+  public static CSLocalQuery of(CSKey key) {
+    if (key == null) {
+      throw new NullPointerException("key must not be null");
+    }
+    return new CSLocalQuery(key, Long.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE,
+        Order.VTS_DESC, NO_LIMIT);
+  }
+
+  /** Keeps values with a vts of at least minVts */
+  public CSLocalQuery vtsFrom(long minVts) {
+    return new CSLocalQuery(key, minVts, maxVts, minCts, maxCts, order, limit);
+  }
+
+  /** Keeps values with a vts of at most maxVts */
+  public CSLocalQuery vtsTo(long maxVts) {
+    return new CSLocalQuery(key, minVts, maxVts, minCts, maxCts, order, limit);
+  }
+
+  /** Keeps values with a cts of at least minCts */
+  public CSLocalQuery ctsFrom(long minCts) {
+    return new CSLocalQuery(key, minVts, maxVts, minCts, maxCts, order, limit);
+  }
+
+  /** Keeps values with a cts of at most maxCts */
+  public CSLocalQuery ctsTo(long maxCts) {
+    return new CSLocalQuery(key, minVts, maxVts, minCts, maxCts, order, limit);
+  }
+
+  public CSLocalQuery orderBy(Order order) {
+    if (order == null) {
+      throw new NullPointerException("order must not be null");
+    }
+    return new CSLocalQuery(key, minVts, maxVts, minCts, maxCts, order, limit);
+  }
+
+  /** Returns at most limit values; NO_LIMIT returns all of them */
+  public CSLocalQuery limit(int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("limit must not be negative: " + limit);
+    }
+    return new CSLocalQuery(key, minVts, maxVts, minCts, maxCts, order, limit);
+  }
+
+  public CSKey key() {
+    return key;
+  }
+
+  public long minVts() {
+    return minVts;
+  }
+
+  public long maxVts() {
+    return maxVts;
+  }
+
+  public long minCts() {
+    return minCts;
+  }
+
+  public long maxCts() {
+    return maxCts;
+  }
+
+  public Order order() {
+    return order;
+  }
+
+  public int limit() {
+    return limit;
+  }
+
+  /** Returns whether the vts and cts of the value are within the ranges of this query */
+  public boolean inRange(long vts, long cts) {
+    return vts >= minVts && vts <= maxVts && cts >= minCts && cts <= maxCts;
+  }
+
+  @Override public String toString() {
+    return "CSLocalQuery{" + key + ", vts [" + minVts + ", " + maxVts + "], cts [" + minCts + ", "
+        + maxCts + "], " + order + (limit == NO_LIMIT ? "" : ", limit " + limit) + "}";
+  }
+}
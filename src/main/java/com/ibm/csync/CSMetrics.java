@@ -0,0 +1,47 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync;
+
+import com.ibm.csync.internals.Metrics;
+
+/** A point in time copy of the metrics of a CSApp. */
+public class CSMetrics {
+  /** The number of cached values evicted to keep the cache within its limits */
+  public final long cacheEvictions;
+  /** The number of values in the cache, as of the last eviction pass */
+  public final long cacheRows;
+  /** The size of the cache in bytes, as of the last eviction pass */
+  public final long cacheBytes;
+  /** The number of cached reads answered from memory without touching the database */
+  public final long hotHits;
+  /** The number of cached reads that had to go to the database */
+  public final long hotMisses;
+
+  CSMetrics(Metrics metrics) {
+    this.cacheEvictions = metrics.cacheEvictions.get();
+    this.cacheRows = metrics.cacheRows.get();
+    this.cacheBytes = metrics.cacheBytes.get();
+    this.hotHits = metrics.hotHits.get();
+    this.hotMisses = metrics.hotMisses.get();
+  }
+
+  /** The share of cached reads answered from memory, 0 if there were none */
+  public double hotHitRatio() {
+    final long reads = hotHits + hotMisses;
+    return reads == 0 ? 0 : (double) hotHits / reads;
+  }
+}
@@ -19,10 +19,13 @@ package com.ibm.csync;
 import com.ibm.csync.acls.CSAcl;
 import com.ibm.csync.internals.response.Kind;
 import com.ibm.csync.internals.response.CSResponse;
+import rx.functions.Func0;
 
 public final class CSValue extends CSResponse {
   private final CSKey key;
-  private final String data;
+  private String data;
+  //Loads data on the first call to data(), null once it is loaded
+  private volatile Func0<String> lazyData;
   private final long cts;
   private final long vts;
   private final CSAcl acl;
@@ -37,11 +40,27 @@ public final class CSValue extends CSResponse {
     this.keyDeleted = keyDeleted;
   }
 
+  /** Creates a CSValue whose data is only loaded, once, when data() is first called */
+  public static CSValue lazy(CSKey key, Func0<String> lazyData, long cts, long vts, CSAcl acl,
+      boolean keyDeleted) {
+    final CSValue csValue = new CSValue(key, null, cts, vts, acl, keyDeleted);
+    csValue.lazyData = lazyData;
+    return csValue;
+  }
+
   public CSKey key() {
     return key;
   }
 
   public String data() {
+    if (lazyData != null) {
+      synchronized (this) {
+        if (lazyData != null) {
+          data = lazyData.call();
+          lazyData = null;
+        }
+      }
+    }
     return data;
   }
 
@@ -0,0 +1,64 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync;
+
+import com.ibm.csync.internals.MaterializedView;
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import rx.Observable;
+import rx.functions.Action0;
+
+/**
+ * A live map of the latest CSValue of every key matching a CSKey, returned by CSApp.view().
+ * Deleted keys are removed from the map. Views of the same CSKey share one listen, so a view
+ * stays cheap to open; close it once it is no longer needed.
+ */
+public final class CSView implements Closeable {
+  private final MaterializedView view;
+  private final Action0 release;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  CSView(MaterializedView view, Action0 release) {
+    this.view = view;
+    this.release = release;
+  }
+
+  /**
+   * Returns the current values by key. The map is immutable and does not change as newer values
+   * arrive, so it can be read from any thread; taking it does not copy.
+   */
+  public Map<CSKey, CSValue> snapshot() {
+    return view.values();
+  }
+
+  /**
+   * Emits every CSValue applied to the view after subscribing, including deletes, and completes
+   * once the last view of the CSKey is closed.
+   */
+  public Observable<CSValue> changes() {
+    return view.changes();
+  }
+
+  /** Stops maintaining the view once all views of the CSKey are closed; later calls do nothing */
+  @Override public void close() {
+    if (closed.compareAndSet(false, true)) {
+      release.call();
+    }
+  }
+}
@@ -16,36 +16,73 @@
 
 package com.ibm.csync.acls;
 
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public final class CSAcl {
   /** A static ACL that permits only the creator read, write and create access. */
-  public static final CSAcl PRIVATE = CSAcl.customAcl("$private");
+  public static final CSAcl PRIVATE = new CSAcl("$private");
   /** A static ACL that permits all users read access, but only the creator has write and create access. */
-  public static final CSAcl PUBLIC_READ = CSAcl.customAcl("$publicRead");
+  public static final CSAcl PUBLIC_READ = new CSAcl("$publicRead");
   /** A static ACL that permits all users write access, but only the creator has read and create access. */
-  public static final CSAcl PUBLIC_WRITE = CSAcl.customAcl("$publicWrite");
+  public static final CSAcl PUBLIC_WRITE = new CSAcl("$publicWrite");
   /** A static ACL that permits all users read and write access, but only the creator has create access. */
-  public static final CSAcl PUBLIC_READ_WRITE = CSAcl.customAcl("$publicReadWrite");
+  public static final CSAcl PUBLIC_READ_WRITE = new CSAcl("$publicReadWrite");
   /** A static ACL that permits all users create access, but only the creator has read and write access. */
-  public static final CSAcl PUBLIC_CREATE = CSAcl.customAcl("$publicCreate");
+  public static final CSAcl PUBLIC_CREATE = new CSAcl("$publicCreate");
   /** A static ACL that permits all users read and create access, but only the creator has write access. */
-  public static final CSAcl PUBLIC_READ_CREATE = CSAcl.customAcl("$publicReadCreate");
+  public static final CSAcl PUBLIC_READ_CREATE = new CSAcl("$publicReadCreate");
   /** A static ACL that permits all users write and create access, but only the creator has read access. */
-  public static final CSAcl PUBLIC_WRITE_CREATE = CSAcl.customAcl("$publicWriteCreate");
+  public static final CSAcl PUBLIC_WRITE_CREATE = new CSAcl("$publicWriteCreate");
   /** A static ACL that permits all users read, write and create access. */
-  public static final CSAcl PUBLIC_READ_WRITE_CREATE = CSAcl.customAcl("$publicReadWriteCreate");
+  public static final CSAcl PUBLIC_READ_WRITE_CREATE = new CSAcl("$publicReadWriteCreate");
+
+  private static final Map<String, CSAcl> WELL_KNOWN = new HashMap<>();
+  private static final int MAX_CUSTOM_ACLS = 256;
+  //Least recently used custom ACLs are dropped once there are more than MAX_CUSTOM_ACLS
+  private static final Map<String, CSAcl> CUSTOM =
+      new LinkedHashMap<String, CSAcl>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, CSAcl> eldest) {
+          return size() > MAX_CUSTOM_ACLS;
+        }
+      };
+
+  static {
+    for (CSAcl acl : new CSAcl[] {PRIVATE, PUBLIC_READ, PUBLIC_WRITE, PUBLIC_READ_WRITE,
+        PUBLIC_CREATE, PUBLIC_READ_CREATE, PUBLIC_WRITE_CREATE, PUBLIC_READ_WRITE_CREATE}) {
+      WELL_KNOWN.put(acl.rawAcl, acl);
+    }
+  }
 
   public enum AccessType {
     READ, WRITE, CREATE
   }
 
-  private String rawAcl;
+  private final String rawAcl;
 
   private CSAcl(String rawAclName) {
     this.rawAcl = rawAclName;
   }
 
+  /**
+   * Returns the ACL with the given name. The static ACLs are returned for their names and
+   * recently used custom ACLs are shared, so reading many values does not create an ACL each.
+   */
   public static CSAcl customAcl(String rawAclName) {
-    return new CSAcl(rawAclName);
+    final CSAcl wellKnown = WELL_KNOWN.get(rawAclName);
+    if (wellKnown != null) {
+      return wellKnown;
+    }
+
+    synchronized (CUSTOM) {
+      CSAcl acl = CUSTOM.get(rawAclName);
+      if (acl == null) {
+        acl = new CSAcl(rawAclName);
+        CUSTOM.put(rawAclName, acl);
+      }
+      return acl;
+    }
   }
 
   //Accessor Methods
@@ -0,0 +1,48 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+/** Tuning knobs for the local cache, populated by CSApp.Builder */
+public class CacheConfig {
+  public static final int DEFAULT_PAGE_SIZE = 100;
+  public static final long NO_LIMIT = 0L;
+  public static final long DEFAULT_EVICTION_INTERVAL = 60000;    //in ms
+  public static final int NO_COMPRESSION = 0;
+  public static final int DEFAULT_HOT_TIER_SIZE = 1000;
+  public static final int NO_HOT_TIER = 0;
+
+  /** Number of rows read per query while streaming cached values */
+  public int pageSize = DEFAULT_PAGE_SIZE;
+
+  /** Maximum number of cached values, NO_LIMIT to keep everything */
+  public long maxRows = NO_LIMIT;
+
+  /** Maximum size of the cached values in bytes, NO_LIMIT to keep everything */
+  public long maxBytes = NO_LIMIT;
+
+  /** Cached values not read for this long (in ms) are evicted, NO_LIMIT to keep them */
+  public long ttl = NO_LIMIT;
+
+  /** How often (in ms) tombstones are collected and the cache is checked against its limits */
+  public long evictionInterval = DEFAULT_EVICTION_INTERVAL;
+
+  /** Data of at least this many characters is stored compressed, NO_COMPRESSION to never do so */
+  public int compressionThreshold = NO_COMPRESSION;
+
+  /** Number of values kept in memory in front of the database, NO_HOT_TIER to read it always */
+  public int hotTierSize = DEFAULT_HOT_TIER_SIZE;
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import java.util.concurrent.TimeUnit;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Periodically asks a DBManager to drop tombstones that are no longer needed and to bring the
+ * cache back within its configured limits
+ */
+public class CacheEvictor {
+  private final DBManager db;
+  private final long intervalMillis;
+  private Subscription subscription = Subscriptions.unsubscribed();
+
+  public CacheEvictor(final DBManager db, final long intervalMillis) {
+    this.db = db;
+    this.intervalMillis = intervalMillis;
+  }
+
+  public synchronized void start(final Scheduler scheduler) {
+    if (!subscription.isUnsubscribed()) return;
+
+    final Scheduler.Worker worker = scheduler.createWorker();
+    worker.schedulePeriodically(new Action0() {
+      @Override public void call() {
+        try {
+          db.collectTombstones();
+          db.evict();
+        } catch (RuntimeException e) {
+          // the next pass will try again
+          e.printStackTrace();
+        }
+      }
+    }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    subscription = worker;
+  }
+
+  public synchronized void stop() {
+    subscription.unsubscribe();
+  }
+}
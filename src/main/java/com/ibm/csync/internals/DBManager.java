@@ -17,6 +17,7 @@
 package com.ibm.csync.internals;
 
 import com.ibm.csync.CSKey;
+import com.ibm.csync.CSLocalQuery;
 import com.ibm.csync.CSValue;
 import com.ibm.csync.acls.CSAcl;
 import com.ibm.csync.internals.sqlite.DirtyTableEntry;
@@ -26,6 +27,7 @@ import rx.Observable;
 /** Abstract def. of database ops required by Pickles for CSValue caching and syncing */
 public interface DBManager {
   long NO_RVTS_FOUND = 0L;
+  long NO_VTS_FOUND = 0L;
 
   /* rvts_log operations */
 
@@ -42,12 +44,36 @@ public interface DBManager {
 
   Observable<CSValue> cachedValues(CSKey csKey, long maxVts);
 
+  /** Streams the cached values selected by the query, in its order; deleted keys are skipped */
+  Observable<CSValue> query(CSLocalQuery query);
+
+  /** Returns the vts of the value cached for the key, even if it is deleted, or NO_VTS_FOUND */
+  long latestVts(CSKey csKey);
+
+  Observable<Long> latestVtsAsync(CSKey csKey);
+
+  /** Emits the latestVts() of every key, in order, read in one pass */
+  Observable<List<Long>> latestVtsAsync(List<CSKey> csKeys);
+
   /* dirty_log operations  */
-  long addDirty(CSValue csValue);
+  /** Emits the id of the stored write */
+  Observable<Long> addDirty(CSValue csValue);
 
   void deleteDirty(long id);
 
-  List<DirtyTableEntry> getDirtyData();
+  /** Streams the pending writes in the order they were made, i.e. by cts */
+  Observable<DirtyTableEntry> getDirtyData();
+
+  /* cache maintenance */
+
+  /** Removes the tombstones of deleted keys once no advance can ask for them again */
+  void collectTombstones();
+
+  /**
+   * Evicts cached values until the cache is within its configured limits. The rvts of every
+   * pattern that loses a value is reset so that the value is fetched again when needed.
+   */
+  void evict();
 
   void closeDB();
 }
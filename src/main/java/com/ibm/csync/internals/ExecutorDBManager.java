@@ -0,0 +1,233 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSLocalQuery;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.CSyncClosedException;
+import com.ibm.csync.internals.sqlite.DirtyTableEntry;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+
+/**
+ * Runs every operation of a DBManager on one dedicated thread, so that disk stalls never block
+ * the threads receiving from the network or calling CSApp, and writes hit the database in the
+ * order they were made. Observables are subscribed on the database thread and methods without
+ * a result are queued without waiting for them.
+ *
+ * The thread stops once it has been idle for a while. After closeDB(), methods without a result
+ * do nothing, observables fail and other methods throw with a CSyncClosedException.
+ */
+public class ExecutorDBManager implements DBManager {
+  private static final long IDLE_TIMEOUT = 60000;    //in ms
+
+  private final DBManager db;
+  private final ThreadPoolExecutor executor;
+  private final Scheduler scheduler;
+  private volatile Thread dbThread;
+  private boolean closing;    //guarded by this
+  //Set on the database thread when it closes the database
+  private volatile boolean closed;
+
+  public ExecutorDBManager(final DBManager db) {
+    this.db = db;
+    this.executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, "CSync DB");
+        thread.setDaemon(true);
+        dbThread = thread;
+        return thread;
+      }
+    });
+    this.executor.allowCoreThreadTimeOut(true);
+    this.scheduler = Schedulers.from(executor);
+  }
+
+  @Override public Observable<List<Long>> vtsToFetch(List<Long> vts) {
+    return onDbThread(db.vtsToFetch(vts));
+  }
+
+  @Override public long getRvts(final CSKey csKey) {
+    return await(new Callable<Long>() {
+      @Override public Long call() {
+        return db.getRvts(csKey);
+      }
+    });
+  }
+
+  @Override public Observable<Long> getRvtsAsync(CSKey csKey) {
+    return onDbThread(db.getRvtsAsync(csKey));
+  }
+
+  @Override public void upsertRvts(final CSKey csKey, final long rvts) {
+    execute(new Runnable() {
+      @Override public void run() {
+        db.upsertRvts(csKey, rvts);
+      }
+    });
+  }
+
+  @Override public void addData(final CSValue csValue) {
+    execute(new Runnable() {
+      @Override public void run() {
+        db.addData(csValue);
+      }
+    });
+  }
+
+  @Override public Observable<CSValue> cachedValues(CSKey csKey, long maxVts) {
+    return onDbThread(db.cachedValues(csKey, maxVts));
+  }
+
+  @Override public Observable<CSValue> query(CSLocalQuery query) {
+    return onDbThread(db.query(query));
+  }
+
+  @Override public long latestVts(final CSKey csKey) {
+    return await(new Callable<Long>() {
+      @Override public Long call() {
+        return db.latestVts(csKey);
+      }
+    });
+  }
+
+  @Override public Observable<Long> latestVtsAsync(CSKey csKey) {
+    return onDbThread(db.latestVtsAsync(csKey));
+  }
+
+  @Override public Observable<List<Long>> latestVtsAsync(List<CSKey> csKeys) {
+    return onDbThread(db.latestVtsAsync(csKeys));
+  }
+
+  @Override public Observable<Long> addDirty(CSValue csValue) {
+    return onDbThread(db.addDirty(csValue));
+  }
+
+  @Override public void deleteDirty(final long id) {
+    execute(new Runnable() {
+      @Override public void run() {
+        db.deleteDirty(id);
+      }
+    });
+  }
+
+  @Override public Observable<DirtyTableEntry> getDirtyData() {
+    return onDbThread(db.getDirtyData());
+  }
+
+  @Override public void collectTombstones() {
+    execute(new Runnable() {
+      @Override public void run() {
+        db.collectTombstones();
+      }
+    });
+  }
+
+  @Override public void evict() {
+    execute(new Runnable() {
+      @Override public void run() {
+        db.evict();
+      }
+    });
+  }
+
+  /** Closes the database after every queued operation has run */
+  @Override public void closeDB() {
+    synchronized (this) {
+      if (closing) return;
+      closing = true;
+    }
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        closed = true;
+        try {
+          db.closeDB();
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  //Operations check whether the database is closed when they run on its thread, so those queued
+  //before the close still run and none runs after it.
+  private void execute(final Runnable operation) {
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        if (closed) return;
+        try {
+          operation.run();
+        } catch (RuntimeException e) {
+          //Nobody waits for the result, so the failure is printed and the operation dropped;
+          //this wraps stores meant for plain JVMs too, so android.util.Log is not used
+          e.printStackTrace();
+        }
+      }
+    });
+  }
+
+  private <T> Observable<T> onDbThread(final Observable<T> operation) {
+    return Observable.defer(new Func0<Observable<T>>() {
+      @Override public Observable<T> call() {
+        return closed ? Observable.<T>error(new CSyncClosedException()) : operation;
+      }
+    }).subscribeOn(scheduler);
+  }
+
+  //Waits for the result, unless this already is the database thread
+  private <T> T await(final Callable<T> operation) {
+    final Callable<T> checked = new Callable<T>() {
+      @Override public T call() throws Exception {
+        if (closed) {
+          throw new CSyncClosedException();
+        }
+        return operation.call();
+      }
+    };
+    try {
+      if (Thread.currentThread() == dbThread) {
+        return checked.call();
+      }
+      final Future<T> result = executor.submit(checked);
+      return result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
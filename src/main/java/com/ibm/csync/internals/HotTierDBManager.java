@@ -0,0 +1,359 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSKeyPattern;
+import com.ibm.csync.CSLocalQuery;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.internals.sqlite.DirtyTableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+
+/**
+ * Keeps the newest values of the most recently used keys in memory in front of a slower
+ * DBManager. The values of a pattern are copied into the hot tier once a read of the pattern from
+ * the database completes. From then on the pattern is complete: the hot tier holds every value
+ * matching it, so cachedValues() of the pattern, or of any pattern it covers, is answered from
+ * memory until one of its keys is pushed out or leaves the database. Writes go to the database
+ * and only reach the hot tier for keys already in it or matching a pattern being read.
+ */
+public class HotTierDBManager implements DBManager {
+  //Patterns remembered as complete, the least recently used is forgotten first
+  private static final int MAX_COMPLETE_PATTERNS = 64;
+
+  private final DBManager db;
+  private final Metrics metrics;
+  private final int capacity;
+
+  //Guarded by this
+  private final LinkedHashMap<CSKey, CSValue> hot;
+  private final LinkedHashMap<CSKey, CSKeyPattern> complete;
+  private final List<Fill> filling = new ArrayList<>();
+  //Incremented whenever a key leaves the hot tier, so fills racing with it are not trusted
+  private long removals;
+
+  public HotTierDBManager(DBManager db, int capacity, Metrics metrics) {
+    this.db = db;
+    this.metrics = metrics;
+    this.capacity = capacity;
+    this.hot = new LinkedHashMap<CSKey, CSValue>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<CSKey, CSValue> eldest) {
+        if (size() <= HotTierDBManager.this.capacity) return false;
+        removed(eldest.getKey());
+        return true;
+      }
+    };
+    this.complete = new LinkedHashMap<CSKey, CSKeyPattern>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<CSKey, CSKeyPattern> eldest) {
+        return size() > MAX_COMPLETE_PATTERNS;
+      }
+    };
+  }
+
+  @Override public Observable<List<Long>> vtsToFetch(List<Long> vts) {
+    return db.vtsToFetch(vts);
+  }
+
+  @Override public long getRvts(CSKey csKey) {
+    return db.getRvts(csKey);
+  }
+
+  @Override public Observable<Long> getRvtsAsync(CSKey csKey) {
+    return db.getRvtsAsync(csKey);
+  }
+
+  @Override public void upsertRvts(CSKey csKey, long rvts) {
+    db.upsertRvts(csKey, rvts);
+  }
+
+  @Override public void addData(CSValue csValue) {
+    synchronized (this) {
+      if (hot.containsKey(csValue.key()) || wanted(csValue.key())) {
+        putIfNewer(csValue);
+      }
+    }
+    db.addData(csValue);
+  }
+
+  @Override public Observable<CSValue> cachedValues(final CSKey csKey, final long maxVts) {
+    return Observable.defer(new Func0<Observable<CSValue>>() {
+      @Override public Observable<CSValue> call() {
+        final List<CSValue> hits = hotValues(csKey, maxVts);
+        if (hits != null) {
+          metrics.hotHits.incrementAndGet();
+          return Observable.from(hits);
+        }
+        metrics.hotMisses.incrementAndGet();
+
+        //Only a read of every value of the pattern can make it complete
+        if (maxVts != Long.MAX_VALUE) {
+          return db.cachedValues(csKey, maxVts);
+        }
+        final Fill fill;
+        synchronized (HotTierDBManager.this) {
+          fill = new Fill(csKey, removals);
+          filling.add(fill);
+        }
+        return db.cachedValues(csKey, maxVts)
+            .doOnNext(fill)
+            .doOnCompleted(fill)
+            .doOnUnsubscribe(new Action0() {
+              @Override public void call() {
+                synchronized (HotTierDBManager.this) {
+                  filling.remove(fill);
+                }
+              }
+            });
+      }
+    });
+  }
+
+  //A complete pattern is answered from memory, anything else is left to the database's indexes
+  @Override public Observable<CSValue> query(final CSLocalQuery query) {
+    return Observable.defer(new Func0<Observable<CSValue>>() {
+      @Override public Observable<CSValue> call() {
+        final List<CSValue> hits = hotValues(query.key(), query.maxVts());
+        if (hits == null) {
+          metrics.hotMisses.incrementAndGet();
+          return db.query(query);
+        }
+        metrics.hotHits.incrementAndGet();
+
+        final List<CSValue> selected = new ArrayList<>();
+        for (final CSValue value : hits) {
+          if (query.inRange(value.vts(), value.cts())) {
+            selected.add(value);
+          }
+        }
+        Collections.sort(selected, new Comparator<CSValue>() {
+          @Override public int compare(CSValue v0, CSValue v1) {
+            return LocalQueries.compare(query.order(), v0.vts(), v0.cts(), v1.vts(), v1.cts());
+          }
+        });
+        return LocalQueries.limit(Observable.from(selected), query);
+      }
+    });
+  }
+
+  //Values are written through, so a key in the hot tier has its newest value there
+  @Override public long latestVts(CSKey csKey) {
+    synchronized (this) {
+      final CSValue value = hot.get(csKey);
+      if (value != null) {
+        return value.vts();
+      }
+    }
+    return db.latestVts(csKey);
+  }
+
+  @Override public Observable<Long> latestVtsAsync(final CSKey csKey) {
+    return Observable.defer(new Func0<Observable<Long>>() {
+      @Override public Observable<Long> call() {
+        synchronized (HotTierDBManager.this) {
+          final CSValue value = hot.get(csKey);
+          if (value != null) {
+            return Observable.just(value.vts());
+          }
+        }
+        return db.latestVtsAsync(csKey);
+      }
+    });
+  }
+
+  //Asks the database, so dropMissing() sees what it still holds
+  @Override public Observable<List<Long>> latestVtsAsync(List<CSKey> csKeys) {
+    return db.latestVtsAsync(csKeys);
+  }
+
+  @Override public Observable<Long> addDirty(CSValue csValue) {
+    return db.addDirty(csValue);
+  }
+
+  @Override public void deleteDirty(long id) {
+    db.deleteDirty(id);
+  }
+
+  @Override public Observable<DirtyTableEntry> getDirtyData() {
+    return db.getDirtyData();
+  }
+
+  @Override public void collectTombstones() {
+    db.collectTombstones();
+    dropMissing();
+  }
+
+  @Override public void evict() {
+    db.evict();
+    dropMissing();
+  }
+
+  @Override public void closeDB() {
+    synchronized (this) {
+      hot.clear();
+      complete.clear();
+      removals++;
+    }
+    db.closeDB();
+  }
+
+  //Returns the live values matching the pattern newest first, or null unless it is complete
+  private synchronized List<CSValue> hotValues(final CSKey csKey, final long maxVts) {
+    final String[] pattern = csKey.toArray();
+    boolean covered = false;
+    for (final CSKey completePattern : complete.keySet()) {
+      if (covers(completePattern.toArray(), pattern)) {
+        covered = true;
+        break;
+      }
+    }
+    if (!covered) return null;
+
+    final CSKeyPattern compiled = CSKeyPattern.compile(csKey);
+    final List<CSValue> values = new ArrayList<>();
+    for (final CSValue value : hot.values()) {
+      if (!value.isKeyDeleted() && value.vts() <= maxVts && compiled.matches(value.key())) {
+        values.add(value);
+      }
+    }
+    for (final CSValue value : values) {
+      hot.get(value.key());
+    }
+    Collections.sort(values, new Comparator<CSValue>() {
+      @Override public int compare(CSValue v0, CSValue v1) {
+        return v0.vts() < v1.vts() ? 1 : (v0.vts() == v1.vts() ? 0 : -1);
+      }
+    });
+    return values;
+  }
+
+  //Drops the keys whose value the database no longer holds, and the patterns matching them.
+  //The keys are checked in one batch, a single trip to the database's thread.
+  private void dropMissing() {
+    final List<CSValue> values;
+    final List<CSKey> keys = new ArrayList<>();
+    synchronized (this) {
+      values = new ArrayList<>(hot.values());
+    }
+    if (values.isEmpty()) return;
+    for (final CSValue value : values) {
+      keys.add(value.key());
+    }
+    final List<Long> latest = db.latestVtsAsync(keys).toBlocking().single();
+    final List<CSValue> missing = new ArrayList<>();
+    for (int i = 0; i < values.size(); i++) {
+      if (latest.get(i) != values.get(i).vts()) {
+        missing.add(values.get(i));
+      }
+    }
+    synchronized (this) {
+      for (final CSValue value : missing) {
+        if (hot.get(value.key()) == value) {
+          hot.remove(value.key());
+          removed(value.key());
+        }
+      }
+    }
+  }
+
+  //Guarded by this; whether the key matches a complete pattern or one being read
+  private boolean wanted(final CSKey key) {
+    for (final CSKeyPattern pattern : complete.values()) {
+      if (pattern.matches(key)) return true;
+    }
+    for (final Fill fill : filling) {
+      if (fill.pattern.matches(key)) return true;
+    }
+    return false;
+  }
+
+  //Guarded by this
+  private void putIfNewer(final CSValue csValue) {
+    final CSValue existing = hot.get(csValue.key());
+    if (existing == null || existing.vts() < csValue.vts()) {
+      hot.put(csValue.key(), csValue);
+    }
+  }
+
+  //Guarded by this; the patterns matching a key that left the hot tier are no longer complete
+  private void removed(final CSKey key) {
+    removals++;
+    final Iterator<CSKeyPattern> patterns = complete.values().iterator();
+    while (patterns.hasNext()) {
+      if (patterns.next().matches(key)) {
+        patterns.remove();
+      }
+    }
+  }
+
+  //Whether every key matching the pattern also matches the complete one
+  static boolean covers(final String[] complete, final String[] pattern) {
+    for (int i = 0; i < complete.length; i++) {
+      if ("#".equals(complete[i])) return true;
+      if (i >= pattern.length || "#".equals(pattern[i])) return false;
+      if (!"*".equals(complete[i]) && !complete[i].equals(pattern[i])) return false;
+    }
+    return complete.length == pattern.length;
+  }
+
+  //Collects a read from the database and copies it into the hot tier once it completes
+  private class Fill implements Action1<CSValue>, Action0 {
+    private final CSKey csKey;
+    private final CSKeyPattern pattern;
+    private final long removalsAtStart;
+    private final List<CSValue> values = new ArrayList<>();
+    //Patterns with more values than half the hot tier are not worth keeping
+    private boolean tooLarge;
+
+    Fill(CSKey csKey, long removalsAtStart) {
+      this.csKey = csKey;
+      this.pattern = CSKeyPattern.compile(csKey);
+      this.removalsAtStart = removalsAtStart;
+    }
+
+    @Override public void call(CSValue csValue) {
+      if (tooLarge) return;
+      if (values.size() >= capacity / 2) {
+        tooLarge = true;
+        values.clear();
+        return;
+      }
+      values.add(csValue);
+    }
+
+    @Override public void call() {
+      if (tooLarge) return;
+      synchronized (HotTierDBManager.this) {
+        for (final CSValue csValue : values) {
+          putIfNewer(csValue);
+        }
+        if (removals == removalsAtStart) {
+          complete.put(csKey, pattern);
+        }
+      }
+    }
+  }
+}
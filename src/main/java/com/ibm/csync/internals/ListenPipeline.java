@@ -0,0 +1,130 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSKeyPattern;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.internals.websocket.CSTransport;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
+
+/**
+ * The values of every listen flow through one ingest stage: the values pushed by the server and
+ * those fetched by advances are merged, and each value is written to the cache and raises
+ * rvtsPrime once, however many listens it matches. Nothing is dropped before it is stored: the
+ * cache itself ignores values older than the one it holds, and a value fetched again after it
+ * was evicted has to be stored again. Listens drop the values they already delivered.
+ *
+ * Listens on the same pattern share one view of the ingested values, which keeps the server
+ * subscription and the advances of the pattern going while it has subscribers.
+ */
+public class ListenPipeline {
+  private final CSTransport transport;
+  private final AdvanceManager advanceManager;
+  private final RvtsPrime rvtsPrime;
+  //Fetched values from all advances, serialized for the ingest stage
+  private final Subject<CSValue, CSValue> fetched = PublishSubject.<CSValue>create().toSerialized();
+  private final Observable<CSValue> ingested;
+  //Guarded by this
+  private final Map<CSKey, Observable<CSValue>> views = new HashMap<>();
+
+  public ListenPipeline(CSTransport transport, AdvanceManager advanceManager, final DBManager db,
+      RvtsPrime rvtsPrime) {
+    this.transport = transport;
+    this.advanceManager = advanceManager;
+    this.rvtsPrime = rvtsPrime;
+
+    this.ingested = transport.liveValues()
+        .mergeWith(fetched)
+        .doOnNext(new Action1<CSValue>() {
+          @Override public void call(CSValue csValue) {
+            db.addData(csValue);
+            if (csValue.vts() > ListenPipeline.this.rvtsPrime.getRvtsPrime()) {
+              ListenPipeline.this.rvtsPrime.setRvtsPrime(csValue.vts());
+            }
+          }
+        })
+        .share();
+  }
+
+  /**
+   * Returns the ingested values matching the pattern, shared by all listens on it. The view is
+   * looked up on every subscription, so a resubscribe joins the view other listens use by then.
+   */
+  public Observable<CSValue> view(final CSKey csKey) {
+    return Observable.defer(new Func0<Observable<CSValue>>() {
+      @Override public Observable<CSValue> call() {
+        return shared(csKey);
+      }
+    });
+  }
+
+  private synchronized Observable<CSValue> shared(final CSKey csKey) {
+    final Observable<CSValue> existing = views.get(csKey);
+    if (existing != null) {
+      return existing;
+    }
+
+    final CSKeyPattern pattern = CSKeyPattern.compile(csKey);
+    final SubStateManager subStateManager = new SubStateManager(transport, csKey);
+    final Observable<CSValue> advance = advanceManager.advanceValues(csKey)
+        .doOnNext(new Action1<CSValue>() {
+          @Override public void call(CSValue csValue) {
+            fetched.onNext(csValue);
+          }
+        })
+        .ignoreElements();
+
+    //The view, so that it only removes itself once its last subscriber is gone
+    final AtomicReference<Observable<CSValue>> self = new AtomicReference<>();
+    final Observable<CSValue> view = ingested
+        .filter(new Func1<CSValue, Boolean>() {
+          @Override public Boolean call(CSValue csValue) {
+            return pattern.matches(csValue.key());
+          }
+        })
+        .mergeWith(advance)
+        .doOnSubscribe(new Action0() {
+          @Override public void call() {
+            subStateManager.sub();
+          }
+        })
+        .doOnUnsubscribe(new Action0() {
+          @Override public void call() {
+            subStateManager.unsub();
+            synchronized (ListenPipeline.this) {
+              if (views.get(csKey) == self.get()) {
+                views.remove(csKey);
+              }
+            }
+          }
+        })
+        .share();
+    self.set(view);
+    views.put(csKey, view);
+    return view;
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSLocalQuery;
+import rx.Observable;
+
+/** Evaluates CSLocalQuery for the DBManagers that sort their values in memory */
+public final class LocalQueries {
+
+  private LocalQueries() {
+    throw new AssertionError();
+  }
+
+  /** Compares two values in the order of the query, by (vts) or (cts, vts) */
+  public static int compare(CSLocalQuery.Order order, long vts0, long cts0, long vts1,
+      long cts1) {
+    switch (order) {
+      case VTS_ASC:
+        return compare(vts0, vts1);
+      case CTS_DESC:
+        return cts0 != cts1 ? compare(cts1, cts0) : compare(vts1, vts0);
+      case CTS_ASC:
+        return cts0 != cts1 ? compare(cts0, cts1) : compare(vts0, vts1);
+      default:
+        return compare(vts1, vts0);
+    }
+  }
+
+  private static int compare(long x, long y) {
+    return x < y ? -1 : (x == y ? 0 : 1);
+  }
+
+  /** Applies the limit of the query to the values streamed for it */
+  public static <T> Observable<T> limit(Observable<T> values, CSLocalQuery query) {
+    return query.limit() == CSLocalQuery.NO_LIMIT ? values : values.take(query.limit());
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import rx.Observable;
+import rx.Observer;
+import rx.Subscription;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
+
+/**
+ * Maintains the latest CSValue of every key emitted by a listen, shared by reference count
+ * between the CSViews of the same CSKey. The listen serializes its values, so the map has a
+ * single writer and readers take its current version without locking.
+ */
+public final class MaterializedView {
+  private volatile PersistentMap<CSKey, CSValue> values = PersistentMap.empty();
+  private final Subject<CSValue, CSValue> changes = PublishSubject.<CSValue>create().toSerialized();
+  private final Subscription subscription;
+  private int refs; //guarded by this
+
+  public MaterializedView(Observable<CSValue> listen) {
+    this.subscription = listen.subscribe(new Observer<CSValue>() {
+      @Override public void onNext(CSValue csValue) {
+        values = csValue.isKeyDeleted()
+            ? values.minus(csValue.key()) : values.plus(csValue.key(), csValue);
+        changes.onNext(csValue);
+      }
+
+      @Override public void onError(Throwable e) {
+        changes.onError(e);
+      }
+
+      @Override public void onCompleted() {
+        changes.onCompleted();
+      }
+    });
+  }
+
+  public PersistentMap<CSKey, CSValue> values() {
+    return values;
+  }
+
+  public Observable<CSValue> changes() {
+    return changes;
+  }
+
+  /** Returns false if the view was already released by all of its holders */
+  public synchronized boolean retain() {
+    if (subscription.isUnsubscribed()) {
+      return false;
+    }
+    refs++;
+    return true;
+  }
+
+  /** Returns true if this was the last holder, in which case the listen is unsubscribed */
+  public synchronized boolean release() {
+    if (--refs > 0) {
+      return false;
+    }
+    subscription.unsubscribe();
+    changes.onCompleted();
+    return true;
+  }
+
+  /** Unsubscribes the listen and completes the changes, whoever still holds the view */
+  public synchronized void close() {
+    refs = 0;
+    subscription.unsubscribe();
+    changes.onCompleted();
+  }
+}
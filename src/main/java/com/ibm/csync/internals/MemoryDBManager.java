@@ -17,36 +17,87 @@
 package com.ibm.csync.internals;
 
 import com.ibm.csync.CSKey;
+import com.ibm.csync.CSKeyPattern;
+import com.ibm.csync.CSLocalQuery;
 import com.ibm.csync.CSValue;
-import com.ibm.csync.acls.CSAcl;
 import com.ibm.csync.internals.sqlite.DirtyTableEntry;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import rx.Observable;
 import rx.functions.Func0;
+import rx.functions.Func1;
 
-/** An in-memory implementation of DBManager; good for mocking */
+/**
+ * An in-memory implementation of DBManager. Values are kept in a trie of key components so that
+ * wildcard patterns only walk the branches they can match, next to a vts index, the rvts of every
+ * pattern and the pending writes. All of them are concurrent structures updated without locks, so
+ * readers never wait for writers. Writers share a lock only taken exclusively to unlink the trie
+ * nodes left empty by removed values.
+ *
+ * The cache is bounded by CacheConfig.maxRows and maxBytes, with the size of a value estimated
+ * from its key and data. Once a new value takes the cache over a limit, values are evicted from
+ * a clock queue in insertion order, where a value read since it was queued gets a second chance,
+ * so every write only evicts the values it displaces. evict() evicts strictly by last read.
+ */
 public class MemoryDBManager implements DBManager {
-  private static final String TAG = MemoryDBManager.class.getName();
+  //Estimated bytes taken by an entry on top of its key and data
+  static final int ENTRY_OVERHEAD = 96;
+  //Dead entries the clock holds before it is compacted, however few values are cached
+  private static final int MIN_CLOCK_COMPACTION = 64;
+
+  private final CacheConfig config;
+  private final Metrics metrics;
+
+  private final Node root = new Node(null, null);
+  private final ConcurrentHashMap<Long, Entry> valuesByVts = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Long> rvts = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Long, DirtyTableEntry> dirty = new ConcurrentHashMap<>();
+  private final AtomicLong nextDirtyId = new AtomicLong(1);
+  private final AtomicLong rows = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicBoolean evicting = new AtomicBoolean();
+  //Every entry added, live or not; dead ones are dropped when polled or once they outnumber rows
+  private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<>();
+  private final AtomicLong deadInClock = new AtomicLong();
+  private final ReentrantReadWriteLock pruning = new ReentrantReadWriteLock();
 
-  private final List<RVTSInfo> rvtsTable = new ArrayList<>();
-  private final List<CSValue> CSValueTable = new ArrayList<>();
-  private final List<DirtyTableEntry> dirtyTable = new ArrayList<>();
+  public MemoryDBManager() {
+    this(new CacheConfig(), new Metrics());
+  }
+
+  public MemoryDBManager(CacheConfig config, Metrics metrics) {
+    this.config = config;
+    this.metrics = metrics;
+  }
 
-  private long currentId = 0L;
+  /* rvts_log operations */
 
-  @Override public Observable<List<Long>> vtsToFetch(List<Long> vts) {
-    return Observable.just(vts);
+  @Override public Observable<List<Long>> vtsToFetch(final List<Long> vts) {
+    return Observable.defer(new Func0<Observable<List<Long>>>() {
+      @Override public Observable<List<Long>> call() {
+        final List<Long> missing = new ArrayList<>();
+        for (final Long v : vts) {
+          if (!valuesByVts.containsKey(v)) {
+            missing.add(v);
+          }
+        }
+        return Observable.just(missing);
+      }
+    });
   }
 
-  //TODO: Remove the commented out code after defining what no cache means.
-  @Override public synchronized long getRvts(CSKey csKey) {
-    //for (RVTSInfo r : rvtsTable) {
-    //  if (r.csKey.equals(csKey) && (r.acl.equals(acl.rawAcl()))) {
-    //    return r.rvts;
-    //  }
-    //}
-    return 0L; // no value found
+  @Override public long getRvts(CSKey csKey) {
+    final Long value = rvts.get(csKey.toString());
+    return value == null ? NO_RVTS_FOUND : value;
   }
 
   @Override public Observable<Long> getRvtsAsync(final CSKey csKey) {
@@ -57,81 +108,458 @@ public class MemoryDBManager implements DBManager {
     });
   }
 
-  @Override public synchronized void upsertRvts(CSKey csKey, long rvts) {
-    //for (RVTSInfo r : rvtsTable) {
-    //  if (r.csKey.equals(csKey) && r.acl.equals(acl.rawAcl())) {
-    //    // found previous entry, update it
-    //    r.rvts = rvts;
-    //    return;
-    //  }
-    //}
-    //
-    //// no previous entry in table, insert it
-    //rvtsTable.add(new RVTSInfo(csKey, acl, rvts));
+  @Override public void upsertRvts(CSKey csKey, long value) {
+    if (value == NO_RVTS_FOUND) {
+      rvts.remove(csKey.toString());
+    } else {
+      rvts.put(csKey.toString(), value);
+    }
   }
 
-  @Override public synchronized void addData(CSValue csValue) {
-    //Log.d(TAG, "sync manager adding CSValue: " + csValue);
-    //CSValueTable.add(csValue);
+  /* data_log operations */
+
+  //Only the newest vts of a key is kept, an older or equal vts is ignored
+  @Override public void addData(CSValue csValue) {
+    //Shared with other writers, it keeps the node from being unlinked before the value is in it
+    pruning.readLock().lock();
+    try {
+      final Node node = nodeFor(csValue.key());
+      final Entry entry = new Entry(node, csValue);
+      for (;;) {
+        final Entry existing = node.get();
+        if (existing != null && existing.value.vts() >= csValue.vts()) {
+          return;
+        }
+        if (node.compareAndSet(existing, entry)) {
+          if (existing != null) {
+            unindex(existing);
+          }
+          rows.incrementAndGet();
+          bytes.addAndGet(entry.size);
+          valuesByVts.put(csValue.vts(), entry);
+          //An eviction in between may have missed the index entry
+          if (node.get() != entry) {
+            valuesByVts.remove(csValue.vts(), entry);
+          }
+          clock.add(entry);
+          break;
+        }
+      }
+    } finally {
+      pruning.readLock().unlock();
+    }
+
+    final boolean full = overLimit(config.maxRows, config.maxBytes);
+    if ((full || deadInClock.get() > Math.max(rows.get(), MIN_CLOCK_COMPACTION))
+        && evicting.compareAndSet(false, true)) {
+      try {
+        if (full) {
+          evictFromClock();
+        } else {
+          compactClock();
+        }
+      } finally {
+        evicting.set(false);
+      }
+    }
   }
 
+  //Emits the live values matching csKey, newest vts first
   @Override public Observable<CSValue> cachedValues(final CSKey csKey, final long maxVts) {
-    return Observable.empty();
-    //return Observable.create(new Observable.OnSubscribe<CSValue>() {
-    //  @Override
-    //  public void call(Subscriber<? super CSValue> subscriber) {
-    //    for (CSValue csValue : CSValueTable) {
-    //      if (csValue.key().matches(csKey)) {
-    //        subscriber.onNext(csValue);
-    //      }
-    //    }
-    //    subscriber.onCompleted();
-    //  }
-    //});
-  }
-
-  @Override
-  public long addDirty(CSValue csValue) {
-    //long tempId = currentId;
-    //Log.d(TAG, "Adding dirty CSValue to database: " + csValue);
-    //dirtyTable.add(new DirtyTableEntry(tempId, csValue));
-    //currentId++;
-    //return currentId;
-    return 0L;
-  }
-
-  @Override
-  public void deleteDirty(long id) {
-    //int tableSize = dirtyTable.size();
-    //DirtyTableEntry curData;
-    //for (int i = 0; i < tableSize; i++) {
-    //  curData = dirtyTable.get(i);
-    //  if (curData.id == id) {
-    //    dirtyTable.remove(i);
-    //    Log.d(TAG, "Removing dirty CSValue from database: " + curData);
-    //    break;
-    //  }
-    //}
-  }
-
-  @Override
-  public List<DirtyTableEntry> getDirtyData() {
-    return dirtyTable;
+    return Observable.defer(new Func0<Observable<CSValue>>() {
+      @Override public Observable<CSValue> call() {
+        final List<Entry> matching = new ArrayList<>();
+        collect(root, csKey.toArray(), 0, matching);
+        for (int i = matching.size() - 1; i >= 0; i--) {
+          final CSValue value = matching.get(i).value;
+          if (value.isKeyDeleted() || value.vts() > maxVts) {
+            matching.remove(i);
+          }
+        }
+        Collections.sort(matching, new Comparator<Entry>() {
+          @Override public int compare(Entry e0, Entry e1) {
+            final long vts0 = e0.value.vts();
+            final long vts1 = e1.value.vts();
+            return vts0 < vts1 ? 1 : (vts0 == vts1 ? 0 : -1);
+          }
+        });
+
+        return Observable.from(matching)
+            .filter(new Func1<Entry, Boolean>() {
+              @Override public Boolean call(Entry entry) {
+                //Skip values replaced or evicted since they were found
+                if (entry.node.get() != entry) return false;
+                entry.read();
+                return true;
+              }
+            })
+            .map(new Func1<Entry, CSValue>() {
+              @Override public CSValue call(Entry entry) {
+                return entry.value;
+              }
+            });
+      }
+    });
+  }
+
+  @Override public Observable<CSValue> query(final CSLocalQuery query) {
+    return LocalQueries.limit(Observable.defer(new Func0<Observable<CSValue>>() {
+      @Override public Observable<CSValue> call() {
+        final List<Entry> matching = new ArrayList<>();
+        collect(root, query.key().toArray(), 0, matching);
+        for (int i = matching.size() - 1; i >= 0; i--) {
+          final CSValue value = matching.get(i).value;
+          if (value.isKeyDeleted() || !query.inRange(value.vts(), value.cts())) {
+            matching.remove(i);
+          }
+        }
+        Collections.sort(matching, new Comparator<Entry>() {
+          @Override public int compare(Entry e0, Entry e1) {
+            return LocalQueries.compare(query.order(), e0.value.vts(), e0.value.cts(),
+                e1.value.vts(), e1.value.cts());
+          }
+        });
+
+        return Observable.from(matching)
+            .filter(new Func1<Entry, Boolean>() {
+              @Override public Boolean call(Entry entry) {
+                //Skip values replaced or evicted since they were found
+                if (entry.node.get() != entry) return false;
+                entry.read();
+                return true;
+              }
+            })
+            .map(new Func1<Entry, CSValue>() {
+              @Override public CSValue call(Entry entry) {
+                return entry.value;
+              }
+            });
+      }
+    }), query);
+  }
+
+  @Override public long latestVts(CSKey csKey) {
+    Node node = root;
+    for (final String part : csKey.toArray()) {
+      node = node.children.get(part);
+      if (node == null) {
+        return NO_VTS_FOUND;
+      }
+    }
+    final Entry entry = node.get();
+    return entry == null ? NO_VTS_FOUND : entry.value.vts();
+  }
+
+  @Override public Observable<Long> latestVtsAsync(final CSKey csKey) {
+    return Observable.defer(new Func0<Observable<Long>>() {
+      @Override public Observable<Long> call() {
+        return Observable.just(latestVts(csKey));
+      }
+    });
+  }
+  @Override public Observable<List<Long>> latestVtsAsync(final List<CSKey> csKeys) {
+    return Observable.defer(new Func0<Observable<List<Long>>>() {
+      @Override public Observable<List<Long>> call() {
+        final List<Long> vts = new ArrayList<>(csKeys.size());
+        for (final CSKey csKey : csKeys) {
+          vts.add(latestVts(csKey));
+        }
+        return Observable.just(vts);
+      }
+    });
+  }
+
+
+  /* dirty_log operations */
+
+  @Override public Observable<Long> addDirty(final CSValue csValue) {
+    return Observable.defer(new Func0<Observable<Long>>() {
+      @Override public Observable<Long> call() {
+        final long id = nextDirtyId.getAndIncrement();
+        dirty.put(id, new DirtyTableEntry(id, csValue));
+        return Observable.just(id);
+      }
+    });
+  }
+
+  @Override public void deleteDirty(long id) {
+    dirty.remove(id);
+  }
+
+  @Override public Observable<DirtyTableEntry> getDirtyData() {
+    return Observable.defer(new Func0<Observable<DirtyTableEntry>>() {
+      @Override public Observable<DirtyTableEntry> call() {
+        final List<DirtyTableEntry> entries = new ArrayList<>(dirty.values());
+        Collections.sort(entries, new Comparator<DirtyTableEntry>() {
+          @Override public int compare(DirtyTableEntry d0, DirtyTableEntry d1) {
+            final long cts0 = d0.csValue.cts();
+            final long cts1 = d1.csValue.cts();
+            if (cts0 != cts1) return cts0 < cts1 ? -1 : 1;
+            return d0.id < d1.id ? -1 : (d0.id == d1.id ? 0 : 1);
+          }
+        });
+        return Observable.from(entries);
+      }
+    });
+  }
+
+  /* cache maintenance */
+
+  @Override public void collectTombstones() {
+    if (rvts.isEmpty()) return;
+
+    long minRvts = Long.MAX_VALUE;
+    for (final long value : rvts.values()) {
+      minRvts = Math.min(minRvts, value);
+    }
+    final List<Entry> entries = new ArrayList<>();
+    collectAll(root, entries);
+    final List<Entry> collected = new ArrayList<>();
+    for (final Entry entry : entries) {
+      if (entry.value.isKeyDeleted() && entry.value.vts() < minRvts && remove(entry)) {
+        collected.add(entry);
+      }
+    }
+    prune(collected);
+  }
+
+  //Runs off the write path, so it can afford to order every value by its last read
+  @Override public void evict() {
+    final long now = System.currentTimeMillis();
+    final List<Entry> evicted = new ArrayList<>();
+
+    final List<Entry> leastRecentlyRead = new ArrayList<>();
+    collectAll(root, leastRecentlyRead);
+    Collections.sort(leastRecentlyRead, new Comparator<Entry>() {
+      @Override public int compare(Entry e0, Entry e1) {
+        return e0.lastRead < e1.lastRead ? -1 : (e0.lastRead == e1.lastRead ? 0 : 1);
+      }
+    });
+
+    for (final Entry entry : leastRecentlyRead) {
+      final boolean expired = config.ttl > 0 && entry.lastRead < now - config.ttl;
+      if (!expired && !overLimit(config.maxRows, config.maxBytes)) continue;
+
+      if (remove(entry)) {
+        evicted.add(entry);
+      }
+    }
+    evicted(evicted);
+  }
+
+  //Evicts from the head of the clock until the cache is within its limits
+  private void evictFromClock() {
+    final List<Entry> evicted = new ArrayList<>();
+    while (overLimit(config.maxRows, config.maxBytes)) {
+      final Entry entry = clock.poll();
+      if (entry == null) break;
+
+      if (entry.node.get() != entry) {
+        deadInClock.decrementAndGet();
+      } else if (entry.referenced) {
+        entry.referenced = false;
+        clock.add(entry);
+      } else {
+        //Dead now whether this removes it or a write replaced it in between
+        if (remove(entry)) {
+          evicted.add(entry);
+        }
+        deadInClock.decrementAndGet();
+      }
+    }
+    evicted(evicted);
+  }
+
+  //Drops the entries of replaced and removed values, which are otherwise only dropped when polled
+  private void compactClock() {
+    final Iterator<Entry> entries = clock.iterator();
+    while (entries.hasNext()) {
+      final Entry entry = entries.next();
+      if (entry.node.get() != entry) {
+        entries.remove();
+        deadInClock.decrementAndGet();
+      }
+    }
+  }
+
+  private void evicted(final List<Entry> evicted) {
+    prune(evicted);
+    final List<CSKey> keys = new ArrayList<>();
+    for (final Entry entry : evicted) {
+      keys.add(entry.value.key());
+    }
+    resetRvts(keys);
+
+    metrics.cacheEvictions.addAndGet(evicted.size());
+    metrics.cacheRows.set(rows.get());
+    metrics.cacheBytes.set(bytes.get());
+  }
+
+  private boolean overLimit(final long maxRows, final long maxBytes) {
+    return (maxRows > 0 && rows.get() > maxRows) || (maxBytes > 0 && bytes.get() > maxBytes);
+  }
+
+  //Forgets the rvts of every pattern matching one of the keys, so their next advance asks the
+  //server for everything again and the evicted values are fetched if they are needed.
+  private void resetRvts(final List<CSKey> keys) {
+    if (keys.isEmpty()) return;
+
+    for (final String pattern : rvts.keySet()) {
+      final CSKeyPattern patternKey = CSKeyPattern.compile(CSKey.fromString(pattern));
+      for (final CSKey key : keys) {
+        if (patternKey.matches(key)) {
+          rvts.remove(pattern);
+          break;
+        }
+      }
+    }
   }
 
   @Override public void closeDB() {
-    //TODO: remove all from the db and start clean.
+    final List<Entry> entries = new ArrayList<>();
+    collectAll(root, entries);
+    for (final Entry entry : entries) {
+      remove(entry);
+    }
+    root.children.clear();
+    clock.clear();
+    deadInClock.set(0);
+    rvts.clear();
+    dirty.clear();
+  }
+
+  /* the trie */
+
+  private Node nodeFor(final CSKey key) {
+    Node node = root;
+    for (final String part : key.toArray()) {
+      Node child = node.children.get(part);
+      if (child == null) {
+        final Node created = new Node(node, part);
+        child = node.children.putIfAbsent(part, created);
+        if (child == null) {
+          child = created;
+        }
+      }
+      node = child;
+    }
+    return node;
+  }
+
+  //The number of trie nodes below the root
+  int nodeCount() {
+    return countNodes(root) - 1;
+  }
+
+  private static int countNodes(final Node node) {
+    int count = 1;
+    for (final Node child : node.children.values()) {
+      count += countNodes(child);
+    }
+    return count;
+  }
+
+  //Adds the entries under node matching the pattern from its i-th component on
+  private static void collect(final Node node, final String[] pattern, final int i,
+      final List<Entry> out) {
+    if (i == pattern.length) {
+      final Entry entry = node.get();
+      if (entry != null) {
+        out.add(entry);
+      }
+    } else if ("#".equals(pattern[i])) {
+      collectAll(node, out);
+    } else if ("*".equals(pattern[i])) {
+      for (final Node child : node.children.values()) {
+        collect(child, pattern, i + 1, out);
+      }
+    } else {
+      final Node child = node.children.get(pattern[i]);
+      if (child != null) {
+        collect(child, pattern, i + 1, out);
+      }
+    }
+  }
+
+  private static void collectAll(final Node node, final List<Entry> out) {
+    final Entry entry = node.get();
+    if (entry != null) {
+      out.add(entry);
+    }
+    for (final Node child : node.children.values()) {
+      collectAll(child, out);
+    }
   }
 
-  private static class RVTSInfo {
-    final CSKey csKey;
-    final CSAcl acl;
-    Long rvts;
+  //Removes the entry unless it was replaced or removed already
+  private boolean remove(final Entry entry) {
+    if (!entry.node.compareAndSet(entry, null)) {
+      return false;
+    }
+    unindex(entry);
+    return true;
+  }
+
+  //Every replaced or removed entry is still in the clock once
+  private void unindex(final Entry entry) {
+    valuesByVts.remove(entry.value.vts(), entry);
+    rows.decrementAndGet();
+    bytes.addAndGet(-entry.size);
+    deadInClock.incrementAndGet();
+  }
+
+  //Unlinks the nodes of the removed entries, and their ancestors, that hold no value or child
+  private void prune(final List<Entry> removed) {
+    if (removed.isEmpty()) return;
+
+    pruning.writeLock().lock();
+    try {
+      for (final Entry entry : removed) {
+        Node node = entry.node;
+        while (node.parent != null && node.get() == null && node.children.isEmpty()) {
+          node.parent.children.remove(node.part, node);
+          node = node.parent;
+        }
+      }
+    } finally {
+      pruning.writeLock().unlock();
+    }
+  }
+
+  //A key component; holds the newest value of the key it ends, if any
+  private static final class Node extends AtomicReference<Entry> {
+    private static final long serialVersionUID = 1L;
+
+    //Most nodes have few children and are rarely written concurrently
+    final ConcurrentHashMap<String, Node> children = new ConcurrentHashMap<>(4, 0.75f, 1);
+    final Node parent;
+    final String part;
+
+    Node(Node parent, String part) {
+      this.parent = parent;
+      this.part = part;
+    }
+  }
+
+  private static final class Entry {
+    final Node node;
+    final CSValue value;
+    final int size;
+    volatile long lastRead = System.currentTimeMillis();
+    //Set by reads, cleared when the clock passes over the entry
+    volatile boolean referenced;
+
+    Entry(Node node, CSValue value) {
+      this.node = node;
+      this.value = value;
+      final String data = value.data();
+      this.size = ENTRY_OVERHEAD + 2 * (value.key().toString().length()
+          + (data == null ? 0 : data.length()));
+    }
 
-    RVTSInfo(CSKey csKey, CSAcl acl, Long rvts) {
-      this.csKey = csKey;
-      this.acl = acl;
-      this.rvts = rvts;
+    void read() {
+      lastRead = System.currentTimeMillis();
+      referenced = true;
     }
   }
 }
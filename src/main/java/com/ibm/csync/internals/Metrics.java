@@ -0,0 +1,33 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counters shared by the components of a CSApp, read through CSApp.metrics() */
+public class Metrics {
+  /** Number of cached values evicted to keep the cache within its limits */
+  public final AtomicLong cacheEvictions = new AtomicLong();
+  /** Number of values in the cache as of the last eviction pass */
+  public final AtomicLong cacheRows = new AtomicLong();
+  /** Size of the cache in bytes as of the last eviction pass */
+  public final AtomicLong cacheBytes = new AtomicLong();
+  /** Number of cached reads answered from the in-memory hot tier */
+  public final AtomicLong hotHits = new AtomicLong();
+  /** Number of cached reads that had to go to the database */
+  public final AtomicLong hotMisses = new AtomicLong();
+}
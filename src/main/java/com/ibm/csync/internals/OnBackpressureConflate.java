@@ -0,0 +1,154 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+
+/**
+ * Requests everything from upstream and holds only the latest CSValue per CSKey that downstream
+ * has not requested yet. A pending key keeps its place in line when a newer value replaces it, so
+ * busy keys do not starve the others.
+ */
+public final class OnBackpressureConflate implements Observable.Operator<CSValue, CSValue> {
+
+  @Override public Subscriber<? super CSValue> call(final Subscriber<? super CSValue> child) {
+    final ConflateSubscriber parent = new ConflateSubscriber(child);
+    child.add(parent);
+    child.setProducer(new Producer() {
+      @Override public void request(long n) {
+        if (n < 0) {
+          throw new IllegalArgumentException("n >= 0 required but it was " + n);
+        }
+        parent.requestMore(n);
+      }
+    });
+    return parent;
+  }
+
+  static final class ConflateSubscriber extends Subscriber<CSValue> {
+    private final Subscriber<? super CSValue> child;
+    //All guarded by this
+    private final Map<CSKey, CSValue> pending = new LinkedHashMap<>();
+    private long requested;
+    private boolean done;
+    private Throwable error;
+    private boolean emitting;
+    private boolean missed;
+
+    ConflateSubscriber(Subscriber<? super CSValue> child) {
+      this.child = child;
+    }
+
+    @Override public void onStart() {
+      request(Long.MAX_VALUE);
+    }
+
+    @Override public void onNext(CSValue csValue) {
+      synchronized (this) {
+        pending.put(csValue.key(), csValue);
+      }
+      drain();
+    }
+
+    @Override public void onError(Throwable e) {
+      synchronized (this) {
+        error = e;
+        done = true;
+      }
+      drain();
+    }
+
+    @Override public void onCompleted() {
+      synchronized (this) {
+        done = true;
+      }
+      drain();
+    }
+
+    void requestMore(long n) {
+      if (n == 0) {
+        return;
+      }
+      synchronized (this) {
+        long r = requested + n;
+        requested = r < 0 ? Long.MAX_VALUE : r;
+      }
+      drain();
+    }
+
+    /** Emits from a single thread at a time; callers arriving meanwhile only set missed */
+    private void drain() {
+      synchronized (this) {
+        if (emitting) {
+          missed = true;
+          return;
+        }
+        emitting = true;
+        missed = false;
+      }
+      for (;;) {
+        for (;;) {
+          CSValue next;
+          synchronized (this) {
+            if (requested == 0 || pending.isEmpty()) {
+              break;
+            }
+            Iterator<CSValue> it = pending.values().iterator();
+            next = it.next();
+            it.remove();
+            if (requested != Long.MAX_VALUE) {
+              requested--;
+            }
+          }
+          if (child.isUnsubscribed()) {
+            return;
+          }
+          child.onNext(next);
+        }
+
+        boolean terminate;
+        Throwable e;
+        synchronized (this) {
+          terminate = done && pending.isEmpty();
+          e = error;
+          if (!terminate && !missed) {
+            emitting = false;
+            return;
+          }
+          missed = false;
+        }
+        if (terminate) {
+          //emitting stays set so nothing follows the terminal event
+          if (e != null) {
+            child.onError(e);
+          } else {
+            child.onCompleted();
+          }
+          return;
+        }
+      }
+    }
+  }
+}
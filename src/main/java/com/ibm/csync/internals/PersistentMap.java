@@ -0,0 +1,405 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable hash array mapped trie. plus() and minus() return a new map sharing all but the
+ * O(log32 n) nodes on the path to the key, so every version can be handed out as a snapshot
+ * without copying. The Map mutators throw UnsupportedOperationException; null keys and values are
+ * not supported.
+ */
+public final class PersistentMap<K, V> extends AbstractMap<K, V> {
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+  //32 bit hashes consume at most 7 levels, collisions add one more, the root one more
+  private static final int MAX_DEPTH = 9;
+
+  private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+  private final Node<K, V> root;
+  private final int size;
+
+  private PersistentMap(Node<K, V> root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentMap<K, V> empty() {
+    return (PersistentMap<K, V>) EMPTY;
+  }
+
+  /** Returns a map which maps key to value, and this map if it already did */
+  public PersistentMap<K, V> plus(K key, V value) {
+    if (key == null || value == null) {
+      throw new NullPointerException("key and value must not be null");
+    }
+    int hash = hash(key);
+    if (root == null) {
+      return new PersistentMap<>(new Leaf<>(hash, key, value), 1);
+    }
+    boolean[] added = new boolean[1];
+    Node<K, V> newRoot = root.plus(0, hash, key, value, added);
+    return newRoot == root ? this : new PersistentMap<K, V>(newRoot, added[0] ? size + 1 : size);
+  }
+
+  /** Returns a map without key, and this map if it did not contain key */
+  public PersistentMap<K, V> minus(Object key) {
+    if (root == null || key == null) {
+      return this;
+    }
+    Node<K, V> newRoot = root.minus(0, hash(key), key);
+    if (newRoot == root) {
+      return this;
+    }
+    return newRoot == null
+        ? PersistentMap.<K, V>empty() : new PersistentMap<K, V>(newRoot, size - 1);
+  }
+
+  @Override public V get(Object key) {
+    return root == null || key == null ? null : root.find(0, hash(key), key);
+  }
+
+  @Override public boolean containsKey(Object key) {
+    return get(key) != null;
+  }
+
+  @Override public int size() {
+    return size;
+  }
+
+  @Override public Set<Entry<K, V>> entrySet() {
+    return new AbstractSet<Entry<K, V>>() {
+      @Override public Iterator<Entry<K, V>> iterator() {
+        return new EntryIterator<>(root);
+      }
+
+      @Override public int size() {
+        return size;
+      }
+    };
+  }
+
+  private static int hash(Object key) {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private static int bit(int shift, int hash) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+  /** Builds the smallest subtrie holding two nodes with different hashes */
+  private static <K, V> Node<K, V> merge(int shift, Node<K, V> a, int hashA, Node<K, V> b,
+      int hashB) {
+    int sliceA = (hashA >>> shift) & MASK;
+    int sliceB = (hashB >>> shift) & MASK;
+    if (sliceA == sliceB) {
+      Node<K, V>[] children = newNodes(1);
+      children[0] = merge(shift + BITS, a, hashA, b, hashB);
+      return new BitmapNode<>(1 << sliceA, children);
+    }
+    Node<K, V>[] children = newNodes(2);
+    children[sliceA < sliceB ? 0 : 1] = a;
+    children[sliceA < sliceB ? 1 : 0] = b;
+    return new BitmapNode<>((1 << sliceA) | (1 << sliceB), children);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> Node<K, V>[] newNodes(int length) {
+    return (Node<K, V>[]) new Node<?, ?>[length];
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K, V> Leaf<K, V>[] newLeaves(int length) {
+    return (Leaf<K, V>[]) new Leaf<?, ?>[length];
+  }
+
+  private abstract static class Node<K, V> {
+    abstract V find(int shift, int hash, Object key);
+
+    /** Returns this if key already maps to value; sets added[0] if key was absent */
+    abstract Node<K, V> plus(int shift, int hash, K key, V value, boolean[] added);
+
+    /** Returns this if key is absent, null if the node becomes empty */
+    abstract Node<K, V> minus(int shift, int hash, Object key);
+  }
+
+  private static final class Leaf<K, V> extends Node<K, V> implements Entry<K, V> {
+    final int hash;
+    final K key;
+    final V value;
+
+    Leaf(int hash, K key, V value) {
+      this.hash = hash;
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override V find(int shift, int hash, Object key) {
+      return hash == this.hash && key.equals(this.key) ? value : null;
+    }
+
+    @Override Node<K, V> plus(int shift, int hash, K key, V value, boolean[] added) {
+      if (hash == this.hash && key.equals(this.key)) {
+        return value == this.value ? this : new Leaf<>(hash, key, value);
+      }
+      added[0] = true;
+      Leaf<K, V> leaf = new Leaf<>(hash, key, value);
+      if (hash == this.hash) {
+        Leaf<K, V>[] leaves = newLeaves(2);
+        leaves[0] = this;
+        leaves[1] = leaf;
+        return new CollisionNode<>(hash, leaves);
+      }
+      return merge(shift, this, this.hash, leaf, hash);
+    }
+
+    @Override Node<K, V> minus(int shift, int hash, Object key) {
+      return hash == this.hash && key.equals(this.key) ? null : this;
+    }
+
+    @Override public K getKey() {
+      return key;
+    }
+
+    @Override public V getValue() {
+      return value;
+    }
+
+    @Override public V setValue(V value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry<?, ?> e = (Entry<?, ?>) o;
+      return key.equals(e.getKey()) && value.equals(e.getValue());
+    }
+
+    @Override public int hashCode() {
+      return key.hashCode() ^ value.hashCode();
+    }
+
+    @Override public String toString() {
+      return key + "=" + value;
+    }
+  }
+
+  /** Holds the leaves of keys whose hashes are equal */
+  private static final class CollisionNode<K, V> extends Node<K, V> {
+    final int hash;
+    final Leaf<K, V>[] leaves;
+
+    CollisionNode(int hash, Leaf<K, V>[] leaves) {
+      this.hash = hash;
+      this.leaves = leaves;
+    }
+
+    private int indexOf(Object key) {
+      for (int i = 0; i < leaves.length; i++) {
+        if (key.equals(leaves[i].key)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override V find(int shift, int hash, Object key) {
+      if (hash != this.hash) {
+        return null;
+      }
+      int i = indexOf(key);
+      return i < 0 ? null : leaves[i].value;
+    }
+
+    @Override Node<K, V> plus(int shift, int hash, K key, V value, boolean[] added) {
+      if (hash != this.hash) {
+        added[0] = true;
+        return merge(shift, this, this.hash, new Leaf<>(hash, key, value), hash);
+      }
+      int i = indexOf(key);
+      if (i >= 0 && leaves[i].value == value) {
+        return this;
+      }
+      Leaf<K, V>[] copy = newLeaves(i < 0 ? leaves.length + 1 : leaves.length);
+      System.arraycopy(leaves, 0, copy, 0, leaves.length);
+      if (i < 0) {
+        added[0] = true;
+        i = leaves.length;
+      }
+      copy[i] = new Leaf<>(hash, key, value);
+      return new CollisionNode<>(hash, copy);
+    }
+
+    @Override Node<K, V> minus(int shift, int hash, Object key) {
+      int i = hash == this.hash ? indexOf(key) : -1;
+      if (i < 0) {
+        return this;
+      }
+      if (leaves.length == 2) {
+        return leaves[1 - i];
+      }
+      Leaf<K, V>[] copy = newLeaves(leaves.length - 1);
+      System.arraycopy(leaves, 0, copy, 0, i);
+      System.arraycopy(leaves, i + 1, copy, i, copy.length - i);
+      return new CollisionNode<>(hash, copy);
+    }
+  }
+
+  /** Holds one child per occupied 5 bit slice of the hash, in slice order */
+  private static final class BitmapNode<K, V> extends Node<K, V> {
+    final int bitmap;
+    final Node<K, V>[] children;
+
+    BitmapNode(int bitmap, Node<K, V>[] children) {
+      this.bitmap = bitmap;
+      this.children = children;
+    }
+
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override V find(int shift, int hash, Object key) {
+      int bit = bit(shift, hash);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      return children[index(bit)].find(shift + BITS, hash, key);
+    }
+
+    @Override Node<K, V> plus(int shift, int hash, K key, V value, boolean[] added) {
+      int bit = bit(shift, hash);
+      int i = index(bit);
+      if ((bitmap & bit) == 0) {
+        added[0] = true;
+        Node<K, V>[] copy = newNodes(children.length + 1);
+        System.arraycopy(children, 0, copy, 0, i);
+        copy[i] = new Leaf<>(hash, key, value);
+        System.arraycopy(children, i, copy, i + 1, children.length - i);
+        return new BitmapNode<>(bitmap | bit, copy);
+      }
+      Node<K, V> child = children[i].plus(shift + BITS, hash, key, value, added);
+      if (child == children[i]) {
+        return this;
+      }
+      Node<K, V>[] copy = children.clone();
+      copy[i] = child;
+      return new BitmapNode<>(bitmap, copy);
+    }
+
+    @Override Node<K, V> minus(int shift, int hash, Object key) {
+      int bit = bit(shift, hash);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      int i = index(bit);
+      Node<K, V> child = children[i].minus(shift + BITS, hash, key);
+      if (child == children[i]) {
+        return this;
+      }
+      if (child != null) {
+        //a lone leaf or collision needs no slice to be found, so it moves up
+        if (children.length == 1 && !(child instanceof BitmapNode)) {
+          return child;
+        }
+        Node<K, V>[] copy = children.clone();
+        copy[i] = child;
+        return new BitmapNode<>(bitmap, copy);
+      }
+      if (children.length == 1) {
+        return null;
+      }
+      if (children.length == 2 && !(children[1 - i] instanceof BitmapNode)) {
+        return children[1 - i];
+      }
+      Node<K, V>[] copy = newNodes(children.length - 1);
+      System.arraycopy(children, 0, copy, 0, i);
+      System.arraycopy(children, i + 1, copy, i, copy.length - i);
+      return new BitmapNode<>(bitmap & ~bit, copy);
+    }
+  }
+
+  /** Walks the trie depth first with an explicit stack */
+  private static final class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+    @SuppressWarnings("unchecked")
+    private final Node<K, V>[][] nodes = (Node<K, V>[][]) new Node<?, ?>[MAX_DEPTH][];
+    private final int[] positions = new int[MAX_DEPTH];
+    private int depth = -1;
+    private Leaf<K, V> next;
+
+    EntryIterator(Node<K, V> root) {
+      if (root != null) {
+        Node<K, V>[] roots = newNodes(1);
+        roots[0] = root;
+        push(roots);
+        advance();
+      }
+    }
+
+    private void push(Node<K, V>[] children) {
+      depth++;
+      nodes[depth] = children;
+      positions[depth] = 0;
+    }
+
+    private void advance() {
+      next = null;
+      while (depth >= 0) {
+        if (positions[depth] == nodes[depth].length) {
+          nodes[depth--] = null;
+          continue;
+        }
+        Node<K, V> node = nodes[depth][positions[depth]++];
+        if (node instanceof Leaf) {
+          next = (Leaf<K, V>) node;
+          return;
+        }
+        push(node instanceof BitmapNode
+            ? ((BitmapNode<K, V>) node).children : ((CollisionNode<K, V>) node).leaves);
+      }
+    }
+
+    @Override public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override public Entry<K, V> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Leaf<K, V> leaf = next;
+      advance();
+      return leaf;
+    }
+
+    @Override public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
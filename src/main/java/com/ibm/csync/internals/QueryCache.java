@@ -0,0 +1,98 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Keeps the rows of the most recently used query results in memory, evicting the oldest */
+public class QueryCache {
+  public static final int DEFAULT_MAX_RESULTS = 100;
+  public static final long DEFAULT_MAX_AGE = 60000;    //in ms
+  public static final long ANY_AGE = Long.MAX_VALUE;
+
+  private final Map<Query, Result> results; //guarded by this
+
+  public QueryCache(final int maxResults) {
+    this.results = new LinkedHashMap<Query, Result>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Query, Result> eldest) {
+        return size() > maxResults;
+      }
+    };
+  }
+
+  /** Returns the rows of the query if they were stored at most maxAge ms ago, else null */
+  public synchronized List<String> get(Query query, long maxAge) {
+    Result result = results.get(query);
+    if (result == null || System.currentTimeMillis() - result.storedAt > maxAge) {
+      return null;
+    }
+    return result.rows;
+  }
+
+  public synchronized void put(Query query, List<String> rows) {
+    results.put(query, new Result(Collections.unmodifiableList(rows),
+        System.currentTimeMillis()));
+  }
+
+  public synchronized void clear() {
+    results.clear();
+  }
+
+  /** Identifies a query by its key, predicate and projection */
+  public static final class Query {
+    private final CSKey csKey;
+    private final String predicate;
+    private final List<String> projection;
+
+    public Query(CSKey csKey, String predicate, List<String> projection) {
+      this.csKey = csKey;
+      this.predicate = predicate;
+      this.projection = projection;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Query)) {
+        return false;
+      }
+      Query q = (Query) o;
+      return csKey.equals(q.csKey)
+          && (predicate == null ? q.predicate == null : predicate.equals(q.predicate))
+          && (projection == null ? q.projection == null : projection.equals(q.projection));
+    }
+
+    @Override public int hashCode() {
+      int h = csKey.hashCode();
+      h = 31 * h + (predicate == null ? 0 : predicate.hashCode());
+      return 31 * h + (projection == null ? 0 : projection.hashCode());
+    }
+  }
+
+  private static final class Result {
+    final List<String> rows;
+    final long storedAt;
+
+    Result(List<String> rows, long storedAt) {
+      this.rows = rows;
+      this.storedAt = storedAt;
+    }
+  }
+}
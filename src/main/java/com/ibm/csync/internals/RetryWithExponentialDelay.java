@@ -36,19 +36,23 @@ public class RetryWithExponentialDelay implements
   @Override public Observable<?> call(Observable<? extends Throwable> observable) {
     return observable
         .zipWith(Observable.range(1, maxRetries > 0 ? maxRetries : Integer.MAX_VALUE),
-            new Func2<Throwable, Integer, Integer>() {
-              @Override public Integer call(Throwable throwable, Integer attempt) {
-                return attempt;
+            new Func2<Throwable, Integer, Observable<?>>() {
+              @Override public Observable<?> call(Throwable throwable, Integer attempt) {
+                //The last attempt failed, so the error is passed on instead of completing
+                if (attempt == maxRetries) {
+                  return Observable.error(throwable);
+                }
+                long newInterval = startDelayMillis * ((long) attempt * (long) attempt);
+                if (newInterval < 0) {
+                  newInterval = Long.MAX_VALUE;
+                }
+                // use Schedulers#immediate() to keep on same thread
+                return Observable.timer(newInterval, TimeUnit.MILLISECONDS, Schedulers.immediate());
               }
             })
-        .flatMap(new Func1<Integer, Observable<?>>() {
-          @Override public Observable<?> call(Integer attempt) {
-            long newInterval = startDelayMillis * ((long) attempt * (long) attempt);
-            if (newInterval < 0) {
-              newInterval = Long.MAX_VALUE;
-            }
-            // use Schedulers#immediate() to keep on same thread
-            return Observable.timer(newInterval, TimeUnit.MILLISECONDS, Schedulers.immediate());
+        .flatMap(new Func1<Observable<?>, Observable<?>>() {
+          @Override public Observable<?> call(Observable<?> retry) {
+            return retry;
           }
         });
   }
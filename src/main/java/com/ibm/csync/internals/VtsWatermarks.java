@@ -0,0 +1,176 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * The newest vts a listen delivered for every key, used to drop values that arrive after a newer
+ * one. Keys are interned, so they are compared by identity in an open addressing table that
+ * keeps the vts in a primitive array.
+ *
+ * At most maxKeys keys are tracked; beyond that keys are evicted in table order, which is close
+ * to random. Once keys were evicted, a key that is not tracked falls back to the vts cached for
+ * it in the database, which listen() keeps up to date with what it delivers. A value with that
+ * same vts passes, so a value may be delivered twice but a newer one is never dropped. The
+ * lookup is asynchronous, so that the thread delivering the values never waits for the disk.
+ *
+ * Not thread safe; listen() subscribes to the results one at a time, with concatMap.
+ */
+public class VtsWatermarks {
+  public static final int UNBOUNDED = 0;
+  public static final int DEFAULT_MAX_KEYS = 10000;
+  private static final int INITIAL_CAPACITY = 16;
+  private static final Observable<Boolean> TRUE = Observable.just(true);
+  private static final Observable<Boolean> FALSE = Observable.just(false);
+
+  private final DBManager db;
+  private final int maxKeys;
+  private CSKey[] keys = new CSKey[INITIAL_CAPACITY];
+  private long[] vts = new long[INITIAL_CAPACITY];
+  private int size;
+  //Where the next eviction starts looking for a key
+  private int hand;
+  private boolean evicted;
+
+  public VtsWatermarks(DBManager db, int maxKeys) {
+    this.db = db;
+    this.maxKeys = maxKeys;
+  }
+
+  /**
+   * Emits whether vts is newer than the watermark of the key, and records it if it is. The
+   * watermarks are only read and changed once the result is subscribed to.
+   */
+  public Observable<Boolean> advance(final CSKey csKey, final long newVts) {
+    return Observable.defer(new Func0<Observable<Boolean>>() {
+      @Override public Observable<Boolean> call() {
+        if (!evicted || keys[find(csKey)] == csKey) {
+          return record(csKey, newVts, DBManager.NO_VTS_FOUND) ? TRUE : FALSE;
+        }
+        return db.latestVtsAsync(csKey)
+            .map(new Func1<Long, Boolean>() {
+              @Override public Boolean call(Long cachedVts) {
+                return record(csKey, newVts, cachedVts);
+              }
+            });
+      }
+    });
+  }
+
+  /** Emits the item if vts is newer than the watermark of the key, like advance(). */
+  public <T> Observable<T> ifNewer(final CSKey csKey, final long newVts, final T item) {
+    return advance(csKey, newVts).flatMap(new Func1<Boolean, Observable<T>>() {
+      @Override public Observable<T> call(Boolean newer) {
+        return newer ? Observable.just(item) : Observable.<T>empty();
+      }
+    });
+  }
+
+  //Records vts unless the key has a newer one or, if it is not tracked, floor is newer
+  private boolean record(final CSKey csKey, final long newVts, final long floor) {
+    final int slot = find(csKey);
+    if (keys[slot] == csKey) {
+      if (newVts <= vts[slot]) return false;
+      vts[slot] = newVts;
+      return true;
+    }
+    if (newVts < floor) return false;
+
+    add(csKey, newVts);
+    return true;
+  }
+
+  private void add(final CSKey csKey, final long newVts) {
+    if (maxKeys != UNBOUNDED && size >= maxKeys) {
+      evictOne();
+    } else if ((size + 1) * 4 > keys.length * 3) {
+      resize(keys.length * 2);
+    }
+    final int slot = find(csKey);
+    keys[slot] = csKey;
+    vts[slot] = newVts;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  //Returns the slot of the key, or the empty slot where it belongs
+  private int find(final CSKey csKey) {
+    final int mask = keys.length - 1;
+    int slot = home(csKey, mask);
+    while (keys[slot] != null && keys[slot] != csKey) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static int home(final CSKey csKey, final int mask) {
+    final int h = csKey.hashCode();
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  private void resize(final int capacity) {
+    final CSKey[] oldKeys = keys;
+    final long[] oldVts = vts;
+    keys = new CSKey[capacity];
+    vts = new long[capacity];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        final int slot = find(oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        vts[slot] = oldVts[i];
+      }
+    }
+  }
+
+  private void evictOne() {
+    final int mask = keys.length - 1;
+    while (keys[hand] == null) {
+      hand = (hand + 1) & mask;
+    }
+    remove(hand);
+    evicted = true;
+  }
+
+  //Removes the key in the slot and moves back the keys after it that belong before it
+  private void remove(int slot) {
+    final int mask = keys.length - 1;
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      if (keys[next] == null) break;
+
+      final int home = home(keys[next], mask);
+      final boolean stays = (slot <= next)
+          ? (slot < home && home <= next)
+          : (slot < home || home <= next);
+      if (!stays) {
+        keys[slot] = keys[next];
+        vts[slot] = vts[next];
+        slot = next;
+      }
+    }
+    keys[slot] = null;
+    size--;
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.internals.response.Happy;
+import com.ibm.csync.internals.sqlite.DirtyTableEntry;
+import com.ibm.csync.internals.websocket.CSTransport;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import rx.Observable;
+import rx.Observer;
+import rx.Subscription;
+import rx.functions.Action0;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.subjects.AsyncSubject;
+import rx.subjects.BehaviorSubject;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Sends writes to the server in the order they were made. Every write is kept in the dirty_log
+ * until the server answers it with happy, so writes made while offline, or lost in a crash, are
+ * replayed in cts order the next time the queue is connected. Up to maxInFlight writes are sent
+ * before waiting for their responses. A write that still fails after its retries stays pending
+ * and is sent again after RESEND_DELAY.
+ *
+ * When coalescing, a write that has not been sent yet is dropped as soon as a newer write to the
+ * same key is queued, since the server would overwrite it anyway. Its result is the result of the
+ * write that replaced it.
+ */
+public class WriteQueue {
+  public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+  public static final long RESEND_DELAY = 30000;    //in ms
+
+  private final DBManager db;
+  private final int maxInFlight;
+  private final boolean coalesce;
+  private final BehaviorSubject<Integer> pendingWrites = BehaviorSubject.create(0);
+
+  //Guarded by this
+  private final Map<Long, Entry> entries = new HashMap<>();
+  //The newest write of every key, only used when coalescing
+  private final Map<CSKey, Entry> latest = new HashMap<>();
+  private Subject<Entry, Entry> sends;
+  private Subscription sending = Subscriptions.unsubscribed();
+  //Writes enqueued while the dirty_log is replayed, non null only during the replay
+  private List<Entry> backlog;
+  private Set<Long> replayed;
+
+  public WriteQueue(final DBManager db) {
+    this(db, DEFAULT_MAX_IN_FLIGHT, false);
+  }
+
+  public WriteQueue(final DBManager db, final int maxInFlight, final boolean coalesce) {
+    this.db = db;
+    this.maxInFlight = maxInFlight;
+    this.coalesce = coalesce;
+  }
+
+  /**
+   * Stores the write in the dirty_log and queues it for sending once it is stored. Writes are
+   * queued in the order they were stored in.
+   *
+   * @return emits the server's response once the write is acknowledged
+   */
+  public Observable<Happy> enqueue(final CSValue csValue) {
+    final AsyncSubject<Happy> result = AsyncSubject.create();
+
+    db.addDirty(csValue).subscribe(new Action1<Long>() {
+      @Override public void call(Long id) {
+        queue(new Entry(id, csValue, result));
+      }
+    }, new Action1<Throwable>() {
+      @Override public void call(Throwable throwable) {
+        result.onError(throwable);
+      }
+    });
+    return result.asObservable();
+  }
+
+  private void queue(final Entry entry) {
+    final long id = entry.id;
+    final Entry replaced;
+
+    synchronized (this) {
+      entries.put(id, entry);
+      replaced = supersede(entry);
+      publishPending();
+      if (backlog != null) {
+        backlog.add(entry);
+      } else if (sends != null) {
+        sends.onNext(entry);
+      }
+    }
+    if (replaced != null) {
+      db.deleteDirty(replaced.id);
+    }
+  }
+
+  /** Replays the dirty_log over the given transport and then sends new writes as they come */
+  public void connect(final CSTransport transport) {
+    synchronized (this) {
+      disconnect();
+      this.backlog = new ArrayList<>();
+      this.replayed = new HashSet<>();
+      this.sends = PublishSubject.<Entry>create().toSerialized();
+      final Subject<Entry, Entry> queue = sends;
+      this.sending = sends
+          .onBackpressureBuffer()
+          .flatMap(new Func1<Entry, Observable<Happy>>() {
+            @Override public Observable<Happy> call(Entry entry) {
+              return send(transport, queue, entry);
+            }
+          }, maxInFlight)
+          .subscribe();
+    }
+
+    final Subject<Entry, Entry> replayTo = sends;
+    db.getDirtyData().subscribe(new Observer<DirtyTableEntry>() {
+      @Override public void onNext(DirtyTableEntry dirty) {
+        Entry replaced = null;
+        synchronized (WriteQueue.this) {
+          if (sends != replayTo) return;
+
+          Entry entry = entries.get(dirty.id);
+          if (entry == null) {
+            entry = new Entry(dirty.id, dirty.csValue, AsyncSubject.<Happy>create());
+            entries.put(dirty.id, entry);
+            replaced = supersede(entry);
+          }
+          replayed.add(dirty.id);
+          sends.onNext(entry);
+        }
+        if (replaced != null) {
+          db.deleteDirty(replaced.id);
+        }
+      }
+
+      @Override public void onCompleted() {
+        drainBacklog(replayTo);
+      }
+
+      @Override public void onError(Throwable e) {
+        e.printStackTrace();
+        drainBacklog(replayTo);
+      }
+    });
+  }
+
+  /** Stops sending; unacknowledged writes stay in the dirty_log for the next connect */
+  public synchronized void disconnect() {
+    sending.unsubscribe();
+    sends = null;
+    backlog = null;
+    replayed = null;
+  }
+
+  /** Emits the number of writes that have not been acknowledged by the server yet */
+  public Observable<Integer> pendingWrites() {
+    return pendingWrites.asObservable();
+  }
+
+  private synchronized void drainBacklog(final Subject<Entry, Entry> replayTo) {
+    if (sends != replayTo) return;
+
+    for (final Entry entry : backlog) {
+      if (!replayed.contains(entry.id)) {
+        sends.onNext(entry);
+      }
+    }
+    backlog = null;
+    replayed = null;
+    publishPending();
+  }
+
+  private Observable<Happy> send(final CSTransport transport, final Subject<Entry, Entry> queue,
+      final Entry entry) {
+    return Observable.defer(new Func0<Observable<Happy>>() {
+      @Override public Observable<Happy> call() {
+        synchronized (WriteQueue.this) {
+          if (entry.superseded) {
+            return Observable.empty();
+          }
+          entry.sent = true;
+        }
+        return write(transport, queue, entry);
+      }
+    });
+  }
+
+  private Observable<Happy> write(final CSTransport transport, final Subject<Entry, Entry> queue,
+      final Entry entry) {
+    final CSValue csValue = entry.csValue;
+
+    return Observable.defer(new Func0<Observable<Happy>>() {
+      @Override public Observable<Happy> call() {
+        return transport.write(csValue.key(), csValue.data(), csValue.acl(), csValue.cts());
+      }
+    })
+        .retryWhen(new RetryWithExponentialDelay(3, 1000))
+        .doOnNext(new Action1<Happy>() {
+          @Override public void call(Happy happy) {
+            db.deleteDirty(entry.id);
+            synchronized (WriteQueue.this) {
+              entries.remove(entry.id);
+              if (latest.get(csValue.key()) == entry) {
+                latest.remove(csValue.key());
+              }
+              publishPending();
+            }
+            entry.result.onNext(happy);
+          }
+        })
+        .doOnCompleted(new Action0() {
+          @Override public void call() {
+            entry.result.onCompleted();
+          }
+        })
+        .onErrorResumeNext(new Func1<Throwable, Observable<Happy>>() {
+          @Override public Observable<Happy> call(Throwable throwable) {
+            //The write stays pending, so a newer write may still replace it
+            synchronized (WriteQueue.this) {
+              entry.sent = false;
+            }
+            resendLater(queue, entry);
+            return Observable.empty();
+          }
+        });
+  }
+
+  //Sends the write again unless it was replaced or the queue was disconnected since, in which
+  //case it is replayed on the next connect
+  private void resendLater(final Subject<Entry, Entry> queue, final Entry entry) {
+    Observable.timer(RESEND_DELAY, TimeUnit.MILLISECONDS).subscribe(new Action1<Long>() {
+      @Override public void call(Long tick) {
+        synchronized (WriteQueue.this) {
+          if (sends == queue && entries.get(entry.id) == entry) {
+            sends.onNext(entry);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Drops the unsent write to the same key that entry replaces, if any, and returns it. Its
+   * result completes together with entry's.
+   */
+  private Entry supersede(final Entry entry) {
+    if (!coalesce) return null;
+
+    final CSKey key = entry.csValue.key();
+    final Entry previous = latest.get(key);
+    if (previous != null && previous.csValue.cts() > entry.csValue.cts()) {
+      return null;
+    }
+    latest.put(key, entry);
+    if (previous == null || previous.sent || previous.superseded) {
+      return null;
+    }
+
+    previous.superseded = true;
+    entries.remove(previous.id);
+    entry.result.subscribe(previous.result);
+    return previous;
+  }
+
+  private void publishPending() {
+    pendingWrites.onNext(entries.size());
+  }
+
+  private static final class Entry {
+    final long id;
+    final CSValue csValue;
+    final AsyncSubject<Happy> result;
+    //Guarded by the WriteQueue
+    boolean sent;
+    boolean superseded;
+
+    Entry(final long id, final CSValue csValue, final AsyncSubject<Happy> result) {
+      this.id = id;
+      this.csValue = csValue;
+      this.result = result;
+    }
+  }
+}
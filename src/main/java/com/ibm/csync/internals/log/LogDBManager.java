@@ -0,0 +1,681 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.log;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSKeyPattern;
+import com.ibm.csync.CSLocalQuery;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.acls.CSAcl;
+import com.ibm.csync.internals.CacheConfig;
+import com.ibm.csync.internals.DBManager;
+import com.ibm.csync.internals.LocalQueries;
+import com.ibm.csync.internals.Metrics;
+import com.ibm.csync.internals.sqlite.DirtyTableEntry;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import rx.Observable;
+import rx.functions.Func0;
+import rx.functions.Func1;
+
+/**
+ * A DBManager for plain JVMs that keeps the cache in an append-only log of memory mapped segment
+ * files. Every change is appended as a record and an in-memory index points at the newest record
+ * of every key, pending write and rvts; values are only read from the segments when they are
+ * emitted. Records that no longer count are dropped by compaction, which evict() runs once they
+ * take up more of the log than the live ones.
+ *
+ * Records are not forced to disk as they are written. They survive a crash of the process, but
+ * the newest ones may be lost if the machine goes down before closeDB() or the next segment.
+ */
+public class LogDBManager implements DBManager {
+  public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+  private static final String SEGMENT_PREFIX = "segment-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  //DATA: path, vts, cts, deleted, acl, data
+  private static final byte DATA = 1;
+  //REMOVE: path, vts
+  private static final byte REMOVE = 2;
+  //RVTS: pattern, rvts; an rvts of NO_RVTS_FOUND forgets the pattern
+  private static final byte RVTS = 3;
+  //DIRTY: id, cts, path, vts, acl, data
+  private static final byte DIRTY = 4;
+  //UNDIRTY: id
+  private static final byte UNDIRTY = 5;
+
+  private final File directory;
+  private final CacheConfig config;
+  private final Metrics metrics;
+  private final int segmentSize;
+  private final List<Segment> segments = new ArrayList<>();
+  private final RecordBuffer record = new RecordBuffer();
+  private final CRC32 crc = new CRC32();
+  private Segment current;
+
+  //The index, guarded by this
+  private final Map<CSKey, Value> values = new HashMap<>();
+  private final Map<Long, Value> valuesByVts = new HashMap<>();
+  private final Map<String, Rvts> rvts = new HashMap<>();
+  private final Map<Long, Dirty> dirty = new HashMap<>();
+  private long nextDirtyId = 1;
+  //Bytes of the records the index points at, and of every record in the log
+  private long liveBytes;
+  private long totalBytes;
+
+  public LogDBManager(File directory) {
+    this(directory, new CacheConfig(), new Metrics());
+  }
+
+  public LogDBManager(File directory, CacheConfig config, Metrics metrics) {
+    this(directory, config, metrics, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public LogDBManager(File directory, CacheConfig config, Metrics metrics, int segmentSize) {
+    this.directory = directory;
+    this.config = config;
+    this.metrics = metrics;
+    this.segmentSize = segmentSize;
+
+    try {
+      open();
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot open the log in " + directory, e);
+    }
+  }
+
+  private void open() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+
+    final File[] files = directory.listFiles(new FilenameFilter() {
+      @Override public boolean accept(File dir, String name) {
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    final List<Long> numbers = new ArrayList<>();
+    for (final File file : files) {
+      final String name = file.getName();
+      numbers.add(Long.parseLong(
+          name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+    }
+    Collections.sort(numbers);
+
+    final Segment.Visitor replay = new Segment.Visitor() {
+      @Override public void visit(Segment segment, int offset, ByteBuffer body) {
+        replay(segment, offset, body);
+      }
+    };
+    for (final long number : numbers) {
+      final Segment segment = Segment.open(segmentFile(number), number);
+      segment.scan(replay, crc);
+      segments.add(segment);
+    }
+
+    liveBytes = 0;
+    for (final Value value : values.values()) {
+      liveBytes += value.size;
+    }
+    for (final Dirty entry : dirty.values()) {
+      liveBytes += entry.size;
+    }
+    for (final Rvts entry : rvts.values()) {
+      liveBytes += entry.size;
+    }
+
+    if (segments.isEmpty()) {
+      roll(0);
+    } else {
+      current = segments.get(segments.size() - 1);
+    }
+  }
+
+  //Applies a record read while opening the log to the index
+  private void replay(final Segment segment, final int offset, final ByteBuffer body) {
+    final int size = Segment.RECORD_HEADER_SIZE + body.remaining();
+    totalBytes += size;
+
+    switch (body.get()) {
+      case DATA: {
+        final CSKey key = CSKey.fromString(RecordBuffer.getString(body));
+        final long vts = body.getLong();
+        final long cts = body.getLong();
+        final boolean deleted = body.get() != 0;
+        final Value existing = values.get(key);
+        if (existing == null || existing.vts < vts) {
+          if (existing != null) {
+            removeValue(existing);
+          }
+          putValue(new Value(key, vts, cts, deleted, segment, offset, size));
+        }
+        break;
+      }
+      case REMOVE: {
+        final CSKey key = CSKey.fromString(RecordBuffer.getString(body));
+        final Value existing = values.get(key);
+        if (existing != null && existing.vts == body.getLong()) {
+          removeValue(existing);
+        }
+        break;
+      }
+      case RVTS: {
+        final String pattern = RecordBuffer.getString(body);
+        final long value = body.getLong();
+        if (value == NO_RVTS_FOUND) {
+          rvts.remove(pattern);
+        } else {
+          rvts.put(pattern, new Rvts(value, size));
+        }
+        break;
+      }
+      case DIRTY: {
+        final long id = body.getLong();
+        dirty.put(id, new Dirty(id, body.getLong(), segment, offset, size));
+        nextDirtyId = Math.max(nextDirtyId, id + 1);
+        break;
+      }
+      case UNDIRTY:
+        dirty.remove(body.getLong());
+        break;
+      default:
+        //Written by a newer version, nothing this one can do with it
+    }
+  }
+
+  /* rvts_log operations */
+
+  @Override public Observable<List<Long>> vtsToFetch(final List<Long> vts) {
+    return Observable.defer(new Func0<Observable<List<Long>>>() {
+      @Override public Observable<List<Long>> call() {
+        final Set<Long> missing = new LinkedHashSet<>(vts);
+        synchronized (LogDBManager.this) {
+          missing.removeAll(valuesByVts.keySet());
+        }
+        return Observable.<List<Long>>just(new ArrayList<>(missing));
+      }
+    });
+  }
+
+  @Override public synchronized long getRvts(CSKey csKey) {
+    final Rvts entry = rvts.get(csKey.toString());
+    return entry == null ? NO_RVTS_FOUND : entry.rvts;
+  }
+
+  @Override public Observable<Long> getRvtsAsync(final CSKey csKey) {
+    return Observable.defer(new Func0<Observable<Long>>() {
+      @Override public Observable<Long> call() {
+        return Observable.just(getRvts(csKey));
+      }
+    });
+  }
+
+  @Override public synchronized void upsertRvts(CSKey csKey, long value) {
+    writeRvts(csKey.toString(), value);
+  }
+
+  private void writeRvts(final String pattern, final long value) {
+    final int size = append(record.begin(RVTS).putString(pattern).putLong(value).finish()).size;
+
+    final Rvts previous = (value == NO_RVTS_FOUND)
+        ? rvts.remove(pattern)
+        : rvts.put(pattern, new Rvts(value, size));
+    if (previous != null) {
+      liveBytes -= previous.size;
+    }
+    if (value != NO_RVTS_FOUND) {
+      liveBytes += size;
+    }
+  }
+
+  /* data_log operations */
+
+  //Only the newest vts of a key is kept, an older or equal vts is ignored
+  @Override public synchronized void addData(CSValue csValue) {
+    final Value existing = values.get(csValue.key());
+    if (existing != null && existing.vts >= csValue.vts()) {
+      return;
+    }
+
+    final Location at = append(record.begin(DATA)
+        .putString(csValue.key().toString())
+        .putLong(csValue.vts())
+        .putLong(csValue.cts())
+        .putByte(csValue.isKeyDeleted() ? (byte) 1 : (byte) 0)
+        .putString(csValue.acl() == null ? null : csValue.acl().rawAcl())
+        .putString(csValue.data())
+        .finish());
+
+    if (existing != null) {
+      removeValue(existing);
+    }
+    putValue(new Value(csValue.key(), csValue.vts(), csValue.cts(), csValue.isKeyDeleted(),
+        at.segment, at.offset, at.size));
+    liveBytes += at.size;
+  }
+
+  //Emits the live values matching csKey, newest vts first
+  @Override public Observable<CSValue> cachedValues(final CSKey csKey, final long maxVts) {
+    return Observable.defer(new Func0<Observable<CSValue>>() {
+      @Override public Observable<CSValue> call() {
+        final CSKeyPattern pattern = CSKeyPattern.compile(csKey);
+        final List<Value> matching = new ArrayList<>();
+        synchronized (LogDBManager.this) {
+          for (final Value value : values.values()) {
+            if (!value.deleted && value.vts <= maxVts && pattern.matches(value.key)) {
+              matching.add(value);
+            }
+          }
+        }
+        Collections.sort(matching, new Comparator<Value>() {
+          @Override public int compare(Value v0, Value v1) {
+            return v0.vts < v1.vts ? 1 : (v0.vts == v1.vts ? 0 : -1);
+          }
+        });
+
+        return Observable.from(matching)
+            .map(new Func1<Value, CSValue>() {
+              @Override public CSValue call(Value value) {
+                return read(value);
+              }
+            })
+            .filter(new Func1<CSValue, Boolean>() {
+              @Override public Boolean call(CSValue csValue) {
+                return csValue != null;
+              }
+            });
+      }
+    });
+  }
+
+  @Override public Observable<CSValue> query(final CSLocalQuery query) {
+    return LocalQueries.limit(Observable.defer(new Func0<Observable<CSValue>>() {
+      @Override public Observable<CSValue> call() {
+        final CSKeyPattern pattern = CSKeyPattern.compile(query.key());
+        final List<Value> matching = new ArrayList<>();
+        synchronized (LogDBManager.this) {
+          for (final Value value : values.values()) {
+            if (!value.deleted && query.inRange(value.vts, value.cts)
+                && pattern.matches(value.key)) {
+              matching.add(value);
+            }
+          }
+        }
+        Collections.sort(matching, new Comparator<Value>() {
+          @Override public int compare(Value v0, Value v1) {
+            return LocalQueries.compare(query.order(), v0.vts, v0.cts, v1.vts, v1.cts);
+          }
+        });
+
+        return Observable.from(matching)
+            .map(new Func1<Value, CSValue>() {
+              @Override public CSValue call(Value value) {
+                return read(value);
+              }
+            })
+            .filter(new Func1<CSValue, Boolean>() {
+              @Override public Boolean call(CSValue csValue) {
+                return csValue != null;
+              }
+            });
+      }
+    }), query);
+  }
+
+  @Override public synchronized long latestVts(CSKey csKey) {
+    final Value value = values.get(csKey);
+    return value == null ? NO_VTS_FOUND : value.vts;
+  }
+
+  @Override public Observable<Long> latestVtsAsync(final CSKey csKey) {
+    return Observable.defer(new Func0<Observable<Long>>() {
+      @Override public Observable<Long> call() {
+        return Observable.just(latestVts(csKey));
+      }
+    });
+  }
+  @Override public Observable<List<Long>> latestVtsAsync(final List<CSKey> csKeys) {
+    return Observable.defer(new Func0<Observable<List<Long>>>() {
+      @Override public Observable<List<Long>> call() {
+        final List<Long> vts = new ArrayList<>(csKeys.size());
+        for (final CSKey csKey : csKeys) {
+          vts.add(latestVts(csKey));
+        }
+        return Observable.just(vts);
+      }
+    });
+  }
+
+
+  //Returns null if the value was replaced or evicted since it was found
+  private synchronized CSValue read(final Value value) {
+    if (values.get(value.key) != value) {
+      return null;
+    }
+    value.lastRead = System.currentTimeMillis();
+
+    final ByteBuffer body = value.segment.read(value.offset);
+    body.get();
+    RecordBuffer.skipString(body);
+    final long vts = body.getLong();
+    final long cts = body.getLong();
+    final boolean deleted = body.get() != 0;
+    final String acl = RecordBuffer.getString(body);
+    final String data = RecordBuffer.getString(body);
+    return new CSValue(value.key, data, cts, vts, CSAcl.customAcl(acl), deleted);
+  }
+
+  /* dirty_log operations */
+
+  @Override public Observable<Long> addDirty(final CSValue csValue) {
+    return Observable.defer(new Func0<Observable<Long>>() {
+      @Override public Observable<Long> call() {
+        synchronized (LogDBManager.this) {
+          final long id = nextDirtyId++;
+          final Location at = append(record.begin(DIRTY)
+              .putLong(id)
+              .putLong(csValue.cts())
+              .putString(csValue.key().toString())
+              .putLong(csValue.vts())
+              .putString(csValue.acl() == null ? null : csValue.acl().rawAcl())
+              .putString(csValue.data())
+              .finish());
+          dirty.put(id, new Dirty(id, csValue.cts(), at.segment, at.offset, at.size));
+          liveBytes += at.size;
+          return Observable.just(id);
+        }
+      }
+    });
+  }
+
+  @Override public synchronized void deleteDirty(long id) {
+    final Dirty entry = dirty.remove(id);
+    if (entry != null) {
+      append(record.begin(UNDIRTY).putLong(id).finish());
+      liveBytes -= entry.size;
+    }
+  }
+
+  //Emits the pending writes by cts, then id
+  @Override public Observable<DirtyTableEntry> getDirtyData() {
+    return Observable.defer(new Func0<Observable<DirtyTableEntry>>() {
+      @Override public Observable<DirtyTableEntry> call() {
+        final List<Dirty> pending;
+        synchronized (LogDBManager.this) {
+          pending = new ArrayList<>(dirty.values());
+        }
+        Collections.sort(pending, new Comparator<Dirty>() {
+          @Override public int compare(Dirty d0, Dirty d1) {
+            if (d0.cts != d1.cts) return d0.cts < d1.cts ? -1 : 1;
+            return d0.id < d1.id ? -1 : (d0.id == d1.id ? 0 : 1);
+          }
+        });
+
+        return Observable.from(pending)
+            .map(new Func1<Dirty, DirtyTableEntry>() {
+              @Override public DirtyTableEntry call(Dirty entry) {
+                return read(entry);
+              }
+            })
+            .filter(new Func1<DirtyTableEntry, Boolean>() {
+              @Override public Boolean call(DirtyTableEntry entry) {
+                return entry != null;
+              }
+            });
+      }
+    });
+  }
+
+  //Returns null if the write was acknowledged since it was found
+  private synchronized DirtyTableEntry read(final Dirty entry) {
+    if (dirty.get(entry.id) != entry) {
+      return null;
+    }
+
+    final ByteBuffer body = entry.segment.read(entry.offset);
+    body.get();
+    final long id = body.getLong();
+    final long cts = body.getLong();
+    final CSKey key = CSKey.fromString(RecordBuffer.getString(body));
+    final long vts = body.getLong();
+    final String acl = RecordBuffer.getString(body);
+    final String data = RecordBuffer.getString(body);
+    return new DirtyTableEntry(id, new CSValue(key, data, cts, vts, CSAcl.customAcl(acl), false));
+  }
+
+  /* cache maintenance */
+
+  //A tombstone older than every rvts will never be asked for by an advance again
+  @Override public synchronized void collectTombstones() {
+    if (rvts.isEmpty()) return;
+
+    long minRvts = Long.MAX_VALUE;
+    for (final Rvts entry : rvts.values()) {
+      minRvts = Math.min(minRvts, entry.rvts);
+    }
+    for (final Value value : new ArrayList<>(values.values())) {
+      if (value.deleted && value.vts < minRvts) {
+        writeRemove(value);
+      }
+    }
+  }
+
+  @Override public synchronized void evict() {
+    final long now = System.currentTimeMillis();
+    final List<CSKey> evicted = new ArrayList<>();
+
+    final List<Value> leastRecentlyRead = new ArrayList<>(values.values());
+    Collections.sort(leastRecentlyRead, new Comparator<Value>() {
+      @Override public int compare(Value v0, Value v1) {
+        return v0.lastRead < v1.lastRead ? -1 : (v0.lastRead == v1.lastRead ? 0 : 1);
+      }
+    });
+
+    for (final Value value : leastRecentlyRead) {
+      final boolean expired = config.ttl > 0 && value.lastRead < now - config.ttl;
+      final boolean tooMany = config.maxRows > 0 && values.size() > config.maxRows;
+      final boolean tooLarge = config.maxBytes > 0 && liveBytes > config.maxBytes;
+      if (!expired && !tooMany && !tooLarge) continue;
+
+      writeRemove(value);
+      evicted.add(value.key);
+    }
+    resetRvts(evicted);
+
+    if (totalBytes - liveBytes > Math.max(liveBytes, segmentSize)) {
+      compact();
+    }
+
+    metrics.cacheEvictions.addAndGet(evicted.size());
+    metrics.cacheRows.set(values.size());
+    metrics.cacheBytes.set(totalBytes);
+  }
+
+  //Forgets the rvts of every pattern matching one of the keys, so their next advance asks the
+  //server for everything again and the evicted values are fetched if they are needed.
+  private void resetRvts(final List<CSKey> keys) {
+    if (keys.isEmpty()) return;
+
+    for (final String pattern : new ArrayList<>(rvts.keySet())) {
+      final CSKeyPattern patternKey = CSKeyPattern.compile(CSKey.fromString(pattern));
+      for (final CSKey key : keys) {
+        if (patternKey.matches(key)) {
+          writeRvts(pattern, NO_RVTS_FOUND);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies the records the index points at into new segments and deletes the old ones. Opening
+   * a log where compaction was cut short replays the copies after the originals, which leaves
+   * the index as it was.
+   */
+  synchronized void compact() {
+    final List<Segment> old = new ArrayList<>(segments);
+    roll(0);
+
+    for (final Value value : values.values()) {
+      final Location at = append(record.copy(value.segment.read(value.offset)).finish());
+      value.segment = at.segment;
+      value.offset = at.offset;
+    }
+    for (final Dirty entry : dirty.values()) {
+      final Location at = append(record.copy(entry.segment.read(entry.offset)).finish());
+      entry.segment = at.segment;
+      entry.offset = at.offset;
+    }
+    for (final Map.Entry<String, Rvts> entry : rvts.entrySet()) {
+      append(record.begin(RVTS).putString(entry.getKey()).putLong(entry.getValue().rvts)
+          .finish());
+    }
+
+    try {
+      for (final Segment segment : segments) {
+        if (!old.contains(segment)) {
+          segment.force();
+        }
+      }
+      for (final Segment segment : old) {
+        segment.delete();
+        totalBytes -= segment.end() - Segment.HEADER_SIZE;
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot compact the log in " + directory, e);
+    }
+    segments.removeAll(old);
+  }
+
+  @Override public synchronized void closeDB() {
+    try {
+      for (final Segment segment : segments) {
+        segment.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot close the log in " + directory, e);
+    }
+  }
+
+  private void writeRemove(final Value value) {
+    append(record.begin(REMOVE).putString(value.key.toString()).putLong(value.vts).finish());
+    removeValue(value);
+  }
+
+  private void putValue(final Value value) {
+    values.put(value.key, value);
+    valuesByVts.put(value.vts, value);
+  }
+
+  private void removeValue(final Value value) {
+    values.remove(value.key);
+    valuesByVts.remove(value.vts);
+    liveBytes -= value.size;
+  }
+
+  private Location append(final ByteBuffer body) {
+    final int size = Segment.RECORD_HEADER_SIZE + body.remaining();
+    int offset = current.append(body, crc);
+    if (offset < 0) {
+      current.force();
+      roll(size);
+      offset = current.append(body, crc);
+    }
+    totalBytes += size;
+    return new Location(current, offset, size);
+  }
+
+  //Starts a new segment with room for at least one record of recordSize bytes
+  private void roll(final int recordSize) {
+    final long number = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).number + 1;
+    try {
+      current = Segment.create(segmentFile(number), number,
+          Math.max(segmentSize, Segment.HEADER_SIZE + recordSize));
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot grow the log in " + directory, e);
+    }
+    segments.add(current);
+  }
+
+  private File segmentFile(final long number) {
+    return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+  }
+
+  private static class Location {
+    Segment segment;
+    int offset;
+    final int size;
+
+    Location(final Segment segment, final int offset, final int size) {
+      this.segment = segment;
+      this.offset = offset;
+      this.size = size;
+    }
+  }
+
+  /** The newest record of a key */
+  private static final class Value extends Location {
+    final CSKey key;
+    final long vts;
+    final long cts;
+    final boolean deleted;
+    long lastRead = System.currentTimeMillis();
+
+    Value(final CSKey key, final long vts, final long cts, final boolean deleted,
+        final Segment segment, final int offset, final int size) {
+      super(segment, offset, size);
+      this.key = key;
+      this.vts = vts;
+      this.cts = cts;
+      this.deleted = deleted;
+    }
+  }
+
+  /** A write waiting for the server */
+  private static final class Dirty extends Location {
+    final long id;
+    final long cts;
+
+    Dirty(final long id, final long cts, final Segment segment, final int offset,
+        final int size) {
+      super(segment, offset, size);
+      this.id = id;
+      this.cts = cts;
+    }
+  }
+
+  private static final class Rvts {
+    final long rvts;
+    final int size;
+
+    Rvts(final long rvts, final int size) {
+      this.rvts = rvts;
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Builds the body of a record in a scratch buffer that is reused for every record. Strings are
+ * written as their UTF-8 length followed by the bytes, a length of -1 stands for null.
+ */
+final class RecordBuffer {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private ByteBuffer buffer = ByteBuffer.allocate(1024);
+
+  RecordBuffer begin(final byte type) {
+    buffer.clear();
+    buffer.put(type);
+    return this;
+  }
+
+  RecordBuffer putByte(final byte b) {
+    ensure(1);
+    buffer.put(b);
+    return this;
+  }
+
+  RecordBuffer putLong(final long l) {
+    ensure(8);
+    buffer.putLong(l);
+    return this;
+  }
+
+  RecordBuffer putString(final String s) {
+    if (s == null) {
+      ensure(4);
+      buffer.putInt(-1);
+    } else {
+      final byte[] bytes = s.getBytes(UTF8);
+      ensure(4 + bytes.length);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+    }
+    return this;
+  }
+
+  /** Copies the remaining bytes of an existing body */
+  RecordBuffer copy(final ByteBuffer body) {
+    buffer.clear();
+    ensure(body.remaining());
+    buffer.put(body);
+    return this;
+  }
+
+  /** Returns the body, valid until the next call to begin() or copy() */
+  ByteBuffer finish() {
+    buffer.flip();
+    return buffer;
+  }
+
+  static void skipString(final ByteBuffer body) {
+    final int length = body.getInt();
+    if (length > 0) {
+      body.position(body.position() + length);
+    }
+  }
+
+  static String getString(final ByteBuffer body) {
+    final int length = body.getInt();
+    if (length < 0) {
+      return null;
+    }
+    final byte[] bytes = new byte[length];
+    body.get(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  private void ensure(final int bytes) {
+    if (buffer.remaining() < bytes) {
+      final ByteBuffer grown =
+          ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+    }
+  }
+}
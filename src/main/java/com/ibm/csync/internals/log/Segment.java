@@ -0,0 +1,206 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * One memory mapped file of the log. Records are only ever appended after the last one:
+ *
+ * [int length][int crc32 of body][body of length bytes]
+ *
+ * The file is created at its full capacity, so the zeroes after the last record read as a
+ * record of length 0 and mark the end. A record cut short by a crash fails its checksum and
+ * ends the segment as well.
+ */
+final class Segment {
+  private static final int MAGIC = 0x43534c47;
+  private static final int VERSION = 1;
+  static final int HEADER_SIZE = 8;
+  static final int RECORD_HEADER_SIZE = 8;
+
+  interface Visitor {
+    void visit(Segment segment, int offset, ByteBuffer body);
+  }
+
+  final File file;
+  final long number;
+  private final RandomAccessFile raf;
+  private final MappedByteBuffer buffer;
+  private int end;
+
+  private Segment(final File file, final long number, final RandomAccessFile raf,
+      final MappedByteBuffer buffer) {
+    this.file = file;
+    this.number = number;
+    this.raf = raf;
+    this.buffer = buffer;
+  }
+
+  static Segment create(final File file, final long number, final int capacity)
+      throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(capacity);
+    final Segment segment = new Segment(file, number, raf,
+        raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+    segment.buffer.putInt(0, MAGIC);
+    segment.buffer.putInt(4, VERSION);
+    segment.end = HEADER_SIZE;
+    return segment;
+  }
+
+  /** Opens an existing segment, scan() finds where it ends */
+  static Segment open(final File file, final long number) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    final Segment segment = new Segment(file, number, raf,
+        raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+    if (raf.length() < HEADER_SIZE || segment.buffer.getInt(0) != MAGIC
+        || segment.buffer.getInt(4) != VERSION) {
+      raf.close();
+      throw new IOException("Not a log segment: " + file);
+    }
+    segment.end = HEADER_SIZE;
+    return segment;
+  }
+
+  int capacity() {
+    return buffer.capacity();
+  }
+
+  /** Bytes used by the header and the records */
+  int end() {
+    return end;
+  }
+
+  /**
+   * Appends the bytes between position and limit of body as a record.
+   *
+   * @return the offset of the record or -1 if it does not fit
+   */
+  int append(final ByteBuffer body, final CRC32 crc) {
+    final int length = body.remaining();
+    if (end + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+      return -1;
+    }
+
+    crc.reset();
+    crc.update(body.array(), body.arrayOffset() + body.position(), length);
+
+    final int offset = end;
+    final ByteBuffer out = buffer.duplicate();
+    out.position(offset + RECORD_HEADER_SIZE);
+    out.put(body);
+    //The length goes in last, so a torn write never looks like a complete record
+    buffer.putInt(offset + 4, (int) crc.getValue());
+    buffer.putInt(offset, length);
+    end = offset + RECORD_HEADER_SIZE + length;
+    return offset;
+  }
+
+  /** Returns the body of the record at offset */
+  ByteBuffer read(final int offset) {
+    final ByteBuffer body = buffer.duplicate();
+    final int start = offset + RECORD_HEADER_SIZE;
+    body.limit(start + buffer.getInt(offset));
+    body.position(start);
+    return body.slice();
+  }
+
+  /** Visits every intact record and sets the end of the segment after the last one */
+  void scan(final Visitor visitor, final CRC32 crc) {
+    byte[] scratch = new byte[256];
+    int offset = HEADER_SIZE;
+    while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+      final int length = buffer.getInt(offset);
+      if (length <= 0 || offset + RECORD_HEADER_SIZE + length > buffer.capacity()) break;
+
+      if (scratch.length < length) {
+        scratch = new byte[Math.max(length, scratch.length * 2)];
+      }
+      final ByteBuffer body = read(offset);
+      body.get(scratch, 0, length);
+      crc.reset();
+      crc.update(scratch, 0, length);
+      if ((int) crc.getValue() != buffer.getInt(offset + 4)) break;
+
+      body.rewind();
+      visitor.visit(this, offset, body);
+      offset += RECORD_HEADER_SIZE + length;
+    }
+    end = offset;
+  }
+
+  void force() {
+    buffer.force();
+  }
+
+  void close() throws IOException {
+    force();
+    raf.close();
+  }
+
+  /** Deletes the file and unmaps it; nothing may be read from the segment afterwards */
+  void delete() throws IOException {
+    raf.close();
+    unmap(buffer);
+    if (!file.delete()) {
+      throw new IOException("Cannot delete " + file);
+    }
+  }
+
+  //Releases the mapping now instead of once the buffer is garbage collected. There is no public
+  //API for it, so the platform's own is looked up, leaving the mapping to the collector if none
+  //is found.
+  private static void unmap(final MappedByteBuffer buffer) {
+    try {
+      //Android
+      Class.forName("java.nio.NioUtils").getMethod("freeDirectBuffer", ByteBuffer.class)
+          .invoke(null, buffer);
+      return;
+    } catch (Exception | LinkageError e) {
+      //not available
+    }
+    try {
+      //Java 9 and later
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+          .invoke(theUnsafe.get(null), buffer);
+      return;
+    } catch (Exception | LinkageError e) {
+      //not available
+    }
+    try {
+      //Java 8 and earlier
+      final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+      cleanerMethod.setAccessible(true);
+      final Object cleaner = cleanerMethod.invoke(buffer);
+      cleaner.getClass().getMethod("clean").invoke(cleaner);
+    } catch (Exception | LinkageError e) {
+      //not available
+    }
+  }
+}
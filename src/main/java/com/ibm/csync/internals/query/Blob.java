@@ -0,0 +1,52 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.query;
+
+import java.util.Arrays;
+
+/** A BLOB value in a query, written as a hex literal: X'0a1b' */
+public final class Blob {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  public final byte[] bytes;
+
+  public Blob(final byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(bytes);
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    return obj instanceof Blob && Arrays.equals(bytes, ((Blob) obj).bytes);
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder(bytes.length * 2 + 3);
+    sb.append("X'");
+    for (final byte b : bytes) {
+      sb.append(HEX[(b >> 4) & 0xf]);
+      sb.append(HEX[b & 0xf]);
+    }
+    sb.append("'");
+    return sb.toString();
+  }
+}
@@ -47,17 +47,17 @@ public final class OrderBy extends Query {
     query.fill(sb);
     if (fields.length > 0) {
       sb.append(" ORDER BY ");
+      //The direction applies to every field, not only to the last one
       visit(fields, new Action1<String>() {
         @Override public void call(String s) {
           sb.append(s);
+          sb.append(desc ? " DESC" : " ASC");
         }
       }, new Runnable() {
         @Override public void run() {
           sb.append(",");
         }
       });
-
-      sb.append(desc ? " DESC" : " ASC");
     }
     return sb;
   }
@@ -38,14 +38,26 @@ public abstract class Predicate extends Query {
     return new Eq(name, value);
   }
 
+  public static Predicate eq(final String name, final Object value) {
+    return new BinaryTerm("=", name, value);
+  }
+
   public static Predicate le(final String name, final Object value) {
     return new BinaryTerm("<=", name, value);
   }
 
+  public static Predicate lt(final String name, final Object value) {
+    return new BinaryTerm("<", name, value);
+  }
+
   public static Predicate gt(final String name, final Object value) {
     return new BinaryTerm(">", name, value);
   }
 
+  public static Predicate ge(final String name, final Object value) {
+    return new BinaryTerm(">=", name, value);
+  }
+
   public static Predicate empty() {
     return new Empty();
   }
@@ -72,6 +84,16 @@ public abstract class Predicate extends Query {
     }
   }
 
+  public Predicate or(final Predicate p) {
+    if (isEmpty()) {
+      return p;
+    } else if (p.isEmpty()) {
+      return this;
+    } else {
+      return new Or(this, p);
+    }
+  }
+
   public StringBuffer paran(final StringBuffer sb) {
     sb.append("(");
     fill(sb);
@@ -40,6 +40,9 @@ public final class Where extends Query {
   @Override
   public StringBuffer fill(final StringBuffer sb) {
     from.fill(sb);
+    if (pred.isEmpty()) {
+      return sb;
+    }
     sb.append(" where ");
     return pred.fill(sb);
   }
@@ -51,10 +51,14 @@ public class CSValueDeserializer implements JsonDeserializer<CSValue> {
   }
 
   private CSKey jsonArraytoCSKey(JsonArray array) {
-    CSKey key = CSKey.root;
-    for (int i = 0; i < array.size(); i++) {
-      key = key.child(array.get(i).getAsString());
+    try {
+      CSKey key = CSKey.root;
+      for (int i = 0; i < array.size(); i++) {
+        key = key.child(array.get(i).getAsString());
+      }
+      return key;
+    } catch (IllegalArgumentException e) {
+      throw new JsonParseException(e);
     }
-    return key;
   }
 }
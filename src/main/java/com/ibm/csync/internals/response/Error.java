@@ -20,6 +20,10 @@ public class Error extends CSResponse {
   String msg;
   String cause;
 
+  public String msg() {
+    return msg;
+  }
+
   @Override
   public Kind getKind() {
     return Kind.error;
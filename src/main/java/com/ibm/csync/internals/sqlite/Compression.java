@@ -0,0 +1,77 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.sqlite;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Deflates the data of large values before they are written to the cache */
+final class Compression {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int BUFFER_SIZE = 8192;
+
+  private Compression() {
+    throw new AssertionError();
+  }
+
+  /** Returns the deflated UTF-8 bytes of data, or null if that would not save any space */
+  static byte[] deflate(final String data) {
+    final byte[] raw = data.getBytes(UTF_8);
+    final Deflater deflater = new Deflater();
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2);
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      while (!deflater.finished()) {
+        out.write(buffer, 0, deflater.deflate(buffer));
+        if (out.size() >= raw.length) {
+          return null;
+        }
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  static String inflate(final byte[] compressed) {
+    final Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      while (!inflater.finished()) {
+        final int n = inflater.inflate(buffer);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IllegalStateException("Truncated compressed value");
+        }
+        out.write(buffer, 0, n);
+      }
+      return new String(out.toByteArray(), UTF_8);
+    } catch (DataFormatException e) {
+      throw new IllegalStateException("Corrupt compressed value", e);
+    } finally {
+      inflater.end();
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.sqlite;
+
+import android.database.Cursor;
+import java.util.concurrent.atomic.AtomicLong;
+import rx.Observable;
+import rx.Producer;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.internal.operators.BackpressureUtils;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Streams rows out of the cache one page at a time using keyset pagination. A page is only
+ * queried once the subscriber has requested more values than the open page could deliver, and
+ * the open cursor is closed as soon as the subscriber unsubscribes.
+ */
+abstract class CursorOnSubscribe<T> implements Observable.OnSubscribe<T> {
+  private final int pageSize;
+
+  CursorOnSubscribe(final int pageSize) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+    }
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Opens a cursor over the page that follows {@code last} in the stream order.
+   *
+   * @param last the last value emitted, or null for the first page
+   * @param pageSize the maximum number of rows the page may hold
+   */
+  abstract Cursor openPage(T last, int pageSize);
+
+  /** Reads the row at the current position of the cursor */
+  abstract T read(Cursor cursor);
+
+  /**
+   * Returns whether a value read from the cursor is emitted. Rejected rows still count towards
+   * the page and move the keyset forward.
+   */
+  boolean accept(T row) {
+    return true;
+  }
+
+  /**
+   * Called once a page has been closed after at least one of its rows was emitted.
+   *
+   * @param first the first value emitted from the page
+   * @param last the last value emitted from the page
+   */
+  void onPageRead(T first, T last) {
+  }
+
+  @Override public void call(final Subscriber<? super T> subscriber) {
+    final PageProducer producer = new PageProducer(subscriber);
+    subscriber.add(Subscriptions.create(new Action0() {
+      @Override public void call() {
+        producer.cancel();
+      }
+    }));
+    subscriber.setProducer(producer);
+  }
+
+  /**
+   * The value of this AtomicLong is the outstanding demand. Whoever moves it away from zero owns
+   * the cursor until the demand is drained back to zero.
+   */
+  private final class PageProducer extends AtomicLong implements Producer {
+    private static final long serialVersionUID = 1L;
+
+    private final Subscriber<? super T> subscriber;
+    private Cursor cursor;
+    private T first;
+    private T last;
+    private int rowsInPage;
+    private boolean done;
+    private volatile boolean cancelled;
+
+    PageProducer(final Subscriber<? super T> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override public void request(final long n) {
+      if (n < 0) {
+        throw new IllegalArgumentException("n >= 0 required but it was " + n);
+      }
+      if (n == 0 || BackpressureUtils.getAndAddRequest(this, n) != 0) {
+        return;
+      }
+      drain(n);
+    }
+
+    void cancel() {
+      cancelled = true;
+      // If nobody is draining, claim the cursor so it can be closed from here. Otherwise the
+      // draining thread sees the extra demand, loops again and closes it on our behalf.
+      if (BackpressureUtils.getAndAddRequest(this, 1) == 0) {
+        closeCursor();
+      }
+    }
+
+    private void drain(long requested) {
+      try {
+        while (true) {
+          long emitted = 0;
+          while (emitted != requested) {
+            if (cancelled || done) {
+              closeCursor();
+              return;
+            }
+            if (cursor == null) {
+              cursor = openPage(last, pageSize);
+              rowsInPage = 0;
+            }
+            if (cursor.moveToNext()) {
+              last = read(cursor);
+              if (rowsInPage == 0) {
+                first = last;
+              }
+              rowsInPage++;
+              if (accept(last)) {
+                emitted++;
+                subscriber.onNext(last);
+              }
+            } else {
+              final boolean fullPage = rowsInPage == pageSize;
+              closeCursor();
+              if (!fullPage) {
+                done = true;
+                subscriber.onCompleted();
+                return;
+              }
+            }
+          }
+
+          if (cancelled) {
+            closeCursor();
+            return;
+          }
+          if (requested == Long.MAX_VALUE) {
+            continue;
+          }
+          requested = addAndGet(-emitted);
+          if (requested == 0) {
+            return;
+          }
+        }
+      } catch (RuntimeException e) {
+        closeCursor();
+        done = true;
+        subscriber.onError(e);
+      }
+    }
+
+    private void closeCursor() {
+      if (cursor != null) {
+        cursor.close();
+        cursor = null;
+        if (rowsInPage > 0) {
+          onPageRead(first, last);
+        }
+      }
+    }
+  }
+}
@@ -28,57 +28,94 @@ final class DataTable {
     static final String TABLE_NAME = "data_log";
     private static final String TEXT_TYPE = " TEXT";
     private static final String INT_TYPE = " INTEGER";
+    private static final String BLOB_TYPE = " BLOB";
     private static final String COMMA_SEP = ",";
   }
 
   static abstract class Columns implements BaseColumns {
-    static final String PATH0 = "path0";
-    static final String PATH1 = "path1";
-    static final String PATH2 = "path2";
-    static final String PATH3 = "path3";
-    static final String PATH4 = "path4";
-    static final String PATH5 = "path5";
-    static final String PATH6 = "path6";
-    static final String PATH7 = "path7";
-    static final String PATH8 = "path8";
-    static final String PATH9 = "path9";
-    static final String PATH10 = "path10";
-    static final String PATH11 = "path11";
-    static final String PATH12 = "path12";
-    static final String PATH13 = "path13";
-    static final String PATH14 = "path14";
-    static final String PATH15 = "path15";
+    /** The key encoded by PathCodec, only the newest vts is kept for each one */
+    static final String PATH = "path";
+    /** The number of components in the key */
+    static final String DEPTH = "depth";
+    /** The hash of the component at each depth, null below the depth of the key */
+    static final String[] HASH = {"h0", "h1", "h2", "h3", "h4", "h5", "h6", "h7"};
     static final String VTS = "vts";
     static final String CTS = "cts";
     static final String DATA = "CSValue";
     static final String ACL = "acl";
+    /** When the value was last written or read from the cache, in ms since epoch */
+    static final String LAST_READ = "last_read";
+    /** 1 if this row is the tombstone of a deleted key, 0 otherwise */
+    static final String DELETED = "deleted";
+    /** 1 if CSValue holds the data deflated by Compression as a BLOB, 0 if it holds TEXT */
+    static final String COMPRESSED = "compressed";
+  }
+
+  /**
+   * CREATE TABLE data_log ( path, depth, h0, ..., h7, vts, cts, CSValue, acl, last_read,
+   * deleted, compressed, PRIMARY KEY (vts) );
+   */
+  static String createTable(final String tableName) {
+    final StringBuilder sb = new StringBuilder("CREATE TABLE " + tableName + " (" +
+        Columns.PATH + Properties.BLOB_TYPE + Properties.COMMA_SEP +
+        Columns.DEPTH + Properties.INT_TYPE + Properties.COMMA_SEP);
+    for (final String hash : Columns.HASH) {
+      sb.append(hash).append(Properties.INT_TYPE).append(Properties.COMMA_SEP);
+    }
+    sb.append(Columns.VTS + Properties.INT_TYPE + Properties.COMMA_SEP +
+        Columns.CTS + Properties.INT_TYPE + Properties.COMMA_SEP +
+        Columns.DATA + Properties.TEXT_TYPE + Properties.COMMA_SEP +
+        Columns.ACL + Properties.TEXT_TYPE + Properties.COMMA_SEP +
+        Columns.LAST_READ + Properties.INT_TYPE + Properties.COMMA_SEP +
+        Columns.DELETED + Properties.INT_TYPE + " DEFAULT 0" + Properties.COMMA_SEP +
+        Columns.COMPRESSED + Properties.INT_TYPE + " DEFAULT 0" + Properties.COMMA_SEP +
+        " PRIMARY KEY (" + Columns.VTS + ") )");
+    return sb.toString();
   }
 
   static abstract class Statements {
-    /** CREATE TABLE data_log ( path, vts, cts, CSValue, acl, PRIMARY KEY (path , acl) ); */
-    static final String CREATE_TABLE =
-        "CREATE TABLE " + Properties.TABLE_NAME + " (" +
-            Columns.PATH0 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH1 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH2 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH3 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH4 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH5 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH6 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH7 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH8 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH9 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH10 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH11 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH12 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH13 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH14 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.PATH15 + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.VTS + Properties.INT_TYPE + Properties.COMMA_SEP +
-            Columns.CTS + Properties.INT_TYPE + Properties.COMMA_SEP +
-            Columns.DATA + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.ACL + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            " PRIMARY KEY (" + Columns.VTS + ") )";
+    static final String CREATE_TABLE = createTable(Properties.TABLE_NAME);
+
+    /** CREATE UNIQUE INDEX data_log_path ON data_log (path) */
+    static final String CREATE_PATH_INDEX =
+        "CREATE UNIQUE INDEX " + Properties.TABLE_NAME + "_" + Columns.PATH + " ON " +
+            Properties.TABLE_NAME + " (" + Columns.PATH + ")";
+
+    /** CREATE INDEX data_log_last_read ON data_log (last_read) */
+    static final String CREATE_LAST_READ_INDEX =
+        "CREATE INDEX " + Properties.TABLE_NAME + "_" + Columns.LAST_READ + " ON " +
+            Properties.TABLE_NAME + " (" + Columns.LAST_READ + ")";
+
+    /** CREATE INDEX data_log_cts ON data_log (cts, vts) */
+    static final String CREATE_CTS_INDEX =
+        "CREATE INDEX " + Properties.TABLE_NAME + "_" + Columns.CTS + " ON " +
+            Properties.TABLE_NAME + " (" + Columns.CTS + Properties.COMMA_SEP + Columns.VTS + ")";
+
+    /** SELECT vts FROM data_log WHERE path = ? */
+    static final String GET_VTS_FOR_PATH =
+        "SELECT " + Columns.VTS + " FROM " + Properties.TABLE_NAME +
+            " WHERE " + Columns.PATH + " = ?";
+
+    /** DELETE FROM data_log WHERE path = ? */
+    static final String DELETE_FOR_PATH =
+        "DELETE FROM " + Properties.TABLE_NAME + " WHERE " + Columns.PATH + " = ?";
+
+    /** DELETE FROM data_log WHERE vts = ? */
+    static final String DELETE_FOR_VTS =
+        "DELETE FROM " + Properties.TABLE_NAME + " WHERE " + Columns.VTS + " = ?";
+
+    /**
+     * DELETE FROM data_log WHERE deleted = 1 AND vts < (SELECT MIN(rvts) FROM rvts_log)
+     *
+     * A tombstone older than every rvts will never be asked for by an advance again.
+     */
+    static final String DELETE_COLLECTABLE_TOMBSTONES =
+        "DELETE FROM " + Properties.TABLE_NAME + " WHERE " + Columns.DELETED + " = 1 AND " +
+            Columns.VTS + " < (SELECT MIN(" + RvtsTable.Columns.RVTS + ") FROM " +
+            RvtsTable.Properties.TABLE_NAME + ")";
+
+    /** SELECT COUNT(*) FROM data_log */
+    static final String COUNT = "SELECT COUNT(*) FROM " + Properties.TABLE_NAME;
 
     /** DELETE TABLE IF EXISTS data_log */
     static final String DELETE_TABLE =
@@ -37,12 +37,14 @@ final class DirtyTable {
     static final String CTS = "cts";
     static final String DATA = "CSValue";
     static final String ACL = "acl";
+    /** 1 if CSValue holds the data deflated by Compression as a BLOB, 0 if it holds TEXT */
+    static final String COMPRESSED = "compressed";
   }
 
   static abstract class Statements {
     /**
-     * CREATE TABLE dirty_log ( _id INTEGER PRIMARY KEY, path, vts, cts, CSValue, acl, PRIMARY KEY
-     * (path , acl) );
+     * CREATE TABLE dirty_log ( _id INTEGER PRIMARY KEY, path, vts, cts, CSValue, acl,
+     * compressed );
      */
     static final String CREATE_TABLE =
         "CREATE TABLE " + Properties.TABLE_NAME + " (" +
@@ -51,14 +53,17 @@ final class DirtyTable {
             Columns.VTS + Properties.INT_TYPE + Properties.COMMA_SEP +
             Columns.CTS + Properties.INT_TYPE + Properties.COMMA_SEP +
             Columns.DATA + Properties.TEXT_TYPE + Properties.COMMA_SEP +
-            Columns.ACL + Properties.TEXT_TYPE + " )";
+            Columns.ACL + Properties.TEXT_TYPE + Properties.COMMA_SEP +
+            Columns.COMPRESSED + Properties.INT_TYPE + " DEFAULT 0 )";
 
     /** DROP TABLE IF EXISTS dirty_log */
     static final String DELETE_TABLE =
         "DROP TABLE IF EXISTS " + Properties.TABLE_NAME;
 
-    /** SELECT * FROM dirty_log */
-    static final String ALL_DIRTYDATA = "SELECT  * FROM " + Properties.TABLE_NAME;
+    /** CREATE INDEX dirty_log_cts ON dirty_log (cts, _id) */
+    static final String CREATE_CTS_INDEX =
+        "CREATE INDEX dirty_log_cts ON " + Properties.TABLE_NAME +
+            " (" + Columns.CTS + Properties.COMMA_SEP + Columns._ID + ")";
 
     /** DELETE FROM dirty_log WHERE ._ID = ? */
     static final String DELETE_DIRTY =
@@ -0,0 +1,109 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.sqlite;
+
+import com.ibm.csync.CSKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decodes paths written by PathCodec through a bounded LRU cache. Reading a key that is cached
+ * returns the same CSKey without allocating, and a new key reuses the CSKey of its cached parent,
+ * so scanning many rows under a few parents mostly allocates the last component of each key.
+ */
+final class KeyCache {
+  static final int DEFAULT_CAPACITY = 4096;
+
+  private final Map<Path, CSKey> keys;
+  //Looks up a path without copying it, only used while holding the lock
+  private final Path probe = new Path(null, 0);
+
+  KeyCache(final int capacity) {
+    this.keys = new LinkedHashMap<Path, CSKey>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Path, CSKey> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /** Returns the key of the path; the cache keeps a reference to the array */
+  synchronized CSKey decode(final byte[] path) {
+    return decode(path, path.length);
+  }
+
+  private CSKey decode(final byte[] path, final int length) {
+    if (length == 0) {
+      return CSKey.root;
+    }
+
+    final CSKey cached = keys.get(probe.reset(path, length));
+    if (cached != null) {
+      return cached;
+    }
+
+    //The last component runs from the separator before it to the one that ends the path
+    int start = length - 1;
+    while (start > 0 && path[start - 1] != PathCodec.SEPARATOR) {
+      start--;
+    }
+    final CSKey parent = decode(path, start);
+    final CSKey csKey =
+        parent.child(new String(path, start, length - 1 - start, PathCodec.UTF8));
+    keys.put(new Path(path, length), csKey);
+    return csKey;
+  }
+
+  synchronized int size() {
+    return keys.size();
+  }
+
+  /** The first length bytes of an encoded path */
+  private static final class Path {
+    private byte[] bytes;
+    private int length;
+    private int hash;
+
+    Path(final byte[] bytes, final int length) {
+      reset(bytes, length);
+    }
+
+    Path reset(final byte[] bytes, final int length) {
+      this.bytes = bytes;
+      this.length = length;
+      int h = 1;
+      for (int i = 0; i < length; i++) {
+        h = 31 * h + bytes[i];
+      }
+      this.hash = h;
+      return this;
+    }
+
+    @Override public int hashCode() {
+      return hash;
+    }
+
+    @Override public boolean equals(Object o) {
+      if (!(o instanceof Path)) return false;
+      final Path other = (Path) o;
+      if (other.hash != hash || other.length != length) return false;
+      for (int i = 0; i < length; i++) {
+        if (other.bytes[i] != bytes[i]) return false;
+      }
+      return true;
+    }
+  }
+}
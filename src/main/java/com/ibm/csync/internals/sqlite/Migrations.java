@@ -0,0 +1,171 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.sqlite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+import android.util.Log;
+import com.ibm.csync.CSKey;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Schema upgrades for ClientLog.db, one method per database version */
+final class Migrations {
+  private static final String TAG = Migrations.class.getName();
+
+  private Migrations() {
+    throw new AssertionError();
+  }
+
+  /**
+   * Version 2 keeps only the newest vts of every key in data_log. The full key is stored in the
+   * new path column, every older version is dropped and a unique index keeps it that way.
+   */
+  static void toVersion2(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + DataTable.Properties.TABLE_NAME +
+        " ADD COLUMN " + DataTable.Columns.PATH + " TEXT");
+
+    final SQLiteStatement setPath = db.compileStatement(
+        "UPDATE " + DataTable.Properties.TABLE_NAME + " SET " + DataTable.Columns.PATH +
+            " = ? WHERE " + DataTable.Columns.VTS + " = ?");
+
+    final Cursor cursor = db.rawQuery("SELECT * FROM " + DataTable.Properties.TABLE_NAME, null);
+    try {
+      final List<String> parts = new ArrayList<>();
+      while (cursor.moveToNext()) {
+        parts.clear();
+        for (int i = 0; i < 16; i++) {
+          final String part = cursor.getString(i);
+          if (part == null) break;
+          parts.add(part);
+        }
+        //Joined without validating, older versions accepted components CSKey now rejects
+        setPath.bindString(1, TextUtils.join(".", parts));
+        setPath.bindLong(2, cursor.getLong(16));
+        setPath.execute();
+      }
+    } finally {
+      cursor.close();
+    }
+
+    db.execSQL("DELETE FROM " + DataTable.Properties.TABLE_NAME +
+        " WHERE " + DataTable.Columns.VTS + " NOT IN (SELECT MAX(" + DataTable.Columns.VTS +
+        ") FROM " + DataTable.Properties.TABLE_NAME + " GROUP BY " + DataTable.Columns.PATH + ")");
+    db.execSQL(DataTable.Statements.CREATE_PATH_INDEX);
+
+    Log.d(TAG, "Compacted data_log to the latest value per key");
+  }
+
+  /**
+   * Version 3 records when each cached value was last read so that the least recently read
+   * values can be evicted first. Existing values count as read during the upgrade.
+   */
+  static void toVersion3(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + DataTable.Properties.TABLE_NAME +
+        " ADD COLUMN " + DataTable.Columns.LAST_READ + " INTEGER");
+    db.execSQL("UPDATE " + DataTable.Properties.TABLE_NAME +
+        " SET " + DataTable.Columns.LAST_READ + " = " + System.currentTimeMillis());
+    db.execSQL(DataTable.Statements.CREATE_LAST_READ_INDEX);
+  }
+
+  /**
+   * Version 4 persists whether a row is the tombstone of a deleted key. Rows cached before
+   * the upgrade were stored as live values.
+   */
+  static void toVersion4(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + DataTable.Properties.TABLE_NAME +
+        " ADD COLUMN " + DataTable.Columns.DELETED + " INTEGER DEFAULT 0");
+  }
+
+  /**
+   * Version 5 replaces the 16 path columns with the encoded path, depth and hash columns of
+   * PathCodec, which removes the limit on the depth of cached keys. The table is rebuilt and
+   * every row is copied over with its key re-encoded. Values cached under keys that are no longer
+   * valid are dropped; they could not be listened to anyway.
+   */
+  static void toVersion5(SQLiteDatabase db) {
+    final String newTable = DataTable.Properties.TABLE_NAME + "_v5";
+    db.execSQL(createVersion5Table(newTable));
+
+    final Cursor cursor = db.rawQuery("SELECT path, vts, cts, CSValue, acl, last_read, deleted" +
+        " FROM " + DataTable.Properties.TABLE_NAME, null);
+    try {
+      final ContentValues row = new ContentValues();
+      while (cursor.moveToNext()) {
+        final CSKey key;
+        try {
+          key = CSKey.fromString(cursor.getString(0));
+        } catch (IllegalArgumentException e) {
+          Log.w(TAG, "Dropping cached value with invalid key: " + cursor.getString(0));
+          continue;
+        }
+        row.clear();
+        PathCodec.put(row, key);
+        row.put(DataTable.Columns.VTS, cursor.getLong(1));
+        row.put(DataTable.Columns.CTS, cursor.getLong(2));
+        row.put(DataTable.Columns.DATA, cursor.getString(3));
+        row.put(DataTable.Columns.ACL, cursor.getString(4));
+        row.put(DataTable.Columns.LAST_READ, cursor.getLong(5));
+        row.put(DataTable.Columns.DELETED, cursor.getInt(6));
+        db.insert(newTable, null, row);
+      }
+    } finally {
+      cursor.close();
+    }
+
+    db.execSQL(DataTable.Statements.DELETE_TABLE);
+    db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + DataTable.Properties.TABLE_NAME);
+    db.execSQL(DataTable.Statements.CREATE_PATH_INDEX);
+    db.execSQL(DataTable.Statements.CREATE_LAST_READ_INDEX);
+  }
+
+  //data_log as of version 5, DataTable.createTable has moved on since
+  private static String createVersion5Table(final String tableName) {
+    final StringBuilder sb = new StringBuilder("CREATE TABLE " + tableName + " (" +
+        "path BLOB, depth INTEGER, ");
+    for (final String hash : DataTable.Columns.HASH) {
+      sb.append(hash).append(" INTEGER, ");
+    }
+    sb.append("vts INTEGER, cts INTEGER, CSValue TEXT, acl TEXT, last_read INTEGER, " +
+        "deleted INTEGER DEFAULT 0, PRIMARY KEY (vts) )");
+    return sb.toString();
+  }
+
+  /** Version 6 indexes dirty_log in the order its writes are replayed */
+  static void toVersion6(SQLiteDatabase db) {
+    db.execSQL(DirtyTable.Statements.CREATE_CTS_INDEX);
+  }
+
+  /**
+   * Version 7 allows large values to be stored compressed. Existing values are left as they
+   * are and marked as uncompressed.
+   */
+  static void toVersion7(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE " + DataTable.Properties.TABLE_NAME +
+        " ADD COLUMN " + DataTable.Columns.COMPRESSED + " INTEGER DEFAULT 0");
+    db.execSQL("ALTER TABLE " + DirtyTable.Properties.TABLE_NAME +
+        " ADD COLUMN " + DirtyTable.Columns.COMPRESSED + " INTEGER DEFAULT 0");
+  }
+
+  /** Version 8 indexes data_log by (cts, vts) for local queries ordered or ranged by cts */
+  static void toVersion8(SQLiteDatabase db) {
+    db.execSQL(DataTable.Statements.CREATE_CTS_INDEX);
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.sqlite;
+
+import android.content.ContentValues;
+import com.ibm.csync.CSKey;
+import com.ibm.csync.internals.query.Blob;
+import com.ibm.csync.internals.query.Predicate;
+import java.nio.charset.Charset;
+
+import static com.ibm.csync.internals.query.Predicate.eq;
+import static com.ibm.csync.internals.query.Predicate.ge;
+import static com.ibm.csync.internals.query.Predicate.lt;
+
+/**
+ * Encodes CSKeys into the path, depth and hash columns of data_log.
+ *
+ * Every component of the path is written as UTF-8 followed by a 0 byte. The path of a key is
+ * therefore a prefix of the path of every key below it and sorts right before them, so all keys
+ * under a literal prefix are one range of the path index. The hash columns hold the hash of the
+ * component at that depth and narrow down patterns with wildcards before their literals.
+ */
+final class PathCodec {
+  static final Charset UTF8 = Charset.forName("UTF-8");
+  static final byte SEPARATOR = 0;
+
+  private PathCodec() {
+    throw new AssertionError();
+  }
+
+  static byte[] encode(final CSKey csKey) {
+    final String[] parts = new String[csKey.length()];
+    csKey.fill(parts);
+    return encode(parts, parts.length);
+  }
+
+  private static byte[] encode(final String[] parts, final int n) {
+    final byte[][] encoded = new byte[n][];
+    int size = 0;
+    for (int i = 0; i < n; i++) {
+      encoded[i] = parts[i].getBytes(UTF8);
+      size += encoded[i].length + 1;
+    }
+
+    final byte[] path = new byte[size];
+    int at = 0;
+    for (final byte[] part : encoded) {
+      for (final byte b : part) {
+        if (b == SEPARATOR) {
+          throw new IllegalArgumentException("Key components cannot contain \\u0000");
+        }
+      }
+      System.arraycopy(part, 0, path, at, part.length);
+      at += part.length;
+      path[at++] = SEPARATOR;
+    }
+    return path;
+  }
+
+  static CSKey decode(final byte[] path) {
+    CSKey csKey = CSKey.root;
+    int start = 0;
+    for (int i = 0; i < path.length; i++) {
+      if (path[i] == SEPARATOR) {
+        csKey = csKey.child(new String(path, start, i - start, UTF8));
+        start = i + 1;
+      }
+    }
+    return csKey;
+  }
+
+  static long hash(final String component) {
+    return component.hashCode();
+  }
+
+  /** Puts the path, depth and hash columns of the key */
+  static void put(final ContentValues values, final CSKey csKey) {
+    final String[] parts = new String[csKey.length()];
+    csKey.fill(parts);
+
+    values.put(DataTable.Columns.PATH, encode(parts, parts.length));
+    values.put(DataTable.Columns.DEPTH, parts.length);
+    for (int i = 0; i < DataTable.Columns.HASH.length; i++) {
+      if (i < parts.length) {
+        values.put(DataTable.Columns.HASH[i], hash(parts[i]));
+      } else {
+        values.putNull(DataTable.Columns.HASH[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns a predicate selecting every row whose key matches the pattern. It may select more
+   * rows than that, because hashes collide and components deeper than the hash columns are not
+   * checked, so the keys read must still be checked with CSKey.matches().
+   *
+   * a.b.c    path = 'a.b.c.'
+   * a.b.#    path >= 'a.b.' and path < 'a.b/' and depth >= 2
+   * a.*.c    path >= 'a.' and path < 'a/' and depth = 3 and h2 = hash(c)
+   * *.b      depth = 2 and h1 = hash(b)
+   */
+  static Predicate patternPredicate(final CSKey pattern) {
+    final String[] parts = new String[pattern.length()];
+    pattern.fill(parts);
+
+    int tail = 0;
+    while (tail < parts.length && !"#".equals(parts[tail])) {
+      tail++;
+    }
+    int prefix = 0;
+    while (prefix < tail && !"*".equals(parts[prefix])) {
+      prefix++;
+    }
+
+    Predicate p = Predicate.empty();
+
+    if (prefix == parts.length) {
+      return eq(DataTable.Columns.PATH, new Blob(encode(parts, prefix)));
+    } else if (prefix > 0) {
+      final byte[] lower = encode(parts, prefix);
+      final byte[] upper = lower.clone();
+      upper[upper.length - 1] = SEPARATOR + 1;
+      p = ge(DataTable.Columns.PATH, new Blob(lower))
+          .and(lt(DataTable.Columns.PATH, new Blob(upper)));
+    }
+
+    if (tail < parts.length) {
+      if (tail > prefix) {
+        p = p.and(ge(DataTable.Columns.DEPTH, tail));
+      }
+    } else {
+      p = p.and(eq(DataTable.Columns.DEPTH, parts.length));
+    }
+
+    for (int i = prefix; i < Math.min(tail, DataTable.Columns.HASH.length); i++) {
+      if (!"*".equals(parts[i])) {
+        p = p.and(eq(DataTable.Columns.HASH[i], hash(parts[i])));
+      }
+    }
+
+    return p;
+  }
+}
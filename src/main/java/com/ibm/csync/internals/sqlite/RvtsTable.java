@@ -48,6 +48,13 @@ final class RvtsTable {
     static final String GET_RVTS = "SELECT " + Columns.RVTS + " FROM " + Properties.TABLE_NAME +
         " WHERE " + Columns.PATH + " = ? ";
 
+    /** SELECT path FROM rvts_log */
+    static final String ALL_PATHS = "SELECT " + Columns.PATH + " FROM " + Properties.TABLE_NAME;
+
+    /** DELETE FROM rvts_log WHERE path = ? */
+    static final String DELETE_RVTS =
+        "DELETE FROM " + Properties.TABLE_NAME + " WHERE " + Columns.PATH + " = ?";
+
     /** DROP TABLE IF EXISTS rvts_log */
     static final String DELETE_TABLE =
         "DROP TABLE IF EXISTS " + Properties.TABLE_NAME;
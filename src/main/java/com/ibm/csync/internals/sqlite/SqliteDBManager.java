@@ -19,99 +19,96 @@ package com.ibm.csync.internals.sqlite;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 import com.ibm.csync.CSKey;
+import com.ibm.csync.CSKeyPattern;
+import com.ibm.csync.CSLocalQuery;
 import com.ibm.csync.CSValue;
 import com.ibm.csync.acls.CSAcl;
+import com.ibm.csync.internals.CacheConfig;
 import com.ibm.csync.internals.DBManager;
+import com.ibm.csync.internals.LocalQueries;
+import com.ibm.csync.internals.Metrics;
+import com.ibm.csync.internals.query.From;
 import com.ibm.csync.internals.query.Predicate;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import rx.Observable;
-import rx.Subscriber;
 import rx.functions.Func0;
-import rx.schedulers.Schedulers;
 
 import static com.ibm.csync.internals.query.Predicate.eq;
+import static com.ibm.csync.internals.query.Predicate.ge;
 import static com.ibm.csync.internals.query.Predicate.gt;
 import static com.ibm.csync.internals.query.Predicate.le;
+import static com.ibm.csync.internals.query.Predicate.lt;
 import static com.ibm.csync.internals.query.Query.select;
 
 public class SqliteDBManager extends SQLiteOpenHelper implements DBManager {
-  final static String pathNames[];
   private static final String TAG = SqliteDBManager.class.getName();
-  private static final int DATABASE_VERSION = 1;
+  private static final int DATABASE_VERSION = 8;
+  /** The columns read by transformCursorToData, in order */
+  private static final String[] DATA_COLUMNS = {
+      DataTable.Columns.PATH, DataTable.Columns.VTS, DataTable.Columns.CTS,
+      DataTable.Columns.DATA, DataTable.Columns.ACL, DataTable.Columns.DELETED,
+      DataTable.Columns.COMPRESSED
+  };
+  /** The columns read by transformCursorToDirty, in order */
+  private static final String[] DIRTY_COLUMNS = {
+      DirtyTable.Columns._ID, DirtyTable.Columns.PATH, DirtyTable.Columns.VTS,
+      DirtyTable.Columns.CTS, DirtyTable.Columns.DATA, DirtyTable.Columns.ACL,
+      DirtyTable.Columns.COMPRESSED
+  };
   private static final String DATABASE_NAME = "ClientLog.db";
+  /** Bound parameters per query, below the default SQLITE_MAX_VARIABLE_NUMBER of 999 */
+  private static final int MAX_BOUND_VTS = 500;
   private static final String TEXT_TYPE = " TEXT";
   private static final String INT_TYPE = " INTEGER";
   private static final String COMMA_SEP = ",";
-  private static final int DEFAULT_QUERY_LIMIT = 100;
-
-  static {
-    pathNames = new String[16];
-    for (int i = 0; i < pathNames.length; i++) {
-      final String s = String.format("path%d", i);
-      pathNames[i] = s;
-    }
-  }
+  /** Page reads recorded before they are written to last_read without waiting for evict() */
+  private static final int MAX_PENDING_TOUCHES = 256;
 
   private final SQLiteDatabase db;
+  private final CacheConfig config;
+  private final Metrics metrics;
+  private final KeyCache keyCache = new KeyCache(KeyCache.DEFAULT_CAPACITY);
+  private final List<Touch> pendingTouches = new ArrayList<>(); //guarded by itself
+  //Compiled once and only used while holding getVtsForPath
+  private final SQLiteStatement getVtsForPath;
+  private final SQLiteStatement deleteForPath;
+  private volatile boolean vacuumAfterUpgrade;
 
   public SqliteDBManager(Context context) {
-    super(context, DATABASE_NAME, null, DATABASE_VERSION);
-    db = this.getWritableDatabase();
+    this(context, DATABASE_NAME, new CacheConfig(), new Metrics());
   }
 
-  public SqliteDBManager(Context context, String databaseName) {
-    super(context, databaseName, null, DATABASE_VERSION);
-    db = this.getWritableDatabase();
+  public SqliteDBManager(Context context, CacheConfig config, Metrics metrics) {
+    this(context, DATABASE_NAME, config, metrics);
   }
 
-  private static Predicate getPatternPred(final CSKey csKey) {
-    final String[] paths = csKey.toArray();
-
-    boolean endsInStar = false;
-
-    Predicate p = Predicate.empty();
-        /*
-         * x     x_
-         * x.*   x*_
-         * *.x   *x_
-         * x.*.* x**_
-         *
-         * a.b.c    (p0 = 'a') and (p1 = 'b') and (p2 = 'c') and (p3 is null)
-         * a.b.*    (p0 = 'a') and (b1 = 'b') and (p2 is not null) and (p3 is null)
-         * a.*.c    (p0 = 'a') and (b2 = 'c') and (p3 is null)
-         *
-         * a.*.#    (p0 = 'a') and (b2 is not null)
-         */
-
-    for (int i = 0; i < paths.length; i++) {
-      final String part = paths[i].trim();
-      endsInStar = false;
-
-      if ("*".equals(part)) {
-        endsInStar = true;
-        continue;
-      } else if ("#".equals(part)) {
-        break;
-      } else {
-        p = eq(String.format("path%d", i), paths[i]).and(p);
-      }
-    }
-
-    if (endsInStar) {
-      p = p.and(Predicate.isNotNull(String.format("path%d", paths.length - 1)));
-    }
+  public SqliteDBManager(Context context, String databaseName) {
+    this(context, databaseName, new CacheConfig(), new Metrics());
+  }
 
-    Log.d(TAG, "query string " + p.toString());
+  public SqliteDBManager(Context context, String databaseName, CacheConfig config) {
+    this(context, databaseName, config, new Metrics());
+  }
 
-    return p;
+  public SqliteDBManager(Context context, String databaseName, CacheConfig config,
+      Metrics metrics) {
+    super(context, databaseName, null, DATABASE_VERSION);
+    this.config = config;
+    this.metrics = metrics;
+    db = this.getWritableDatabase();
+    getVtsForPath = db.compileStatement(DataTable.Statements.GET_VTS_FOR_PATH);
+    deleteForPath = db.compileStatement(DataTable.Statements.DELETE_FOR_PATH);
   }
 
   @Override public void onCreate(SQLiteDatabase db) {
@@ -122,142 +119,487 @@ public class SqliteDBManager extends SQLiteOpenHelper implements DBManager {
     createDataTable.execute();
     createRvtsTable.execute();
     createDirtyTable.execute();
+
+    db.execSQL(DataTable.Statements.CREATE_PATH_INDEX);
+    db.execSQL(DataTable.Statements.CREATE_LAST_READ_INDEX);
+    db.execSQL(DataTable.Statements.CREATE_CTS_INDEX);
+    db.execSQL(DirtyTable.Statements.CREATE_CTS_INDEX);
   }
 
   @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    SQLiteStatement deleteDataTable = db.compileStatement(DataTable.Statements.DELETE_TABLE);
-    SQLiteStatement deleteRvtsTable = db.compileStatement(RvtsTable.Statements.DELETE_TABLE);
-    SQLiteStatement deleteDirtyTable = db.compileStatement(DirtyTable.Statements.DELETE_TABLE);
-
-    deleteDataTable.execute();
-    deleteRvtsTable.execute();
-    deleteDirtyTable.execute();
-
-    onCreate(db);
+    if (oldVersion < 2) {
+      Migrations.toVersion2(db);
+      vacuumAfterUpgrade = true;
+    }
+    if (oldVersion < 3) {
+      Migrations.toVersion3(db);
+    }
+    if (oldVersion < 4) {
+      Migrations.toVersion4(db);
+    }
+    if (oldVersion < 5) {
+      Migrations.toVersion5(db);
+    }
+    if (oldVersion < 6) {
+      Migrations.toVersion6(db);
+    }
+    if (oldVersion < 7) {
+      Migrations.toVersion7(db);
+    }
+    if (oldVersion < 8) {
+      Migrations.toVersion8(db);
+    }
   }
 
   @Override public void closeDB() {
+    flushTouches();
+    synchronized (getVtsForPath) {
+      getVtsForPath.close();
+      deleteForPath.close();
+    }
     db.close();
   }
 
   //INSERT INTO dataTable (path, ....) VALUES ('path', ....);
+  //Only the newest vts of a key is kept, so an older or equal vts for the same key is ignored
+  //and a newer one replaces the row that is already there.
   @Override
   public void addData(CSValue csValue) {
-
     final ContentValues newDataLog = new ContentValues();
 
-    final String[] paths = csValue.key().toArray();
-    final int nSet = Math.min(paths.length, 16);
-    final int nNull = 16 - nSet;
-    for (int i = 0; i < nSet; i++) {
-      final String name = String.format("path%d", i);
-      //Log.d(TAG, "set " + name + " to " + paths[i]);
-      newDataLog.put(name, paths[i]);
-    }
-    //for (int i = 0; i < nNull; i++) {
-    //  final String name = String.format("path%d", i + nSet);
-    //  //Log.d(TAG, "set " + name + " to null");
-    //}
-    //newDataLog.put(DataTable.Columns.COLUMN_NAME_PATH, CSValue.getKey().toString());
+    PathCodec.put(newDataLog, csValue.key());
+    final byte[] path = newDataLog.getAsByteArray(DataTable.Columns.PATH);
     newDataLog.put(DataTable.Columns.VTS, csValue.vts());  // vts
     newDataLog.put(DataTable.Columns.CTS, csValue.cts());  // cts
-    newDataLog.put(DataTable.Columns.DATA, csValue.data()); // insert CSValue
+    putData(newDataLog, DataTable.Columns.DATA, DataTable.Columns.COMPRESSED, csValue.data());
     newDataLog.put(DataTable.Columns.ACL, csValue.acl().rawAcl());  // acl
+    newDataLog.put(DataTable.Columns.LAST_READ, System.currentTimeMillis());
+    newDataLog.put(DataTable.Columns.DELETED, csValue.isKeyDeleted() ? 1 : 0);
+
+    //The statements are locked before the transaction, the order latestVts() takes them in
+    synchronized (getVtsForPath) {
+      db.beginTransaction();
+      try {
+        getVtsForPath.bindBlob(1, path);
+
+        long cachedVts;
+        try {
+          cachedVts = getVtsForPath.simpleQueryForLong();
+        } catch (SQLiteDoneException notCached) {
+          cachedVts = -1L;
+        }
+
+        if (cachedVts >= csValue.vts()) {
+          Log.d(TAG, "SQL Ignoring CSValue older than cached vts " + cachedVts + " for " +
+              csValue.key());
+        } else {
+          if (cachedVts != -1L) {
+            deleteForPath.bindBlob(1, path);
+            deleteForPath.execute();
+          }
 
-    // Inserting Row
-    long insertRow = db.insertWithOnConflict(DataTable.Properties.TABLE_NAME, null, newDataLog,
-        SQLiteDatabase.CONFLICT_IGNORE);
-    Log.d(TAG, "SQL Adding CSValue: for row: " + insertRow);
+          // Inserting Row
+          long insertRow = db.insertWithOnConflict(DataTable.Properties.TABLE_NAME, null,
+              newDataLog, SQLiteDatabase.CONFLICT_IGNORE);
+          Log.d(TAG, "SQL Adding CSValue: for row: " + insertRow);
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
   }
 
   @Override
   public Observable<CSValue> cachedValues(final CSKey csKey, final long maxVts) {
-    return Observable.create(new Observable.OnSubscribe<CSValue>() {
-      @Override
-      public void call(Subscriber<? super CSValue> subscriber) {
-
-        Cursor cursor;
-        long currentMinVts = maxVts;
-
-        boolean lastDataBlock = false;
-        do {
-          cursor = db.rawQuery(createDataQuery(csKey, currentMinVts, DEFAULT_QUERY_LIMIT), null);
-          if (cursor.getCount() != DEFAULT_QUERY_LIMIT) {
-            lastDataBlock = true;
-          }
+    final CSKeyPattern pattern = CSKeyPattern.compile(csKey);
+    return Observable.create(new CursorOnSubscribe<CSValue>(config.pageSize) {
+      @Override Cursor openPage(CSValue last, int pageSize) {
+        return db.rawQuery(createDataQuery(csKey, maxVts, last, pageSize), null);
+      }
 
-          // looping through all rows and adding to list
-          if (cursor.moveToFirst()) {
-            do {
-              //Adding CSValue to outputStream observer
-              CSValue csValue = transformCursorToData(cursor);
-              currentMinVts = csValue.vts();
-              subscriber.onNext(csValue);
-            } while (cursor.moveToNext());
-          }
-        } while (!lastDataBlock);
-        subscriber.onCompleted();
-        cursor.close();
+      @Override CSValue read(Cursor cursor) {
+        return transformCursorToData(cursor);
+      }
+
+      @Override boolean accept(CSValue csValue) {
+        return pattern.matches(csValue.key());
       }
-    }).onBackpressureBuffer();
+
+      @Override void onPageRead(CSValue first, CSValue last) {
+        touch(csKey, first.vts(), last.vts());
+      }
+    });
   }
 
-  //SELECT * FROM data_table WHERE vts <= maxVts AND WHERE CSKey LIKE CSKey% ORDER BY vts DESC
-  //       LIMIT queryLimit
-  private String createDataQuery(CSKey csKey, long maxVts, int queryLimit) {
-    final String q = select().
-        from(DataTable.Properties.TABLE_NAME).
-        where(csKey.toQuery(pathNames), le(DataTable.Columns.VTS, maxVts)).
-        orderByDesc(DataTable.Columns.VTS).
-        limit(queryLimit).toString();
+  @Override public Observable<CSValue> query(final CSLocalQuery query) {
+    final CSKeyPattern pattern = CSKeyPattern.compile(query.key());
+    final int pageSize = query.limit() == CSLocalQuery.NO_LIMIT
+        ? config.pageSize : Math.min(config.pageSize, query.limit());
+    final boolean byVts = query.order() == CSLocalQuery.Order.VTS_DESC
+        || query.order() == CSLocalQuery.Order.VTS_ASC;
+    return LocalQueries.limit(Observable.create(new CursorOnSubscribe<CSValue>(pageSize) {
+      @Override Cursor openPage(CSValue last, int pageSize) {
+        return db.rawQuery(createLocalQuery(query, last, pageSize), null);
+      }
 
-    Log.d(TAG, q);
+      @Override CSValue read(Cursor cursor) {
+        return transformCursorToData(cursor);
+      }
 
-    return q;
+      @Override boolean accept(CSValue csValue) {
+        return pattern.matches(csValue.key());
+      }
+
+      //Only a page in vts order is a vts range, pages in cts order are left untouched
+      @Override void onPageRead(CSValue first, CSValue last) {
+        if (byVts) {
+          touch(query.key(), Math.max(first.vts(), last.vts()), Math.min(first.vts(), last.vts()));
+        }
+      }
+    }), query);
   }
 
-  @Override public Observable<List<Long>> vtsToFetch(List<Long> vts) {
-    return Observable.just(getDataForVtsArray(vts));
+  //Only records the read, so reading a page does not write to the database; the reads are
+  //written to last_read by evict(), which is the only one looking at it, or once too many pile up.
+  private void touch(CSKey csKey, long newestVts, long oldestVts) {
+    final boolean full;
+    synchronized (pendingTouches) {
+      pendingTouches.add(new Touch(csKey, newestVts, oldestVts, System.currentTimeMillis()));
+      full = pendingTouches.size() >= MAX_PENDING_TOUCHES;
+    }
+    if (full) {
+      flushTouches();
+    }
   }
 
-  //TODO: Refactor
-  public List<Long> getDataForVtsArray(List<Long> vtsArray) {
-    List<Long> temp = vtsArray;
+  //UPDATE data_log SET last_read = readAt WHERE CSKey LIKE CSKey% AND vts <= newestVts
+  //       AND vts >= oldestVts
+  private void flushTouches() {
+    final List<Touch> touches;
+    synchronized (pendingTouches) {
+      if (pendingTouches.isEmpty()) return;
+      touches = new ArrayList<>(pendingTouches);
+      pendingTouches.clear();
+    }
 
-    StringBuilder sb =
-        new StringBuilder("SELECT " + DataTable.Columns.VTS + " FROM "
-            + DataTable.Properties.TABLE_NAME + " WHERE "
-            + DataTable.Columns.VTS + " IN (");
+    db.beginTransaction();
+    try {
+      for (final Touch touch : touches) {
+        final Predicate page = Predicate.AND(PathCodec.patternPredicate(touch.csKey),
+            le(DataTable.Columns.VTS, touch.newestVts), ge(DataTable.Columns.VTS, touch.oldestVts));
+        db.execSQL("UPDATE " + DataTable.Properties.TABLE_NAME + " SET " +
+            DataTable.Columns.LAST_READ + " = " + touch.readAt + " WHERE " + page);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
 
-    for (int i = 0; i < vtsArray.size(); i++) {
-      if (i != 0) {
-        sb.append(", ");
+  @Override public void collectTombstones() {
+    final SQLiteStatement collect =
+        db.compileStatement(DataTable.Statements.DELETE_COLLECTABLE_TOMBSTONES);
+    try {
+      final long collected = executeUpdateDelete(collect);
+      if (collected >= 0) {
+        Log.d(TAG, "SQL Collected " + collected + " tombstones");
       }
-      sb.append(Long.toString(vtsArray.get(i)));
+    } finally {
+      collect.close();
     }
+  }
 
-    sb.append(")");
+  //executeUpdateDelete() reports the affected rows, but releases before API 11 only have
+  //execute(), in which case -1 is returned
+  private static long executeUpdateDelete(SQLiteStatement statement) {
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+      return statement.executeUpdateDelete();
+    }
+    statement.execute();
+    return -1;
+  }
 
-    Cursor cursor = db.rawQuery(sb.toString(), null);
+  @Override public void evict() {
+    flushTouches();
+    final long now = System.currentTimeMillis();
+    long evicted = 0;
 
+    db.beginTransaction();
     try {
-      // looping through all rows and adding to list
-      if (cursor.moveToFirst()) {
-        do {
-          long vts = cursor.getLong(0);
-          for (int i = 0; i < temp.size(); i++) {
-            if (temp.get(i) == vts) {
-              temp.remove(i);
+      if (config.ttl > 0) {
+        evicted += evictLeastRecentlyRead(
+            lt(DataTable.Columns.LAST_READ, now - config.ttl).toString(), -1);
+      }
+
+      long rows = DatabaseUtils.longForQuery(db, DataTable.Statements.COUNT, null);
+      if (config.maxRows > 0 && rows > config.maxRows) {
+        evicted += evictLeastRecentlyRead(null, rows - config.maxRows);
+        rows = config.maxRows;
+      }
+
+      // Deleted rows only free pages inside the file, so the estimate is based on used pages
+      final long bytes = usedBytes();
+      if (config.maxBytes > 0 && bytes > config.maxBytes && rows > 0) {
+        final long excess = (long) Math.ceil(rows * (double) (bytes - config.maxBytes) / bytes);
+        evicted += evictLeastRecentlyRead(null, excess);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    // VACUUM cannot run inside the upgrade transaction, and would hold up the constructor's
+    // caller, so the file is shrunk by the first eviction after an upgrade instead
+    if (vacuumAfterUpgrade) {
+      vacuumAfterUpgrade = false;
+      db.execSQL("VACUUM");
+    }
+
+    metrics.cacheEvictions.addAndGet(evicted);
+    metrics.cacheRows.set(DatabaseUtils.longForQuery(db, DataTable.Statements.COUNT, null));
+    metrics.cacheBytes.set(usedBytes());
+    Log.d(TAG, "SQL Evicted " + evicted + " CSValues");
+  }
+
+  private long usedBytes() {
+    final long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+    final long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+    return (pages - freePages) * db.getPageSize();
+  }
+
+  //SELECT vts, path FROM data_log WHERE where ORDER BY last_read ASC LIMIT limit
+  //A negative limit evicts every row matching where.
+  private long evictLeastRecentlyRead(String where, long limit) {
+    final List<Long> vtsToEvict = new ArrayList<>();
+    final List<CSKey> keysToEvict = new ArrayList<>();
+
+    final Cursor cursor = db.query(DataTable.Properties.TABLE_NAME,
+        new String[] {DataTable.Columns.VTS, DataTable.Columns.PATH}, where, null, null, null,
+        DataTable.Columns.LAST_READ + " ASC", limit < 0 ? null : Long.toString(limit));
+    try {
+      while (cursor.moveToNext()) {
+        vtsToEvict.add(cursor.getLong(0));
+        keysToEvict.add(keyCache.decode(cursor.getBlob(1)));
+      }
+    } finally {
+      cursor.close();
+    }
+
+    final SQLiteStatement deleteData = db.compileStatement(DataTable.Statements.DELETE_FOR_VTS);
+    for (final long vts : vtsToEvict) {
+      deleteData.bindLong(1, vts);
+      deleteData.execute();
+    }
+
+    resetRvts(keysToEvict);
+
+    return vtsToEvict.size();
+  }
+
+  //Forgets the rvts of every pattern matching one of the keys, so their next advance asks the
+  //server for everything again and the evicted values are fetched if they are needed.
+  private void resetRvts(List<CSKey> keys) {
+    if (keys.isEmpty()) return;
+
+    final List<String> patterns = new ArrayList<>();
+    final Cursor cursor = db.rawQuery(RvtsTable.Statements.ALL_PATHS, null);
+    try {
+      while (cursor.moveToNext()) {
+        patterns.add(cursor.getString(0));
+      }
+    } finally {
+      cursor.close();
+    }
+
+    final SQLiteStatement deleteRvts = db.compileStatement(RvtsTable.Statements.DELETE_RVTS);
+    for (final String pattern : patterns) {
+      final CSKeyPattern patternKey = CSKeyPattern.compile(CSKey.fromString(pattern));
+      for (final CSKey key : keys) {
+        if (patternKey.matches(key)) {
+          deleteRvts.bindString(1, pattern);
+          deleteRvts.execute();
+          break;
+        }
+      }
+    }
+  }
+
+  //SELECT vts FROM data_log WHERE path = path(csKey)
+  @Override public long latestVts(CSKey csKey) {
+    synchronized (getVtsForPath) {
+      getVtsForPath.bindBlob(1, PathCodec.encode(csKey));
+      try {
+        return getVtsForPath.simpleQueryForLong();
+      } catch (SQLiteDoneException notCached) {
+        return NO_VTS_FOUND;
+      }
+    }
+  }
+
+  @Override public Observable<Long> latestVtsAsync(final CSKey csKey) {
+    return Observable.defer(new Func0<Observable<Long>>() {
+      @Override public Observable<Long> call() {
+        return Observable.just(latestVts(csKey));
+      }
+    });
+  }
+  //One read transaction for all keys, begun once the statement is locked as in addData()
+  @Override public Observable<List<Long>> latestVtsAsync(final List<CSKey> csKeys) {
+    return Observable.defer(new Func0<Observable<List<Long>>>() {
+      @Override public Observable<List<Long>> call() {
+        final List<Long> vts = new ArrayList<>(csKeys.size());
+        synchronized (getVtsForPath) {
+          db.beginTransaction();
+          try {
+            for (final CSKey csKey : csKeys) {
+              vts.add(latestVts(csKey));
             }
+            db.setTransactionSuccessful();
+          } finally {
+            db.endTransaction();
           }
-        } while (cursor.moveToNext());
+        }
+        return Observable.just(vts);
       }
+    });
+  }
+
+
+  //SELECT * FROM data_table WHERE CSKey LIKE CSKey% AND deleted = 0 AND vts <= maxVts
+  //       ORDER BY vts DESC LIMIT queryLimit
+  //Following pages use vts < last.vts, vts is unique so no row is read twice.
+  private String createDataQuery(CSKey csKey, long maxVts, CSValue last, int queryLimit) {
+    final Predicate vtsBound = (last == null)
+        ? le(DataTable.Columns.VTS, maxVts)
+        : lt(DataTable.Columns.VTS, last.vts());
+
+    final String q = select(DATA_COLUMNS).
+        from(DataTable.Properties.TABLE_NAME).
+        where(PathCodec.patternPredicate(csKey), eq(DataTable.Columns.DELETED, 0), vtsBound).
+        orderByDesc(DataTable.Columns.VTS).
+        limit(queryLimit).toString();
+
+    Log.d(TAG, q);
+
+    return q;
+  }
+
+  //SELECT * FROM data_log WHERE CSKey LIKE CSKey% AND deleted = 0 AND vts and cts in range
+  //       ORDER BY vts DESC LIMIT queryLimit       (or vts ASC, cts DESC, vts DESC, ...)
+  //Following pages continue after the last row: vts < last.vts, or in cts order
+  //cts <= last.cts AND (cts < last.cts OR (cts = last.cts AND vts < last.vts)). Both are ranges
+  //of an index, the primary key or data_log_cts.
+  private static String createLocalQuery(CSLocalQuery query, CSValue last, int queryLimit) {
+    Predicate p = Predicate.AND(PathCodec.patternPredicate(query.key()),
+        eq(DataTable.Columns.DELETED, 0));
+    if (query.minVts() != Long.MIN_VALUE) {
+      p = p.and(ge(DataTable.Columns.VTS, query.minVts()));
     }
-    finally {
-      cursor.close();
+    if (query.maxVts() != Long.MAX_VALUE) {
+      p = p.and(le(DataTable.Columns.VTS, query.maxVts()));
+    }
+    if (query.minCts() != Long.MIN_VALUE) {
+      p = p.and(ge(DataTable.Columns.CTS, query.minCts()));
+    }
+    if (query.maxCts() != Long.MAX_VALUE) {
+      p = p.and(le(DataTable.Columns.CTS, query.maxCts()));
+    }
+
+    final boolean desc;
+    final String[] order;
+    switch (query.order()) {
+      case VTS_ASC:
+        desc = false;
+        order = new String[] {DataTable.Columns.VTS};
+        break;
+      case CTS_DESC:
+        desc = true;
+        order = new String[] {DataTable.Columns.CTS, DataTable.Columns.VTS};
+        break;
+      case CTS_ASC:
+        desc = false;
+        order = new String[] {DataTable.Columns.CTS, DataTable.Columns.VTS};
+        break;
+      default:
+        desc = true;
+        order = new String[] {DataTable.Columns.VTS};
+    }
+
+    if (last != null) {
+      final Predicate afterVts = desc
+          ? lt(DataTable.Columns.VTS, last.vts()) : gt(DataTable.Columns.VTS, last.vts());
+      if (order.length == 1) {
+        p = p.and(afterVts);
+      } else {
+        //The redundant bound on cts alone lets SQLite range scan the cts index
+        final Predicate fromCts = desc
+            ? le(DataTable.Columns.CTS, last.cts()) : ge(DataTable.Columns.CTS, last.cts());
+        final Predicate afterCts = desc
+            ? lt(DataTable.Columns.CTS, last.cts()) : gt(DataTable.Columns.CTS, last.cts());
+        p = p.and(fromCts).and(
+            afterCts.or(Predicate.AND(eq(DataTable.Columns.CTS, last.cts()), afterVts)));
+      }
     }
 
-    return temp;
+    final From from = select(DATA_COLUMNS).from(DataTable.Properties.TABLE_NAME);
+    final String q = (desc ? from.where(p).orderByDesc(order) : from.where(p).orderByAsc(order))
+        .limit(queryLimit).toString();
+
+    Log.d(TAG, q);
+
+    return q;
+  }
+
+  @Override public Observable<List<Long>> vtsToFetch(final List<Long> vts) {
+    return Observable.defer(new Func0<Observable<List<Long>>>() {
+      @Override public Observable<List<Long>> call() {
+        return Observable.just(getDataForVtsArray(vts));
+      }
+    });
+  }
+
+  //SELECT vts FROM data_log WHERE vts IN (?, ?, ...)
+  //The vts are sent in chunks of MAX_BOUND_VTS to stay below SQLite's limit on bound parameters.
+  //Returns a new list of the vts that are not cached, in their original order and without
+  //duplicates; vtsArray is left untouched.
+  public List<Long> getDataForVtsArray(List<Long> vtsArray) {
+    final Set<Long> missing = new LinkedHashSet<>(vtsArray);
+    final Long[] all = missing.toArray(new Long[missing.size()]);
+
+    String[] args = new String[0];
+    String query = null;
+    for (int start = 0; start < all.length; start += MAX_BOUND_VTS) {
+      final int n = Math.min(MAX_BOUND_VTS, all.length - start);
+      if (args.length != n) {
+        args = new String[n];
+        query = cachedVtsQuery(n);
+      }
+      for (int i = 0; i < n; i++) {
+        args[i] = Long.toString(all[start + i]);
+      }
+
+      final Cursor cursor = db.rawQuery(query, args);
+      try {
+        while (cursor.moveToNext()) {
+          missing.remove(cursor.getLong(0));
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+
+    return new ArrayList<>(missing);
+  }
+
+  private static String cachedVtsQuery(int n) {
+    final StringBuilder sb = new StringBuilder("SELECT " + DataTable.Columns.VTS + " FROM " +
+        DataTable.Properties.TABLE_NAME + " WHERE " + DataTable.Columns.VTS + " IN (");
+    for (int i = 0; i < n; i++) {
+      sb.append(i == 0 ? "?" : ", ?");
+    }
+    return sb.append(")").toString();
   }
 
   //SELECT rvts FROM rvtsTable WHERE CSKey = 'CSKey' AND acl = 'acl';
@@ -280,8 +622,7 @@ public class SqliteDBManager extends SQLiteOpenHelper implements DBManager {
   @Override public Observable<Long> getRvtsAsync(final CSKey csKey) {
     return Observable.defer(new Func0<Observable<Long>>() {
       @Override public Observable<Long> call() {
-        return Observable.just(getRvts(csKey))
-            .subscribeOn(Schedulers.io());
+        return Observable.just(getRvts(csKey));
       }
     });
   }
@@ -300,30 +641,62 @@ public class SqliteDBManager extends SQLiteOpenHelper implements DBManager {
     Log.d(TAG, "SQL Adding Rvts for " + csKey);
   }
 
+  //Reads a row of DATA_COLUMNS
   private CSValue transformCursorToData(Cursor dataCursor) {
-    List<String> parts = new ArrayList<>();
-    for (int i = 0; i < 16; i++) {
-      final String part = dataCursor.getString(i);
-      if (part == null) break;
-      parts.add(part);
+    CSKey key = keyCache.decode(dataCursor.getBlob(0));
+    long vts = dataCursor.getLong(1);
+    long cts = dataCursor.getLong(2);
+    String acl = dataCursor.getString(4);
+    boolean deleted = dataCursor.getInt(5) != 0;
+
+    if (dataCursor.getInt(6) != 0) {
+      return CSValue.lazy(key, inflater(dataCursor.getBlob(3)), cts, vts, CSAcl.customAcl(acl),
+          deleted);
+    }
+    return new CSValue(key, dataCursor.getString(3), cts, vts, CSAcl.customAcl(acl), deleted);
+  }
+
+  //Stores data in column, deflated and flagged as such if it is large enough to be worth it
+  private void putData(ContentValues values, String column, String compressedColumn,
+      String data) {
+    if (data != null && config.compressionThreshold != CacheConfig.NO_COMPRESSION
+        && data.length() >= config.compressionThreshold) {
+      final byte[] deflated = Compression.deflate(data);
+      if (deflated != null) {
+        values.put(column, deflated);
+        values.put(compressedColumn, 1);
+        return;
+      }
     }
-    String[] path = parts.toArray(new String[parts.size()]);
-    long vts = dataCursor.getLong(16);
-    long cts = dataCursor.getLong(17);
-    String data = dataCursor.getString(18);
-    String acl = dataCursor.getString(19);
+    values.put(column, data);
+    values.put(compressedColumn, 0);
+  }
 
-    return new CSValue(CSKey.make(path), data, cts, vts, CSAcl.customAcl(acl), false);
+  //Inflates the data when CSValue.data() is first called rather than when the row is read
+  private static Func0<String> inflater(final byte[] compressed) {
+    return new Func0<String>() {
+      @Override public String call() {
+        return Compression.inflate(compressed);
+      }
+    };
   }
 
   @Override
-  public long addDirty(CSValue csValue) {
+  public Observable<Long> addDirty(final CSValue csValue) {
+    return Observable.defer(new Func0<Observable<Long>>() {
+      @Override public Observable<Long> call() {
+        return Observable.just(insertDirty(csValue));
+      }
+    });
+  }
+
+  private long insertDirty(CSValue csValue) {
     //INSERT INTO dirtyTable (path, ....) VALUES ('path', ....);
     ContentValues newDirty = new ContentValues();
     newDirty.put(DirtyTable.Columns.PATH, csValue.key().toString());
     newDirty.put(DirtyTable.Columns.VTS, csValue.vts());  // vts
     newDirty.put(DirtyTable.Columns.CTS, csValue.cts());  // cts
-    newDirty.put(DirtyTable.Columns.DATA, csValue.data()); // insert CSValue
+    putData(newDirty, DirtyTable.Columns.DATA, DirtyTable.Columns.COMPRESSED, csValue.data());
     newDirty.put(DirtyTable.Columns.ACL, csValue.acl().rawAcl());  // acl
 
     // Inserting Row
@@ -335,42 +708,73 @@ public class SqliteDBManager extends SQLiteOpenHelper implements DBManager {
     return insertRow;
   }
 
-  // SELECT * FROM data_log
+  //SELECT * FROM dirty_log ORDER BY cts, _id
+  //Streamed page by page so that a large backlog of offline writes is not loaded at once.
   @Override
-  public List<DirtyTableEntry> getDirtyData() { //TODO: change this method to return Observable?
-    List<DirtyTableEntry> dirtyTableEntryList = new ArrayList<>();
+  public Observable<DirtyTableEntry> getDirtyData() {
+    return Observable.create(new CursorOnSubscribe<DirtyTableEntry>(config.pageSize) {
+      @Override Cursor openPage(DirtyTableEntry last, int pageSize) {
+        return db.rawQuery(createDirtyQuery(last, pageSize), null);
+      }
 
-    Cursor cursor = db.rawQuery(DirtyTable.Statements.ALL_DIRTYDATA, null);
+      @Override DirtyTableEntry read(Cursor cursor) {
+        return transformCursorToDirty(cursor);
+      }
+    });
+  }
 
-    // looping through all rows and adding to list
-    if (cursor.moveToFirst()) {
-      do {
-        long rowId = cursor.getLong(0);
-        String[] path = cursor.getString(1).split("/");
-        long vts = cursor.getLong(2);
-        long cts = cursor.getLong(3);
-        String data = cursor.getString(4);
-        String acl = cursor.getString(5);
+  private static String createDirtyQuery(DirtyTableEntry last, int queryLimit) {
+    final Predicate after = (last == null)
+        ? Predicate.empty()
+        : gt(DirtyTable.Columns.CTS, last.csValue.cts())
+            .or(Predicate.AND(eq(DirtyTable.Columns.CTS, last.csValue.cts()),
+                gt(DirtyTable.Columns._ID, last.id)));
+
+    return select(DIRTY_COLUMNS).
+        from(DirtyTable.Properties.TABLE_NAME).
+        where(after).
+        orderByAsc(DirtyTable.Columns.CTS, DirtyTable.Columns._ID).
+        limit(queryLimit).toString();
+  }
 
-        CSValue csValue = new CSValue(CSKey.make(path), data, cts, vts, CSAcl.customAcl(acl), false);
+  private static DirtyTableEntry transformCursorToDirty(Cursor cursor) {
+    long rowId = cursor.getLong(0);
+    CSKey key = CSKey.fromString(cursor.getString(1));
+    long vts = cursor.getLong(2);
+    long cts = cursor.getLong(3);
+    String acl = cursor.getString(5);
 
-        DirtyTableEntry dirtyTableEntry = new DirtyTableEntry(rowId, csValue);
-        // Adding contact to list
-        dirtyTableEntryList.add(dirtyTableEntry);
-      } while (cursor.moveToNext());
+    if (cursor.getInt(6) != 0) {
+      return new DirtyTableEntry(rowId,
+          CSValue.lazy(key, inflater(cursor.getBlob(4)), cts, vts, CSAcl.customAcl(acl), false));
     }
-
-    cursor.close();
-    // return contact list
-    return dirtyTableEntryList;
+    return new DirtyTableEntry(rowId,
+        new CSValue(key, cursor.getString(4), cts, vts, CSAcl.customAcl(acl), false));
   }
 
   @Override
   public void deleteDirty(long id) {
     SQLiteStatement deleteDirty = db.compileStatement(DirtyTable.Statements.DELETE_DIRTY);
-    deleteDirty.bindLong(1, id);
+    try {
+      deleteDirty.bindLong(1, id);
+      executeUpdateDelete(deleteDirty);
+    } finally {
+      deleteDirty.close();
+    }
+  }
 
-    //TODO: Should use executeUpdateDelete() but requires API 11.
-    deleteDirty.execute();
+  /** A page of values read at readAt, waiting to be written to last_read */
+  private static final class Touch {
+    final CSKey csKey;
+    final long newestVts;
+    final long oldestVts;
+    final long readAt;
+
+    Touch(CSKey csKey, long newestVts, long oldestVts, long readAt) {
+      this.csKey = csKey;
+      this.newestVts = newestVts;
+      this.oldestVts = oldestVts;
+      this.readAt = readAt;
+    }
   }
 }
@@ -20,24 +20,36 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.ibm.csync.CSAuthData;
 import com.ibm.csync.CSKey;
+import com.ibm.csync.CSKeyPattern;
+import com.ibm.csync.CSQueryException;
 import com.ibm.csync.CSValue;
 import com.ibm.csync.acls.CSAcl;
 import com.ibm.csync.internals.request.Advance;
 import com.ibm.csync.internals.request.CSRequest;
 import com.ibm.csync.internals.request.Fetch;
 import com.ibm.csync.internals.request.Pub;
+import com.ibm.csync.internals.request.Query;
 import com.ibm.csync.internals.request.RequestEnvelope;
 import com.ibm.csync.internals.request.Sub;
 import com.ibm.csync.internals.request.Unsub;
 import com.ibm.csync.internals.response.AdvanceResponse;
 import com.ibm.csync.internals.response.CSValueDeserializer;
+import com.ibm.csync.internals.response.Error;
 import com.ibm.csync.internals.response.FetchResponse;
 import com.ibm.csync.internals.response.Happy;
+import com.ibm.csync.internals.response.QueryResponse;
 import com.ibm.csync.internals.response.ResponseEnvelope;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import rx.Observable;
+import rx.Scheduler;
 import rx.functions.Action1;
 import rx.functions.Func1;
 import rx.schedulers.Schedulers;
@@ -98,12 +110,27 @@ import rx.schedulers.Schedulers;
 public class CSTransport {
   public static final int MESSAGE_VERSION = 15;
   private static final AtomicLong nextId = new AtomicLong(0);
+  private static final long SEND_IDLE_TIMEOUT = 60000;    //in ms
   private static Gson gson;
   private WebSocketConnection socketConnection;
+  //Requests are sent one at a time in the order send() was called, from a daemon thread that
+  //stops once it is idle
+  private final Scheduler sendScheduler;
 
   public CSTransport(WebSocketConnection webSocketConnection) {
     this.socketConnection = webSocketConnection;
 
+    final ThreadPoolExecutor sendExecutor = new ThreadPoolExecutor(1, 1, SEND_IDLE_TIMEOUT,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, "CSync send");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    sendExecutor.allowCoreThreadTimeOut(true);
+    this.sendScheduler = Schedulers.from(sendExecutor);
+
     GsonBuilder gsonBuilder = new GsonBuilder();
     gsonBuilder.registerTypeAdapter(CSValue.class, new CSValueDeserializer());
     gson = gsonBuilder.create();
@@ -113,7 +140,8 @@ public class CSTransport {
     socketConnection.disconnect();
   }
 
-  public Observable<CSValue> liveValues(final CSKey csKey) {
+  /** Emits every value the server pushes, for all listens */
+  public Observable<CSValue> liveValues() {
     return socketConnection.messages()
         .filter(new Func1<ResponseEnvelope, Boolean>() {
           @Override public Boolean call(ResponseEnvelope responseEnvelope) {
@@ -124,10 +152,15 @@ public class CSTransport {
           @Override public CSValue call(ResponseEnvelope responseEnvelope) {
             return gson.fromJson(responseEnvelope.payload, CSValue.class);
           }
-        })
+        });
+  }
+
+  public Observable<CSValue> liveValues(final CSKey csKey) {
+    final CSKeyPattern pattern = CSKeyPattern.compile(csKey);
+    return liveValues()
         .filter(new Func1<CSValue, Boolean>() {
           @Override public Boolean call(CSValue csValue) {
-            return csValue.key().matches(csKey);
+            return pattern.matches(csValue.key());
           }
         });
   }
@@ -139,7 +172,7 @@ public class CSTransport {
 
     socketConnection
         .sendMessage(requestString)
-        .subscribeOn(Schedulers.io())
+        .subscribeOn(sendScheduler)
         .subscribe(new Action1<Boolean>() {
           @Override public void call(Boolean aBoolean) {
             System.out.println("[send] [" + aBoolean + "] " + requestString);
@@ -176,8 +209,12 @@ public class CSTransport {
   }
 
   public Observable<Happy> write(final CSKey csKey, final String data, final CSAcl acl) {
-    final CSRequest request =
-        new Pub(System.currentTimeMillis(), csKey.toArray(), data, false, acl.rawAcl());
+    return write(csKey, data, acl, System.currentTimeMillis());
+  }
+
+  public Observable<Happy> write(final CSKey csKey, final String data, final CSAcl acl,
+      final long cts) {
+    final CSRequest request = new Pub(cts, csKey.toArray(), data, false, acl.rawAcl());
 
     return send(request)
         .filter(new Func1<ResponseEnvelope, Boolean>() {
@@ -256,6 +293,33 @@ public class CSTransport {
                 });
     }
 
+  /**
+   * Asks the server for the given projection of the values matching csKey and predicate. Emits
+   * the rows of the response as one list, or a CSQueryException if the server rejects the query.
+   */
+  public Observable<List<String>> query(final CSKey csKey, final String predicate,
+      final List<String> projection) {
+    final CSRequest request = new Query(csKey.toString(), null, predicate, projection);
+
+    return send(request)
+        .filter(new Func1<ResponseEnvelope, Boolean>() {
+          @Override public Boolean call(ResponseEnvelope responseEnvelope) {
+            return responseEnvelope.kind.equals("query") || responseEnvelope.kind.equals("error");
+          }
+        })
+        .flatMap(new Func1<ResponseEnvelope, Observable<List<String>>>() {
+          @Override public Observable<List<String>> call(ResponseEnvelope responseEnvelope) {
+            if (responseEnvelope.kind.equals("error")) {
+              Error error = gson.fromJson(responseEnvelope.payload, Error.class);
+              return Observable.error(new CSQueryException(error.msg()));
+            }
+            QueryResponse response = gson.fromJson(responseEnvelope.payload, QueryResponse.class);
+            return Observable.just(response.response == null
+                ? Collections.<String>emptyList() : Arrays.asList(response.response));
+          }
+        });
+  }
+
   public Observable<Happy> delete(final CSKey csKey) {
     final CSRequest request =
         new Pub(System.currentTimeMillis(), csKey.toArray(), null, true, null);
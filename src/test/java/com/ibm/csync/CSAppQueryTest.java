@@ -0,0 +1,151 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.ibm.csync.internals.response.ResponseEnvelope;
+import com.ibm.csync.internals.websocket.WebSocketConnection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.observers.TestSubscriber;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CSAppQueryTest {
+  private final CSKey csKey = CSKey.fromString("rooms.*");
+  private final List<String> projection = Collections.singletonList("a");
+
+  private FakeServer server;
+  private TestScheduler scheduler;
+  private CSApp app;
+
+  @Before public void setUp() {
+    server = new FakeServer();
+    scheduler = new TestScheduler();
+    app = new CSApp.Builder("localhost", 1)
+        .scheduler(scheduler)
+        .queryCacheMaxAge(1, TimeUnit.MILLISECONDS)
+        .build();
+    app.connect(server, "provider", "token");
+  }
+
+  //tests the rows of a query response are emitted one by one.
+  @Test public void testQuery() {
+    TestSubscriber<String> subscriber = new TestSubscriber<>();
+    app.query(csKey, "a > 0", projection).subscribe(subscriber);
+
+    subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    subscriber.assertNoErrors();
+    assertEquals(Arrays.asList("{\"a\":1}", "{\"a\":2}"), subscriber.getOnNextEvents());
+  }
+
+  //tests an error frame fails the query with a CSQueryException.
+  @Test public void testRejectedQuery() {
+    TestSubscriber<String> subscriber = new TestSubscriber<>();
+    app.query(csKey, "rejected", projection).subscribe(subscriber);
+
+    subscriber.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    assertEquals(1, subscriber.getOnErrorEvents().size());
+    assertTrue(subscriber.getOnErrorEvents().get(0) instanceof CSQueryException);
+    assertEquals("bad predicate", subscriber.getOnErrorEvents().get(0).getMessage());
+  }
+
+  //tests a query the server does not answer in time gets the last result, or times out.
+  @Test public void testTimedOutQuery() throws InterruptedException {
+    TestSubscriber<String> answered = new TestSubscriber<>();
+    app.query(csKey, "a > 0", projection).subscribe(answered);
+    answered.awaitTerminalEvent(5, TimeUnit.SECONDS);
+    server.silent = true;
+    Thread.sleep(5);
+
+    TestSubscriber<String> stale = new TestSubscriber<>();
+    TestSubscriber<String> unanswered = new TestSubscriber<>();
+    app.query(csKey, "a > 0", projection).subscribe(stale);
+    app.query(csKey, "a > 1", projection).subscribe(unanswered);
+    scheduler.advanceTimeBy(30, TimeUnit.SECONDS);
+
+    stale.assertNoErrors();
+    assertEquals(answered.getOnNextEvents(), stale.getOnNextEvents());
+    assertEquals(1, unanswered.getOnErrorEvents().size());
+    assertTrue(unanswered.getOnErrorEvents().get(0) instanceof TimeoutException);
+  }
+
+  //tests queries fail once the app is closed.
+  @Test public void testClosedApp() {
+    app.unauthenticate();
+    TestSubscriber<String> subscriber = new TestSubscriber<>();
+    app.query(csKey, "a > 0", projection).subscribe(subscriber);
+
+    assertEquals(1, subscriber.getOnErrorEvents().size());
+    assertTrue(subscriber.getOnErrorEvents().get(0) instanceof CSyncClosedException);
+  }
+
+  /** Answers queries with two rows, or an error if the predicate is "rejected" */
+  private static class FakeServer implements WebSocketConnection {
+    private final Subject<ResponseEnvelope, ResponseEnvelope> messages =
+        PublishSubject.<ResponseEnvelope>create().toSerialized();
+    volatile boolean silent;
+
+    @Override public Observable<Boolean> sendMessage(String message) {
+      JsonObject request = new JsonParser().parse(message).getAsJsonObject();
+      if (silent || !request.get("kind").getAsString().equals("query")) {
+        return Observable.just(true);
+      }
+      final ResponseEnvelope response = new ResponseEnvelope();
+      response.closure = request.get("closure").getAsLong();
+      if (request.getAsJsonObject("payload").get("predicate").getAsString().equals("rejected")) {
+        response.kind = "error";
+        response.payload = json("{\"msg\":\"bad predicate\"}");
+      } else {
+        response.kind = "query";
+        response.payload = json("{\"response\":[\"{\\\"a\\\":1}\",\"{\\\"a\\\":2}\"]}");
+      }
+      //Answers once the caller is waiting for the response
+      Observable.timer(50, TimeUnit.MILLISECONDS).subscribe(new Action1<Long>() {
+        @Override public void call(Long tick) {
+          messages.onNext(response);
+        }
+      });
+      return Observable.just(true);
+    }
+
+    @Override public Observable<Boolean> disconnect() {
+      return Observable.just(true);
+    }
+
+    @Override public Observable<ResponseEnvelope> messages() {
+      return messages;
+    }
+
+    private static JsonObject json(String json) {
+      return new JsonParser().parse(json).getAsJsonObject();
+    }
+  }
+}
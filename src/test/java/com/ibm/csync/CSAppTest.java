@@ -21,8 +21,10 @@ import com.ibm.csync.acls.CSAcl;
 import com.ibm.csync.android.BuildConfig;
 
 import java.util.List;
+import java.util.Map;
 
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -158,6 +160,126 @@ public class CSAppTest {
     deleteSubscriber.awaitTerminalEvent();
   }
 
+  @Test public void testListenWithSnapshot() {
+    TestSubscriber<CSListenEvent> listenSubscriber = new TestSubscriber<>();
+    TestSubscriber<Boolean> writeSubscriber = new TestSubscriber<>();
+    TestSubscriber<Boolean> deleteSubscriber = new TestSubscriber<>();
+
+    CSKey key = CSKey.fromString("tests.android").uuidChild();
+
+    String data = "snapshot1234";
+    app.write(key, data, ACL).subscribe(writeSubscriber);
+    writeSubscriber.awaitTerminalEvent();
+
+    app.listenWithSnapshot(key).take(3).subscribe(listenSubscriber);
+    listenSubscriber.awaitTerminalEvent();
+    listenSubscriber.assertNoErrors();
+
+    List<CSListenEvent> events = listenSubscriber.getOnNextEvents();
+    assertEquals(3, events.size());
+    assertEquals(CSListenEvent.Kind.SNAPSHOT, events.get(0).kind());
+    assertEquals(CSListenEvent.Kind.SNAPSHOT_COMPLETE, events.get(1).kind());
+    assertEquals(CSListenEvent.Kind.DELTA, events.get(2).kind());
+    assertEquals(key, events.get(2).value().key());
+    assertEquals(data, events.get(2).value().data());
+
+    app.delete(key).subscribe(deleteSubscriber);
+    deleteSubscriber.awaitTerminalEvent();
+  }
+
+  @Test public void testView() {
+    TestSubscriber<CSValue> changesSubscriber = new TestSubscriber<>();
+    TestSubscriber<CSValue> writtenSubscriber = new TestSubscriber<>();
+    TestSubscriber<Boolean> writeSubscriber = new TestSubscriber<>();
+    TestSubscriber<Boolean> deleteSubscriber = new TestSubscriber<>();
+
+    CSKey key = CSKey.fromString("tests.android").uuidChild();
+    CSView view = app.view(key);
+    CSView other = app.view(key);
+    view.changes().take(2).subscribe(changesSubscriber);
+    other.changes().take(1).subscribe(writtenSubscriber);
+
+    String data = "view1234";
+    app.write(key, data, ACL).subscribe(writeSubscriber);
+    writeSubscriber.awaitTerminalEvent();
+
+    writtenSubscriber.awaitTerminalEvent();
+    Map<CSKey, CSValue> written = other.snapshot();
+    assertEquals(data, written.get(key).data());
+
+    app.delete(key).subscribe(deleteSubscriber);
+    deleteSubscriber.awaitTerminalEvent();
+    changesSubscriber.awaitTerminalEvent();
+    changesSubscriber.assertNoErrors();
+
+    assertTrue(view.snapshot().isEmpty());
+    assertEquals(1, written.size());
+    view.close();
+    other.close();
+  }
+
+  @Test public void testListenBatchedFlushesFullBatches() {
+    TestSubscriber<List<CSValue>> batchSubscriber = new TestSubscriber<>();
+
+    CSKey key = CSKey.fromString("tests.android").uuidChild();
+    for (int i = 0; i < 3; i++) {
+      TestSubscriber<Boolean> writeSubscriber = new TestSubscriber<>();
+      app.write(key.child("k" + i), "batch" + i, ACL).subscribe(writeSubscriber);
+      writeSubscriber.awaitTerminalEvent();
+    }
+
+    //the latency is far longer than the test, so only the size can flush the batch
+    app.listenBatched(key.child("*"), 3, 1, TimeUnit.HOURS).first().subscribe(batchSubscriber);
+    batchSubscriber.awaitTerminalEvent();
+    batchSubscriber.assertNoErrors();
+
+    assertEquals(3, batchSubscriber.getOnNextEvents().get(0).size());
+  }
+
+  @Test public void testListenBatchedFlushesAfterMaxLatency() {
+    TestSubscriber<List<CSValue>> batchSubscriber = new TestSubscriber<>();
+    TestSubscriber<Boolean> writeSubscriber = new TestSubscriber<>();
+
+    CSKey key = CSKey.fromString("tests.android").uuidChild();
+    String data = "batched1234";
+    app.write(key, data, ACL).subscribe(writeSubscriber);
+    writeSubscriber.awaitTerminalEvent();
+
+    app.listenBatched(key, 100, 500, TimeUnit.MILLISECONDS).first().subscribe(batchSubscriber);
+    batchSubscriber.awaitTerminalEvent();
+    batchSubscriber.assertNoErrors();
+
+    List<CSValue> batch = batchSubscriber.getOnNextEvents().get(0);
+    assertEquals(1, batch.size());
+    assertEquals(data, batch.get(0).data());
+  }
+
+  @Test public void testListenBatchedSkipsEmptyBatches() {
+    TestSubscriber<List<CSValue>> batchSubscriber = new TestSubscriber<>();
+
+    CSKey key = CSKey.fromString("tests.android").uuidChild();
+    app.listenBatched(key, 10, 50, TimeUnit.MILLISECONDS)
+        .take(500, TimeUnit.MILLISECONDS)
+        .subscribe(batchSubscriber);
+    batchSubscriber.awaitTerminalEvent();
+    batchSubscriber.assertNoErrors();
+
+    assertTrue(batchSubscriber.getOnNextEvents().isEmpty());
+  }
+
+  @Test public void testUnauthenticateClosesViews() {
+    TestSubscriber<CSValue> changesSubscriber = new TestSubscriber<>();
+
+    CSView view = app.view(CSKey.fromString("tests.android").uuidChild());
+    view.changes().subscribe(changesSubscriber);
+    app.unauthenticate();
+
+    changesSubscriber.awaitTerminalEvent();
+    changesSubscriber.assertNoErrors();
+    changesSubscriber.assertCompleted();
+    view.close();
+  }
+
   @Test public void testDeleteWildcard() {
     TestSubscriber<CSValue> listenSubscriber = new TestSubscriber<>();
     TestSubscriber<Boolean> writeSubscriber = new TestSubscriber<>();
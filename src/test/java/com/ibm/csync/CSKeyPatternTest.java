@@ -0,0 +1,77 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync;
+
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CSKeyPatternTest {
+  private void check(final boolean b, final String path, String pattern) {
+    final CSKey key = CSKey.fromString(path);
+    assertEquals(b, CSKeyPattern.compile(CSKey.fromString(pattern)).matches(key));
+    assertEquals(b, key.matches(CSKey.fromString(pattern)));
+  }
+
+  @Test public void matching() {
+    check(true, "a.b.c.d", "a.b.c.d");
+    check(true, "a.b.c.d", "#");
+    check(true, "a.b.c.d", "a.#");
+    check(true, "a.b.c.d", "a.b.c.d.#");
+    check(false, "a.b.c.d", "a.b.c.d.e.#");
+    check(true, "a", "a.#");
+    check(false, "a.b.c.d", "b.#");
+    check(true, "a.b.c.d", "*.*.*.*");
+    check(false, "a.b.c.d", "*.*.*");
+    check(true, "a.b.c.d", "a.*.c.d");
+    check(false, "a.b.c.d", "a.*.c.d.e");
+    check(true, "a", "*.#");
+    check(false, "a", "a.*.#");
+    check(true, "a.x.y", "a.#.c");
+  }
+
+  @Test public void literalsAreComparedByValue() {
+    final CSKey key = CSKey.make(new String(new char[] {'a'}), new String(new char[] {'b'}));
+    assertTrue(CSKeyPattern.compile(CSKey.make("a", "b")).matches(key));
+    assertFalse(CSKeyPattern.compile(CSKey.make("a", "c")).matches(key));
+    assertFalse(CSKeyPattern.compile(CSKey.make("a")).matches(null));
+  }
+
+  //tests compiled patterns agree with CSKey.matches() on random keys and patterns.
+  @Test public void agreesWithMatches() {
+    final String[] parts = {"a", "b", "c"};
+    final String[] patternParts = {"a", "b", "*", "#"};
+    final Random random = new Random(42);
+    for (int i = 0; i < 10000; i++) {
+      CSKey key = CSKey.root;
+      for (int n = random.nextInt(5); n > 0; n--) {
+        key = key.child(parts[random.nextInt(parts.length)]);
+      }
+      CSKey pattern = CSKey.root;
+      for (int n = random.nextInt(5); n > 0; n--) {
+        pattern = pattern.child(patternParts[random.nextInt(patternParts.length)]);
+      }
+      if (key.length == 0 || pattern.length == 0) continue;
+
+      assertEquals(key + " ~ " + pattern, key.matches(pattern),
+          CSKeyPattern.compile(pattern).matches(key));
+    }
+  }
+}
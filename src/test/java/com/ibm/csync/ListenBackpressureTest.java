@@ -0,0 +1,86 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync;
+
+import com.ibm.csync.acls.CSAcl;
+import com.ibm.csync.internals.MemoryDBManager;
+import com.ibm.csync.internals.VtsWatermarks;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ListenBackpressureTest {
+  private CSKey csKey = CSKey.make("rooms", "public");
+  private VtsWatermarks watermarks = new VtsWatermarks(new MemoryDBManager(), 100);
+
+  //tests a NONE subscriber requesting one value does not have every cached value read for it.
+  @Test public void testCachedValuesAreReadOnDemand() {
+    final AtomicLong requested = new AtomicLong();
+    Observable<CSValue> cached = Observable.range(1, 10000)
+        .map(new Func1<Integer, CSValue>() {
+          @Override public CSValue call(Integer i) {
+            return value("k" + i, i);
+          }
+        })
+        .doOnRequest(new Action1<Long>() {
+          @Override public void call(Long n) {
+            requested.set(Math.min(Long.MAX_VALUE - n, requested.get()) + n);
+          }
+        });
+    TestSubscriber<CSValue> subscriber = new TestSubscriber<>(1);
+
+    CSApp.withBackpressure(
+        CSApp.newerValues(PublishSubject.<CSValue>create(), cached, watermarks),
+        CSBackpressure.NONE).subscribe(subscriber);
+
+    assertEquals(1, subscriber.getOnNextEvents().size());
+    assertTrue(requested.get() < 10000);
+  }
+
+  //tests a CONFLATE subscriber requesting one value leaves at most one pending value per key.
+  @Test public void testConflateKeepsOneValuePerKey() {
+    PublishSubject<CSValue> view = PublishSubject.create();
+    TestSubscriber<CSValue> subscriber = new TestSubscriber<>(1);
+
+    CSApp.withBackpressure(
+        CSApp.newerValues(view, Observable.<CSValue>empty(), watermarks),
+        CSBackpressure.CONFLATE).subscribe(subscriber);
+    for (int vts = 1; vts <= 1000; vts++) {
+      view.onNext(value(vts % 2 == 0 ? "even" : "odd", vts));
+    }
+    assertEquals(1, subscriber.getOnNextEvents().size());
+
+    subscriber.requestMore(1000);
+    List<CSValue> values = subscriber.getOnNextEvents();
+    assertEquals(3, values.size());
+    assertEquals(1000, values.get(1).vts());
+    assertEquals(999, values.get(2).vts());
+  }
+
+  private CSValue value(String key, long vts) {
+    return new CSValue(csKey.child(key), "data", vts, vts, CSAcl.PUBLIC_READ, false);
+  }
+}
@@ -17,6 +17,14 @@
 package com.ibm.csync;
 
 import com.ibm.csync.internals.query.Predicate;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Test;
 
 import static com.ibm.csync.internals.query.Predicate.empty;
@@ -26,7 +34,9 @@ import static com.ibm.csync.internals.query.Predicate.isNull;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class PathTest {
@@ -36,6 +46,8 @@ public class PathTest {
 
   @Test public void root() {
     assertEquals(CSKey.make(), CSKey.root);
+    assertEquals("", CSKey.root.toString());
+    assertSame(CSKey.root, CSKey.fromString(""));
   }
 
   @Test public void parent() {
@@ -53,6 +65,43 @@ public class PathTest {
     assertEquals(CSKey.make("hello", "world"), CSKey.make("hello").child("world"));
   }
 
+  @Test public void interned() {
+    final CSKey csKey = CSKey.make("hello", "world");
+    assertSame(csKey, CSKey.fromString("hello.world"));
+    assertSame(csKey, CSKey.root.child("hello").child("world"));
+    assertSame(csKey.parent(), CSKey.make("hello"));
+    assertEquals(csKey.hashCode(), CSKey.make("hello", "world").hashCode());
+    assertFalse(csKey.equals(CSKey.make("hello", "there")));
+  }
+
+  //tests keys created concurrently are interned to one instance.
+  @Test public void internedConcurrently() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    final List<Future<CSKey>> keys = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      keys.add(executor.submit(new Callable<CSKey>() {
+        @Override public CSKey call() {
+          return CSKey.make("concurrent", "a", "b");
+        }
+      }));
+    }
+    for (final Future<CSKey> key : keys) {
+      assertSame(keys.get(0).get(), key.get());
+    }
+    executor.shutdown();
+  }
+
+  //tests keys that are no longer used are garbage collected.
+  @Test public void internedWeakly() throws InterruptedException {
+    final WeakReference<CSKey> ref = new WeakReference<>(CSKey.make("weak", "key"));
+    for (int i = 0; i < 50 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(ref.get());
+    assertNotNull(CSKey.make("weak", "key"));
+  }
+
   @Test public void toArray() {
     assertArrayEquals(new String[] {"hello", "world"}, CSKey.make("hello", "world").toArray());
   }
@@ -72,6 +121,52 @@ public class PathTest {
     assertEquals(arr[2], "c");
   }
 
+  @Test public void fromStringSharesPrefixes() {
+    final CSKey csKey = CSKey.fromString("a.b.c");
+    assertSame(csKey.parent(), CSKey.fromString("a.b.d").parent());
+    assertSame(csKey, CSKey.make("a", "b", "c"));
+  }
+
+  @Test public void invalidComponents() {
+    final String[] invalid = {"a..b", "a.", ".a", "a.b c", "a.b\tc", "a.b*", "a.#b", "a.\u0000"};
+    for (final String x : invalid) {
+      try {
+        CSKey.fromString(x);
+        throw new AssertionError("Parsed invalid key: " + x);
+      } catch (IllegalArgumentException expected) {
+        //expected
+      }
+    }
+    try {
+      CSKey.make("a", "b.c");
+      throw new AssertionError("Made invalid key");
+    } catch (IllegalArgumentException expected) {
+      //expected
+    }
+  }
+
+  //tests random keys of valid components survive toString() and fromString().
+  @Test public void roundTrip() {
+    final String alphabet = "ab-_09XéΩ*#";
+    final Random random = new Random(7);
+    for (int i = 0; i < 10000; i++) {
+      final int length = 1 + random.nextInt(8);
+      final String[] parts = new String[length];
+      for (int p = 0; p < length; p++) {
+        final char first = alphabet.charAt(random.nextInt(alphabet.length()));
+        final StringBuilder part = new StringBuilder().append(first);
+        while (first != '*' && first != '#' && random.nextInt(3) != 0) {
+          part.append(alphabet.charAt(random.nextInt(alphabet.length() - 2)));
+        }
+        parts[p] = part.toString();
+      }
+
+      final CSKey csKey = CSKey.make(parts);
+      assertSame(csKey, CSKey.fromString(csKey.toString()));
+      assertArrayEquals(parts, CSKey.fromString(csKey.toString()).toArray());
+    }
+  }
+
   private void check(final boolean b, final String path, String pattern) {
     assertEquals(b, CSKey.fromString(path).matches(CSKey.fromString(pattern)));
     assertEquals(b, CSKey.fromString(pattern).matches(CSKey.fromString(path)));
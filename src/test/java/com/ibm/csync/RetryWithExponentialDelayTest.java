@@ -81,5 +81,6 @@ public class RetryWithExponentialDelayTest {
 
     assertEquals(maxRetries, retryCount);
     assertEquals(0, subscriber.getOnNextEvents().size());
+    assertEquals(1, subscriber.getOnErrorEvents().size());
   }
 }
\ No newline at end of file
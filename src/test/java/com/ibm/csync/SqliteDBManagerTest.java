@@ -18,10 +18,14 @@ package com.ibm.csync.android;
 
 import android.content.Context;
 import com.ibm.csync.CSKey;
+import com.ibm.csync.CSLocalQuery;
 import com.ibm.csync.CSValue;
 import com.ibm.csync.acls.CSAcl;
+import com.ibm.csync.internals.CacheConfig;
 import com.ibm.csync.internals.sqlite.DirtyTableEntry;
 import com.ibm.csync.internals.sqlite.SqliteDBManager;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.junit.After;
 import org.junit.Before;
@@ -40,6 +44,7 @@ import static org.junit.Assert.assertTrue;
 @Config(constants = BuildConfig.class, sdk = 21)
 public class SqliteDBManagerTest {
   SqliteDBManager sqlite;
+  Context context;
   private long NO_RVTS_FOUND = 0L;
 
   private String TEST_DATA = "This is a test CSValue string";
@@ -50,7 +55,7 @@ public class SqliteDBManagerTest {
   private CSValue CSValue2;
 
   @Before public void setUp() {
-    Context context = RuntimeEnvironment.application.getApplicationContext();
+    context = RuntimeEnvironment.application.getApplicationContext();
     sqlite = new SqliteDBManager(context, null);
 
     CSValue1 = new CSValue(csKey, "TEST CSValue string", 2222, 1111, ACL, false);
@@ -137,6 +142,236 @@ public class SqliteDBManagerTest {
     assertDataEquals(CSValueFromDB.get(0), CSValue1);
   }
 
+  //tests vtsToFetch() with an advance response of 10k vts, more than one query can bind.
+  @Test public void testVtsToFetchLargeAdvance() {
+    List<Long> advanceVts = new ArrayList<>();
+    for (long vts = 1; vts <= 10000; vts++) {
+      advanceVts.add(vts);
+      if (vts % 10 == 0) {
+        sqlite.addData(new CSValue(csKey.child("k" + vts), "data", vts, vts, ACL, false));
+      }
+    }
+    List<Long> advanceCopy = new ArrayList<>(advanceVts);
+
+    TestSubscriber<List<Long>> subscriber = new TestSubscriber<>();
+    sqlite.vtsToFetch(advanceVts).subscribe(subscriber);
+
+    List<Long> toFetch = subscriber.getOnNextEvents().get(0);
+    assertEquals(9000, toFetch.size());
+    for (int i = 0; i < toFetch.size(); i++) {
+      assertTrue(toFetch.get(i) % 10 != 0);
+      assertTrue(i == 0 || toFetch.get(i - 1) < toFetch.get(i));
+    }
+    assertEquals(advanceCopy, advanceVts);
+  }
+
+  //tests keys deeper than 16 components are cached in full and found by every kind of pattern.
+  @Test public void testDeepKeysAndPatterns() {
+    CSKey deepKey = CSKey.fromString("a.b.c.d.e.f.g.h.i.j.k.l.m.n.o.p.q.r.s.t");
+    CSKey siblingKey = CSKey.fromString("a.x.c");
+    sqlite.addData(new CSValue(deepKey, "deep", 1, 1, ACL, false));
+    sqlite.addData(new CSValue(siblingKey, "sibling", 2, 2, ACL, false));
+
+    assertCached(deepKey, 1);
+    assertCached(CSKey.fromString("a.b.#"), 1);
+    assertCached(CSKey.fromString("a.#"), 2, 1);
+    assertCached(CSKey.fromString("a.*.c"), 2);
+    assertCached(CSKey.fromString("*.*.c.#"), 2, 1);
+    assertCached(CSKey.fromString("a.b.c.d.e.f.g.h.i.j.k.l.m.n.o.p.q.r.s.*"), 1);
+    assertCached(CSKey.fromString("a.b.c.d.e.f.g.h.i.j.k.l.m.n.o.p.q.r.s.u"));
+
+    TestSubscriber<CSValue> subscriber = new TestSubscriber<>();
+    sqlite.cachedValues(deepKey, Long.MAX_VALUE).subscribe(subscriber);
+    assertEquals(deepKey, subscriber.getOnNextEvents().get(0).key());
+  }
+
+  private void assertCached(CSKey pattern, long... vts) {
+    TestSubscriber<CSValue> subscriber = new TestSubscriber<>();
+    sqlite.cachedValues(pattern, Long.MAX_VALUE).subscribe(subscriber);
+
+    List<CSValue> CSValueFromDB = subscriber.getOnNextEvents();
+    assertEquals(vts.length, CSValueFromDB.size());
+    for (int i = 0; i < vts.length; i++) {
+      assertEquals(vts[i], CSValueFromDB.get(i).vts());
+    }
+  }
+
+  //tests addData() keeps only the newest vts of a key.
+  @Test public void testAddDataKeepsLatestPerKey() {
+    CSValue newer = new CSValue(csKey, "Newer CSValue string", 4444, 3333, ACL, false);
+    CSValue older = new CSValue(csKey, "Older CSValue string", 3333, 2222, ACL, false);
+
+        /* 1. A newer vts for the same key replaces the cached row */
+    sqlite.addData(CSValue1);
+    sqlite.addData(newer);
+
+    TestSubscriber<CSValue> subscriber1 = new TestSubscriber<>();
+    sqlite.cachedValues(csKey, Long.MAX_VALUE).subscribe(subscriber1);
+    List<CSValue> CSValueFromDB = subscriber1.getOnNextEvents();
+    assertEquals(1, CSValueFromDB.size());
+    assertDataEquals(CSValueFromDB.get(0), newer);
+
+        /* 2. An older vts arriving late does not bring back a stale version */
+    sqlite.addData(older);
+
+    TestSubscriber<CSValue> subscriber2 = new TestSubscriber<>();
+    sqlite.cachedValues(csKey, Long.MAX_VALUE).subscribe(subscriber2);
+    CSValueFromDB = subscriber2.getOnNextEvents();
+    assertEquals(1, CSValueFromDB.size());
+    assertDataEquals(CSValueFromDB.get(0), newer);
+  }
+
+  //tests tombstones are persisted, hidden from cached reads and collected once every rvts passed.
+  @Test public void testTombstones() {
+    CSValue tombstone = new CSValue(csKey, null, 4444, 3333, ACL, true);
+
+        /* 1. The tombstone replaces the live value and is not emitted by cachedValues() */
+    sqlite.addData(CSValue1);
+    sqlite.addData(tombstone);
+
+    TestSubscriber<CSValue> subscriber = new TestSubscriber<>();
+    sqlite.cachedValues(csKey, Long.MAX_VALUE).subscribe(subscriber);
+    assertEquals(0, subscriber.getOnNextEvents().size());
+
+    List<Long> vts = Arrays.asList(tombstone.vts());
+    assertTrue(sqlite.getDataForVtsArray(new ArrayList<>(vts)).isEmpty());
+
+        /* 2. The tombstone is kept while some rvts is not past it */
+    sqlite.upsertRvts(csKey, tombstone.vts() + 1);
+    sqlite.upsertRvts(CSKey.make("other"), tombstone.vts() - 1);
+    sqlite.collectTombstones();
+    assertTrue(sqlite.getDataForVtsArray(new ArrayList<>(vts)).isEmpty());
+
+        /* 3. Once every rvts is past it the tombstone is collected */
+    sqlite.upsertRvts(CSKey.make("other"), tombstone.vts() + 1);
+    sqlite.collectTombstones();
+    assertEquals(vts, sqlite.getDataForVtsArray(new ArrayList<>(vts)));
+  }
+
+  //tests evict() drops the least recently read values and resets the rvts of their patterns.
+  @Test public void testEvictLeastRecentlyRead() throws InterruptedException {
+    CacheConfig config = new CacheConfig();
+    config.maxRows = 2;
+    sqlite.close();
+    sqlite = new SqliteDBManager(context, null, config);
+
+    CSKey pattern = csKey.child("#");
+    CSKey otherPattern = CSKey.make("other", "#");
+    sqlite.upsertRvts(pattern, 3);
+    sqlite.upsertRvts(otherPattern, 3);
+
+    for (int i = 1; i <= 3; i++) {
+      sqlite.addData(new CSValue(csKey.child("k" + i), "data" + i, i, i, ACL, false));
+      Thread.sleep(5);
+    }
+
+        /* 1. Reading k1 makes k2 the least recently read value */
+    TestSubscriber<CSValue> readSubscriber = new TestSubscriber<>();
+    sqlite.cachedValues(csKey.child("k1"), Long.MAX_VALUE).subscribe(readSubscriber);
+    assertEquals(1, readSubscriber.getOnNextEvents().size());
+
+        /* 2. Evicting down to 2 rows drops k2 and resets only the rvts of matching patterns */
+    sqlite.evict();
+
+    TestSubscriber<CSValue> subscriber = new TestSubscriber<>();
+    sqlite.cachedValues(pattern, Long.MAX_VALUE).subscribe(subscriber);
+    List<CSValue> CSValueFromDB = subscriber.getOnNextEvents();
+    assertEquals(2, CSValueFromDB.size());
+    assertEquals(3, CSValueFromDB.get(0).vts());
+    assertEquals(1, CSValueFromDB.get(1).vts());
+
+    assertEquals(NO_RVTS_FOUND, sqlite.getRvts(pattern));
+    assertEquals(3, sqlite.getRvts(otherPattern));
+  }
+
+  //tests cachedValues() only reads the next page on demand and never re-reads a row.
+  @Test public void testCachedValuesPaging() {
+    CacheConfig config = new CacheConfig();
+    config.pageSize = 2;
+    sqlite.close();
+    sqlite = new SqliteDBManager(context, null, config);
+
+    for (int i = 1; i <= 5; i++) {
+      sqlite.addData(new CSValue(csKey.child("k" + i), "data" + i, i, i, ACL, false));
+    }
+
+        /* 1. Nothing is emitted until the subscriber requests values */
+    TestSubscriber<CSValue> subscriber = new TestSubscriber<>(0);
+    sqlite.cachedValues(csKey.child("*"), Long.MAX_VALUE).subscribe(subscriber);
+    assertEquals(0, subscriber.getOnNextEvents().size());
+
+        /* 2. Requests spanning a page boundary emit exactly what was requested, newest first */
+    subscriber.requestMore(3);
+    List<CSValue> CSValueFromDB = subscriber.getOnNextEvents();
+    assertEquals(3, CSValueFromDB.size());
+    assertEquals(5, CSValueFromDB.get(0).vts());
+    assertEquals(4, CSValueFromDB.get(1).vts());
+    assertEquals(3, CSValueFromDB.get(2).vts());
+    subscriber.assertNoTerminalEvent();
+
+        /* 3. The rest of the rows follow without duplicates and the stream completes */
+    subscriber.requestMore(10);
+    CSValueFromDB = subscriber.getOnNextEvents();
+    assertEquals(5, CSValueFromDB.size());
+    assertEquals(2, CSValueFromDB.get(3).vts());
+    assertEquals(1, CSValueFromDB.get(4).vts());
+    subscriber.assertCompleted();
+  }
+
+  //tests local queries select by pattern and range, skip tombstones and page in order.
+  @Test public void testQuery() {
+    CacheConfig config = new CacheConfig();
+    config.pageSize = 2;
+    sqlite.close();
+    sqlite = new SqliteDBManager(context, null, config);
+
+    for (int i = 1; i <= 6; i++) {
+      sqlite.addData(new CSValue(csKey.child("k" + i), "data" + i, (i % 3) * 10, i, ACL, i == 4));
+    }
+    sqlite.addData(new CSValue(CSKey.make("rooms", "other", "k7"), "data7", 10, 7, ACL, false));
+
+    CSLocalQuery query = CSLocalQuery.of(csKey.child("*"));
+    assertQuery(query.limit(2), 6, 5);
+    assertQuery(query.vtsFrom(2).orderBy(CSLocalQuery.Order.VTS_ASC), 2, 3, 5, 6);
+    assertQuery(query.orderBy(CSLocalQuery.Order.CTS_DESC), 5, 2, 1, 6, 3);
+    assertQuery(query.ctsFrom(10).vtsTo(5).orderBy(CSLocalQuery.Order.CTS_ASC), 1, 2, 5);
+  }
+
+  private void assertQuery(CSLocalQuery query, long... vts) {
+    List<CSValue> values = sqlite.query(query).toList().toBlocking().single();
+    assertEquals(vts.length, values.size());
+    for (int i = 0; i < vts.length; i++) {
+      assertEquals(vts[i], values.get(i).vts());
+    }
+  }
+
+  @Test public void testCompressedValues() {
+    CacheConfig config = new CacheConfig();
+    config.compressionThreshold = 100;
+    sqlite.close();
+    sqlite = new SqliteDBManager(context, null, config);
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append("{\"reading\":").append(i).append("},");
+    }
+    String large = sb.toString();
+
+    sqlite.addData(new CSValue(csKey.child("large"), large, 1, 1, ACL, false));
+    sqlite.addData(new CSValue(csKey.child("small"), TEST_DATA, 2, 2, ACL, false));
+    sqlite.addDirty(new CSValue(csKey.child("large"), large, 3, 0, ACL, false))
+        .toBlocking().single();
+
+    List<CSValue> cached =
+        sqlite.cachedValues(csKey.child("*"), Long.MAX_VALUE).toList().toBlocking().single();
+    assertEquals(2, cached.size());
+    assertEquals(TEST_DATA, cached.get(0).data());
+    assertEquals(large, cached.get(1).data());
+
+    DirtyTableEntry dirty = sqlite.getDirtyData().toBlocking().single();
+    assertEquals(large, dirty.csValue.data());
+  }
+
   //@Test public void testGetCount() {
   //  //CSValue1.vts = 1111;
   //  //CSValue2.vts = 2222;
@@ -0,0 +1,109 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.CSyncClosedException;
+import com.ibm.csync.acls.CSAcl;
+import com.ibm.csync.internals.sqlite.DirtyTableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+public class ExecutorDBManagerTest {
+  private final CSKey csKey = CSKey.make("tests", "android");
+
+  @Test public void testWritesAreAppliedInOrder() {
+    final List<Long> deleted = new ArrayList<>();
+    final MemoryDBManager memory = new MemoryDBManager() {
+      @Override public void deleteDirty(long id) {
+        deleted.add(id);
+        super.deleteDirty(id);
+      }
+    };
+    final ExecutorDBManager db = new ExecutorDBManager(memory);
+
+    final List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      ids.add(db.addDirty(value(i)).toBlocking().single());
+    }
+    for (long id : ids) {
+      db.deleteDirty(id);
+    }
+
+    //Reads are queued behind the writes made before them
+    final List<DirtyTableEntry> dirty = db.getDirtyData().toList().toBlocking().single();
+    assertEquals(0, dirty.size());
+    assertEquals(ids, deleted);
+    db.closeDB();
+  }
+
+  @Test public void testOperationsRunOnTheDatabaseThread() {
+    final List<Thread> threads = new ArrayList<>();
+    final ExecutorDBManager db = new ExecutorDBManager(new MemoryDBManager() {
+      @Override public long getRvts(CSKey csKey) {
+        threads.add(Thread.currentThread());
+        return super.getRvts(csKey);
+      }
+    });
+
+    db.getRvts(csKey);
+    db.getRvtsAsync(csKey).toBlocking().single();
+
+    assertEquals(2, threads.size());
+    assertEquals(threads.get(0), threads.get(1));
+    assertNotSame(Thread.currentThread(), threads.get(0));
+    db.closeDB();
+  }
+
+  //tests writes queued before the close still run, and later calls fail or do nothing.
+  @Test public void testCallsAfterClose() {
+    final List<CSValue> added = new ArrayList<>();
+    final ExecutorDBManager db = new ExecutorDBManager(new MemoryDBManager() {
+      @Override public void addData(CSValue csValue) {
+        added.add(csValue);
+      }
+    });
+
+    db.addData(value(1));
+    db.closeDB();
+    db.addData(value(2));
+    db.closeDB();
+
+    try {
+      db.latestVts(csKey.child("k1"));
+      fail();
+    } catch (CSyncClosedException expected) {
+    }
+    TestSubscriber<Long> subscriber = new TestSubscriber<>();
+    db.latestVtsAsync(csKey.child("k1")).subscribe(subscriber);
+    subscriber.awaitTerminalEvent();
+    subscriber.assertError(CSyncClosedException.class);
+    assertEquals(1, added.size());
+    assertEquals("data1", added.get(0).data());
+  }
+
+  private CSValue value(int i) {
+    return new CSValue(csKey.child("k" + i), "data" + i, i, 0, CSAcl.PRIVATE, false);
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.acls.CSAcl;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HotTierDBManagerTest {
+  private CSKey csKey = CSKey.make("rooms", "public");
+  private CSAcl ACL = CSAcl.PUBLIC_READ_WRITE_CREATE;
+
+  private int coldReads;
+  private Metrics metrics;
+  private MemoryDBManager cold;
+  private HotTierDBManager db;
+
+  @Before public void setUp() {
+    coldReads = 0;
+    metrics = new Metrics();
+    cold = new MemoryDBManager() {
+      @Override public Observable<CSValue> cachedValues(CSKey csKey, long maxVts) {
+        coldReads++;
+        return super.cachedValues(csKey, maxVts);
+      }
+    };
+    db = new HotTierDBManager(cold, 10, metrics);
+  }
+
+  //tests the second read of a pattern is answered from memory, including later writes.
+  @Test public void testReadsOfACompletePatternStayInMemory() {
+    cold.addData(value("k1", 1));
+    cold.addData(value("k2", 2));
+    CSKey pattern = csKey.child("*");
+
+    assertCached(pattern, 2, 1);
+    assertEquals(1, coldReads);
+
+    db.addData(value("k3", 3));
+    db.addData(value("k1", 4));
+    assertCached(pattern, 4, 3, 2);
+    assertCached(csKey.child("k2"), 2);
+    assertEquals(1, coldReads);
+    assertEquals(2, metrics.hotHits.get());
+    assertEquals(1, metrics.hotMisses.get());
+  }
+
+  //tests written values alone never make a pattern complete.
+  @Test public void testWriteThroughDoesNotCompletePatterns() {
+    cold.addData(value("k1", 1));
+    db.addData(value("k2", 2));
+
+    assertCached(csKey.child("*"), 2, 1);
+    assertEquals(1, coldReads);
+  }
+
+  //tests tombstones written through hide the values they delete.
+  @Test public void testTombstones() {
+    cold.addData(value("k1", 1));
+    assertCached(csKey.child("#"), 1);
+
+    db.addData(new CSValue(csKey.child("k1"), null, 2, 2, ACL, true));
+    assertCached(csKey.child("#"));
+    assertCached(csKey.child("k1"));
+    assertEquals(1, coldReads);
+  }
+
+  //tests a pattern is read from the database again once one of its keys is pushed out.
+  @Test public void testRemovalsInvalidatePatterns() {
+    cold.addData(value("k1", 1));
+    assertCached(csKey.child("*"), 1);
+
+    for (int i = 0; i < 10; i++) {
+      CSKey other = CSKey.make("other", "k" + i);
+      cold.addData(new CSValue(other, "data", i, 100 + i, ACL, false));
+      assertCached(other, 100 + i);
+    }
+    assertCached(csKey.child("*"), 1);
+    assertEquals(12, coldReads);
+  }
+
+  //tests writes to keys nobody read stay out of the hot tier and leave complete patterns alone.
+  @Test public void testUnreadWritesAreNotAdmitted() {
+    cold.addData(value("k1", 1));
+    assertCached(csKey.child("*"), 1);
+
+    for (int i = 0; i < 10; i++) {
+      db.addData(new CSValue(CSKey.make("other", "k" + i), "data", i, 100 + i, ACL, false));
+    }
+    assertCached(csKey.child("*"), 1);
+    assertEquals(1, coldReads);
+  }
+
+  //tests values the database evicts are no longer answered from memory.
+  @Test public void testEvictionInvalidatesPatterns() throws InterruptedException {
+    CacheConfig config = new CacheConfig();
+    config.ttl = 1;
+    final int[] batches = new int[1];
+    cold = new MemoryDBManager(config, metrics) {
+      @Override public Observable<CSValue> cachedValues(CSKey csKey, long maxVts) {
+        coldReads++;
+        return super.cachedValues(csKey, maxVts);
+      }
+
+      @Override public Observable<List<Long>> latestVtsAsync(List<CSKey> csKeys) {
+        batches[0]++;
+        return super.latestVtsAsync(csKeys);
+      }
+    };
+    db = new HotTierDBManager(cold, 10, metrics);
+
+    cold.addData(value("k1", 1));
+    cold.addData(value("k2", 2));
+    assertCached(csKey.child("*"), 2, 1);
+
+    Thread.sleep(5);
+    db.evict();
+    assertEquals(1, batches[0]);
+    assertEquals(DBManager.NO_VTS_FOUND, db.latestVts(csKey.child("k1")));
+    assertCached(csKey.child("*"));
+    assertEquals(2, coldReads);
+  }
+
+  //tests patterns too large for the hot tier are not kept.
+  @Test public void testLargePatternsAreNotKept() {
+    for (int i = 1; i <= 6; i++) {
+      cold.addData(value("k" + i, i));
+    }
+    assertCached(csKey.child("*"), 6, 5, 4, 3, 2, 1);
+    assertCached(csKey.child("*"), 6, 5, 4, 3, 2, 1);
+    assertEquals(2, coldReads);
+  }
+
+  @Test public void testCovers() {
+    assertTrue(HotTierDBManager.covers(arr("a.#"), arr("a")));
+    assertTrue(HotTierDBManager.covers(arr("a.#"), arr("a.*.c.#")));
+    assertTrue(HotTierDBManager.covers(arr("a.*"), arr("a.*")));
+    assertTrue(HotTierDBManager.covers(arr("a.*"), arr("a.b")));
+    assertFalse(HotTierDBManager.covers(arr("a.b"), arr("a.*")));
+    assertFalse(HotTierDBManager.covers(arr("a.*"), arr("a.#")));
+    assertFalse(HotTierDBManager.covers(arr("a.*"), arr("a.b.c")));
+    assertFalse(HotTierDBManager.covers(arr("a.b.c"), arr("a.b")));
+  }
+
+  private String[] arr(String key) {
+    return CSKey.fromString(key).toArray();
+  }
+
+  private CSValue value(String name, long vts) {
+    return new CSValue(csKey.child(name), "data" + vts, vts, vts, ACL, false);
+  }
+
+  private void assertCached(CSKey pattern, long... vts) {
+    List<CSValue> cached =
+        db.cachedValues(pattern, Long.MAX_VALUE).toList().toBlocking().single();
+    assertEquals(vts.length, cached.size());
+    for (int i = 0; i < vts.length; i++) {
+      assertEquals(vts[i], cached.get(i).vts());
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.internals.response.ResponseEnvelope;
+import com.ibm.csync.internals.websocket.CSTransport;
+import com.ibm.csync.internals.websocket.WebSocketConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action1;
+import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
+import rx.subjects.Subject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ListenPipelineTest {
+  private final CSKey pattern = CSKey.fromString("a.*");
+  private final CSKey key = CSKey.fromString("a.k");
+
+  //tests a value fetched again after it was evicted is stored and delivered to new listens.
+  @Test public void testRefetchAfterEvict() throws Exception {
+    CacheConfig config = new CacheConfig();
+    config.ttl = 1;
+    MemoryDBManager db = new MemoryDBManager(config, new Metrics());
+    CSTransport transport = new CSTransport(new FakeServer());
+    RvtsPrime rvtsPrime = new RvtsPrime();
+    ListenPipeline pipeline = new ListenPipeline(transport,
+        new AdvanceManager(transport, db, Schedulers.computation(), rvtsPrime), db, rvtsPrime);
+
+    CountDownLatch first = new CountDownLatch(1);
+    Subscription subscription = pipeline.view(pattern).subscribe(countDown(first));
+    assertTrue(first.await(5, TimeUnit.SECONDS));
+    subscription.unsubscribe();
+    assertEquals(5L, db.latestVts(key));
+
+    Thread.sleep(10);
+    db.evict();
+    assertEquals(0L, db.latestVts(key));
+    assertEquals(0L, db.getRvts(pattern));
+
+    CountDownLatch second = new CountDownLatch(1);
+    subscription = pipeline.view(pattern).subscribe(countDown(second));
+    assertTrue(second.await(5, TimeUnit.SECONDS));
+    subscription.unsubscribe();
+    assertEquals("data", db.cachedValues(key, Long.MAX_VALUE).toBlocking().single().data());
+  }
+
+  //tests resubscribing to a view after a newer one replaced it joins the newer one.
+  @Test public void testResubscribeJoinsLiveView() throws Exception {
+    FakeServer server = new FakeServer();
+    MemoryDBManager db = new MemoryDBManager();
+    CSTransport transport = new CSTransport(server);
+    RvtsPrime rvtsPrime = new RvtsPrime();
+    ListenPipeline pipeline = new ListenPipeline(transport,
+        new AdvanceManager(transport, db, Schedulers.computation(), rvtsPrime), db, rvtsPrime);
+
+    Observable<CSValue> stale = pipeline.view(pattern);
+    stale.subscribe().unsubscribe();
+    Thread.sleep(200);
+    Subscription live = pipeline.view(pattern).subscribe();
+    Thread.sleep(200);
+    assertEquals(2, server.count("sub"));
+    assertEquals(1, server.count("unsub"));
+
+    stale.subscribe().unsubscribe();
+    Thread.sleep(200);
+    assertEquals(2, server.count("sub"));
+    assertEquals(1, server.count("unsub"));
+
+    live.unsubscribe();
+    Thread.sleep(200);
+    assertEquals(2, server.count("unsub"));
+  }
+
+  private Action1<CSValue> countDown(final CountDownLatch latch) {
+    return new Action1<CSValue>() {
+      @Override public void call(CSValue csValue) {
+        if (csValue.key().equals(key)) latch.countDown();
+      }
+    };
+  }
+
+  /** Serves one value at vts 5 under a.*, and answers every other request with happy */
+  private static class FakeServer implements WebSocketConnection {
+    private final Subject<ResponseEnvelope, ResponseEnvelope> messages =
+        PublishSubject.<ResponseEnvelope>create().toSerialized();
+    private final List<String> kinds = Collections.synchronizedList(new ArrayList<String>());
+
+    int count(String kind) {
+      return Collections.frequency(new ArrayList<>(kinds), kind);
+    }
+
+    @Override public Observable<Boolean> sendMessage(String message) {
+      JsonObject request = new JsonParser().parse(message).getAsJsonObject();
+      JsonObject payload = request.getAsJsonObject("payload");
+      final ResponseEnvelope response = new ResponseEnvelope();
+      response.closure = request.get("closure").getAsLong();
+      String kind = request.get("kind").getAsString();
+      kinds.add(kind);
+      if (kind.equals("advance")) {
+        boolean behind = payload.get("rvts").getAsLong() < 5;
+        response.kind = "advanceResponse";
+        response.payload = json("{\"vts\":" + (behind ? "[5]" : "[]") + ",\"maxvts\":5}");
+      } else if (kind.equals("fetch")) {
+        boolean any = payload.getAsJsonArray("vts").size() > 0;
+        response.kind = "fetchResponse";
+        response.payload = json("{\"response\":[" + (any ? "{\"path\":[\"a\",\"k\"],"
+            + "\"data\":\"data\",\"cts\":1,\"vts\":5,\"deletePath\":false,"
+            + "\"acl\":\"$publicCreate\"}" : "") + "]}");
+      } else {
+        response.kind = "happy";
+        response.payload = json("{\"code\":0,\"msg\":\"OK\"}");
+      }
+      //Answers once the caller is waiting for the response
+      Observable.timer(50, TimeUnit.MILLISECONDS).subscribe(new Action1<Long>() {
+        @Override public void call(Long tick) {
+          messages.onNext(response);
+        }
+      });
+      return Observable.just(true);
+    }
+
+    @Override public Observable<Boolean> disconnect() {
+      return Observable.just(true);
+    }
+
+    @Override public Observable<ResponseEnvelope> messages() {
+      return messages;
+    }
+
+    private static JsonObject json(String json) {
+      return new JsonParser().parse(json).getAsJsonObject();
+    }
+  }
+}
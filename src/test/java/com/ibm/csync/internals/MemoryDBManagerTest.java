@@ -0,0 +1,274 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSLocalQuery;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.acls.CSAcl;
+import com.ibm.csync.internals.sqlite.DirtyTableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryDBManagerTest {
+  MemoryDBManager db;
+  private long NO_RVTS_FOUND = 0L;
+
+  private CSKey csKey = CSKey.make("rooms", "public", "msg1");
+  private CSAcl ACL = CSAcl.PUBLIC_READ_WRITE_CREATE;
+
+  @Before public void setUp() {
+    db = new MemoryDBManager();
+  }
+
+  @Test public void testGetAndUpsertRvts() {
+    assertEquals(NO_RVTS_FOUND, db.getRvts(csKey));
+
+    db.upsertRvts(csKey, 1111);
+    assertEquals(1111, db.getRvts(csKey));
+
+    db.upsertRvts(csKey, NO_RVTS_FOUND);
+    assertEquals(NO_RVTS_FOUND, db.getRvts(csKey));
+  }
+
+  //tests addData() ignores a second insert with the same vts and keeps only the newest vts.
+  @Test public void testAddDataKeepsLatestPerKey() {
+    db.addData(new CSValue(csKey, "first", 2222, 1111, ACL, false));
+    db.addData(new CSValue(csKey, "same vts", 2222, 1111, ACL, false));
+    assertEquals("first", db.cachedValues(csKey, Long.MAX_VALUE).toBlocking().single().data());
+
+    db.addData(new CSValue(csKey, "newer", 4444, 3333, ACL, false));
+    db.addData(new CSValue(csKey, "older", 3333, 2222, ACL, false));
+    assertEquals("newer", db.cachedValues(csKey, Long.MAX_VALUE).toBlocking().single().data());
+    assertEquals(Arrays.asList(1111L), db.vtsToFetch(Arrays.asList(1111L, 3333L))
+        .toBlocking().single());
+  }
+
+  //tests local queries select by pattern and range, skip tombstones and page in order.
+  @Test public void testQuery() {
+    for (int i = 1; i <= 6; i++) {
+      db.addData(new CSValue(csKey.child("k" + i), "data" + i, (i % 3) * 10, i, ACL, i == 4));
+    }
+    db.addData(new CSValue(CSKey.make("rooms", "other", "k7"), "data7", 10, 7, ACL, false));
+
+    CSLocalQuery query = CSLocalQuery.of(csKey.child("*"));
+    assertQuery(query.limit(2), 6, 5);
+    assertQuery(query.vtsFrom(2).orderBy(CSLocalQuery.Order.VTS_ASC), 2, 3, 5, 6);
+    assertQuery(query.orderBy(CSLocalQuery.Order.CTS_DESC), 5, 2, 1, 6, 3);
+    assertQuery(query.ctsFrom(10).vtsTo(5).orderBy(CSLocalQuery.Order.CTS_ASC), 1, 2, 5);
+  }
+
+  private void assertQuery(CSLocalQuery query, long... vts) {
+    List<CSValue> values = db.query(query).toList().toBlocking().single();
+    assertEquals(vts.length, values.size());
+    for (int i = 0; i < vts.length; i++) {
+      assertEquals(vts[i], values.get(i).vts());
+    }
+  }
+
+  //tests keys of any depth are found by every kind of pattern.
+  @Test public void testDeepKeysAndPatterns() {
+    CSKey deepKey = CSKey.fromString("a.b.c.d.e.f.g.h.i.j.k.l.m.n.o.p.q.r.s.t");
+    db.addData(new CSValue(deepKey, "deep", 1, 1, ACL, false));
+    db.addData(new CSValue(CSKey.fromString("a.x.c"), "sibling", 2, 2, ACL, false));
+    db.addData(new CSValue(CSKey.fromString("a"), "parent", 3, 3, ACL, false));
+
+    assertCached(deepKey, 1);
+    assertCached(CSKey.fromString("a.b.#"), 1);
+    assertCached(CSKey.fromString("a.#"), 3, 2, 1);
+    assertCached(CSKey.fromString("a.*.c"), 2);
+    assertCached(CSKey.fromString("*.*.c.#"), 2, 1);
+    assertCached(CSKey.fromString("a.b.c.d.e.f.g.h.i.j.k.l.m.n.o.p.q.r.s.u"));
+    assertCached(CSKey.fromString("a.x.c"), 2);
+  }
+
+  //tests tombstones are hidden from cached reads and collected once every rvts passed.
+  @Test public void testTombstones() {
+    CSValue tombstone = new CSValue(csKey, null, 4444, 3333, ACL, true);
+    List<Long> vts = Arrays.asList(tombstone.vts());
+
+    db.addData(new CSValue(csKey, "data", 2222, 1111, ACL, false));
+    db.addData(tombstone);
+    assertCached(csKey);
+    assertTrue(db.vtsToFetch(vts).toBlocking().single().isEmpty());
+
+    assertEquals(tombstone.vts(), db.latestVts(csKey));
+    assertEquals(NO_RVTS_FOUND, db.latestVts(csKey.child("missing")));
+
+    db.upsertRvts(csKey, tombstone.vts() + 1);
+    db.upsertRvts(CSKey.make("other"), tombstone.vts() - 1);
+    db.collectTombstones();
+    assertTrue(db.vtsToFetch(vts).toBlocking().single().isEmpty());
+
+    db.upsertRvts(CSKey.make("other"), tombstone.vts() + 1);
+    db.collectTombstones();
+    assertEquals(vts, db.vtsToFetch(vts).toBlocking().single());
+  }
+
+  //tests evict() drops the least recently read values and resets the rvts of their patterns.
+  @Test public void testEvictLeastRecentlyRead() throws InterruptedException {
+    CacheConfig config = new CacheConfig();
+    config.maxRows = 3;
+    db = new MemoryDBManager(config, new Metrics());
+
+    CSKey pattern = csKey.child("#");
+    CSKey otherPattern = CSKey.make("other", "#");
+    db.upsertRvts(pattern, 3);
+    db.upsertRvts(otherPattern, 3);
+
+    for (int i = 1; i <= 3; i++) {
+      db.addData(new CSValue(csKey.child("k" + i), "data" + i, i, i, ACL, false));
+      Thread.sleep(5);
+    }
+    assertCached(csKey.child("k1"), 1);
+    config.maxRows = 2;
+    db.evict();
+
+    assertCached(pattern, 3, 1);
+    assertEquals(NO_RVTS_FOUND, db.getRvts(pattern));
+    assertEquals(3, db.getRvts(otherPattern));
+  }
+
+  //tests a value read since it was added outlives an older unread one when the cache is full.
+  @Test public void testFullCacheKeepsValuesRead() {
+    CacheConfig config = new CacheConfig();
+    config.maxRows = 3;
+    db = new MemoryDBManager(config, new Metrics());
+
+    for (int i = 1; i <= 3; i++) {
+      db.addData(new CSValue(csKey.child("k" + i), "data" + i, i, i, ACL, false));
+    }
+    assertCached(csKey.child("k1"), 1);
+    db.addData(new CSValue(csKey.child("k4"), "data4", 4, 4, ACL, false));
+
+    assertCached(csKey.child("#"), 4, 3, 1);
+  }
+
+  //tests the trie nodes of evicted and collected keys are unlinked.
+  @Test public void testEmptyNodesArePruned() {
+    CacheConfig config = new CacheConfig();
+    config.maxRows = 10;
+    db = new MemoryDBManager(config, new Metrics());
+
+    for (int i = 1; i <= 100; i++) {
+      db.addData(new CSValue(CSKey.make("a" + i, "b", "c"), "data", i, i, ACL, false));
+    }
+    assertEquals(10 * 3, db.nodeCount());
+
+    db.upsertRvts(CSKey.make("#"), 1000);
+    for (int i = 91; i <= 100; i++) {
+      db.addData(new CSValue(CSKey.make("a" + i, "b", "c"), null, i, 100 + i, ACL, true));
+    }
+    db.collectTombstones();
+    assertEquals(0, db.nodeCount());
+  }
+
+  //tests the memory cap is enforced as values are added.
+  @Test public void testMemoryCap() {
+    CacheConfig config = new CacheConfig();
+    config.maxBytes = 100 * MemoryDBManager.ENTRY_OVERHEAD;
+    Metrics metrics = new Metrics();
+    db = new MemoryDBManager(config, metrics);
+
+    for (int vts = 1; vts <= 1000; vts++) {
+      db.addData(new CSValue(csKey.child("k" + vts), "data", vts, vts, ACL, false));
+      assertTrue(metrics.cacheBytes.get() <= config.maxBytes);
+    }
+    int cached = db.cachedValues(csKey.child("*"), Long.MAX_VALUE).count().toBlocking().single();
+    assertTrue(cached > 0 && cached < 100);
+    assertTrue(metrics.cacheEvictions.get() >= 1000 - 100);
+  }
+
+  @Test public void testDirtyData() {
+    long first = db.addDirty(new CSValue(csKey, "first", 2, 0, ACL, false)).toBlocking().single();
+    long second =
+        db.addDirty(new CSValue(csKey, "second", 1, 0, ACL, false)).toBlocking().single();
+
+    List<DirtyTableEntry> dirty = db.getDirtyData().toList().toBlocking().single();
+    assertEquals(2, dirty.size());
+    assertEquals(second, dirty.get(0).id);
+    assertEquals("first", dirty.get(1).csValue.data());
+
+    db.deleteDirty(second);
+    assertEquals(first, db.getDirtyData().toBlocking().single().id);
+  }
+
+  //tests concurrent writers keep the newest value of every key and a consistent vts index.
+  @Test public void testConcurrentAddData() throws InterruptedException {
+    final int threads = 4;
+    final int keys = 100;
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> writers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int offset = t;
+      final Thread writer = new Thread(new Runnable() {
+        @Override public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < 10000; i++) {
+            long vts = (long) i * threads + offset + 1;
+            db.addData(new CSValue(csKey.child("k" + i % keys), "data", vts, vts, ACL, false));
+          }
+        }
+      });
+      writer.start();
+      writers.add(writer);
+    }
+    start.countDown();
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    List<CSValue> cached =
+        db.cachedValues(csKey.child("*"), Long.MAX_VALUE).toList().toBlocking().single();
+    assertEquals(keys, cached.size());
+    List<Long> vts = new ArrayList<>();
+    for (CSValue value : cached) {
+      vts.add(value.vts());
+    }
+    assertTrue(db.vtsToFetch(vts).toBlocking().single().isEmpty());
+    assertEquals(10000 * threads - vts.size(), db.vtsToFetch(allVts(10000 * threads))
+        .toBlocking().single().size());
+  }
+
+  private List<Long> allVts(int count) {
+    List<Long> vts = new ArrayList<>();
+    for (long v = 1; v <= count; v++) {
+      vts.add(v);
+    }
+    return vts;
+  }
+
+  private void assertCached(CSKey pattern, long... vts) {
+    List<CSValue> cached =
+        db.cachedValues(pattern, Long.MAX_VALUE).toList().toBlocking().single();
+    assertEquals(vts.length, cached.size());
+    for (int i = 0; i < vts.length; i++) {
+      assertEquals(vts[i], cached.get(i).vts());
+    }
+  }
+}
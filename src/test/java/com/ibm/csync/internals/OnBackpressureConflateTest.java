@@ -0,0 +1,77 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.acls.CSAcl;
+import java.util.List;
+import org.junit.Test;
+import rx.observers.TestSubscriber;
+import rx.subjects.PublishSubject;
+
+import static org.junit.Assert.assertEquals;
+
+public class OnBackpressureConflateTest {
+  private CSKey csKey = CSKey.make("rooms", "public");
+
+  private CSValue value(String key, long vts) {
+    return new CSValue(csKey.child(key), "data", vts, vts, CSAcl.PUBLIC_READ, false);
+  }
+
+  //tests a lagging subscriber gets only the latest value of each key, in first-pending order.
+  @Test public void testKeepsLatestPerKey() {
+    PublishSubject<CSValue> values = PublishSubject.create();
+    TestSubscriber<CSValue> subscriber = new TestSubscriber<>(0);
+    values.lift(new OnBackpressureConflate()).subscribe(subscriber);
+
+    for (int vts = 1; vts <= 1000; vts++) {
+      values.onNext(value("k" + vts % 3, vts));
+    }
+    subscriber.assertNoValues();
+
+    subscriber.requestMore(2);
+    List<CSValue> received = subscriber.getOnNextEvents();
+    assertEquals(2, received.size());
+    assertEquals(1000, received.get(0).vts());
+    assertEquals(998, received.get(1).vts());
+
+    values.onNext(value("k1", 1001));
+    subscriber.requestMore(5);
+    assertEquals(4, received.size());
+    assertEquals(999, received.get(2).vts());
+    assertEquals(1001, received.get(3).vts());
+  }
+
+  //tests completion waits for the pending values and values flow through when requested.
+  @Test public void testCompletesAfterPending() {
+    PublishSubject<CSValue> values = PublishSubject.create();
+    TestSubscriber<CSValue> subscriber = new TestSubscriber<>(1);
+    values.lift(new OnBackpressureConflate()).subscribe(subscriber);
+
+    values.onNext(value("a", 1));
+    values.onNext(value("b", 2));
+    values.onCompleted();
+    subscriber.assertValueCount(1);
+    subscriber.assertNoTerminalEvent();
+
+    subscriber.requestMore(1);
+    subscriber.assertValueCount(2);
+    subscriber.assertCompleted();
+  }
+}
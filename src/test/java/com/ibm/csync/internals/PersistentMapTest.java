@@ -0,0 +1,93 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PersistentMapTest {
+
+  //a key with few distinct hashes, so that the trie has to hold collisions.
+  private static final class Key {
+    final int id;
+
+    Key(int id) {
+      this.id = id;
+    }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof Key && ((Key) o).id == id;
+    }
+
+    @Override public int hashCode() {
+      return id % 7 == 0 ? 7 : id * 0x9E3779B9;
+    }
+  }
+
+  //tests the map agrees with a HashMap over random changes.
+  @Test public void testAgreesWithHashMap() {
+    PersistentMap<Key, Integer> map = PersistentMap.empty();
+    Map<Key, Integer> expected = new HashMap<>();
+    Random random = new Random(5);
+    for (int i = 0; i < 50000; i++) {
+      Key key = new Key(random.nextInt(2000));
+      if (random.nextInt(3) == 0) {
+        map = map.minus(key);
+        expected.remove(key);
+      } else {
+        int value = random.nextInt(10);
+        map = map.plus(key, value);
+        expected.put(key, value);
+      }
+      assertEquals(expected.get(key), map.get(key));
+      assertEquals(expected.size(), map.size());
+    }
+    assertEquals(expected, map);
+    assertEquals(map, expected);
+    assertEquals(expected.hashCode(), map.hashCode());
+
+    for (Key key : expected.keySet()) {
+      map = map.minus(key);
+    }
+    assertSame(PersistentMap.empty(), map);
+  }
+
+  //tests older versions are unchanged and unchanged writes return the same map.
+  @Test public void testVersionsAreImmutable() {
+    PersistentMap<Key, Integer> first = PersistentMap.<Key, Integer>empty().plus(new Key(1), 1);
+    PersistentMap<Key, Integer> second = first.plus(new Key(2), 2).minus(new Key(1));
+
+    assertEquals(1, first.size());
+    assertEquals(Integer.valueOf(1), first.get(new Key(1)));
+    assertNull(first.get(new Key(2)));
+    assertEquals(1, second.size());
+    assertNull(second.get(new Key(1)));
+    assertSame(second, second.plus(new Key(2), second.get(new Key(2))));
+    assertSame(second, second.minus(new Key(3)));
+  }
+
+  @Test(expected = UnsupportedOperationException.class) public void testRejectsPut() {
+    PersistentMap.<Key, Integer>empty().put(new Key(1), 1);
+  }
+}
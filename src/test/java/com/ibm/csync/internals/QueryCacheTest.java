@@ -0,0 +1,65 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class QueryCacheTest {
+  private CSKey csKey = CSKey.make("rooms", "*");
+  private List<String> rows = Arrays.asList("{\"a\":1}", "{\"a\":2}");
+
+  //tests results are found by key, predicate and projection.
+  @Test public void testGet() {
+    QueryCache cache = new QueryCache(10);
+    cache.put(new QueryCache.Query(csKey, "a > 0", Collections.singletonList("a")), rows);
+
+    assertEquals(rows, cache.get(new QueryCache.Query(csKey, "a > 0",
+        Collections.singletonList("a")), QueryCache.ANY_AGE));
+    assertNull(cache.get(new QueryCache.Query(csKey, "a > 1",
+        Collections.singletonList("a")), QueryCache.ANY_AGE));
+    assertNull(cache.get(new QueryCache.Query(csKey, "a > 0",
+        Collections.<String>emptyList()), QueryCache.ANY_AGE));
+    assertNull(cache.get(new QueryCache.Query(csKey.parent(), "a > 0",
+        Collections.singletonList("a")), QueryCache.ANY_AGE));
+  }
+
+  //tests the least recently used result is evicted and old results are not fresh.
+  @Test public void testEvictionAndAge() throws InterruptedException {
+    QueryCache cache = new QueryCache(2);
+    QueryCache.Query first = new QueryCache.Query(csKey, "a > 0", null);
+    QueryCache.Query second = new QueryCache.Query(csKey, "a > 1", null);
+    QueryCache.Query third = new QueryCache.Query(csKey, null, null);
+    cache.put(first, rows);
+    cache.put(second, rows);
+    cache.get(first, QueryCache.ANY_AGE);
+    cache.put(third, rows);
+
+    assertEquals(rows, cache.get(first, QueryCache.ANY_AGE));
+    assertNull(cache.get(second, QueryCache.ANY_AGE));
+    Thread.sleep(5);
+    assertNull(cache.get(third, 0));
+    assertEquals(rows, cache.get(third, QueryCache.ANY_AGE));
+  }
+}
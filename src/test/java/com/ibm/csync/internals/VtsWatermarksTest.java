@@ -0,0 +1,84 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.acls.CSAcl;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VtsWatermarksTest {
+  private CSKey csKey = CSKey.make("rooms", "public");
+
+  @Test public void testDropsOlderValues() {
+    VtsWatermarks watermarks = new VtsWatermarks(new MemoryDBManager(), VtsWatermarks.UNBOUNDED);
+
+    assertTrue(advance(watermarks, csKey.child("a"), 2));
+    assertFalse(advance(watermarks, csKey.child("a"), 2));
+    assertFalse(advance(watermarks, csKey.child("a"), 1));
+    assertTrue(advance(watermarks, csKey.child("b"), 1));
+    assertTrue(advance(watermarks, csKey.child("a"), 3));
+    assertEquals(2, watermarks.size());
+  }
+
+  //tests the table agrees with a map over many keys while growing.
+  @Test public void testManyKeys() {
+    VtsWatermarks watermarks = new VtsWatermarks(new MemoryDBManager(), VtsWatermarks.UNBOUNDED);
+    long[] newest = new long[5000];
+    Random random = new Random(3);
+    for (int i = 0; i < 100000; i++) {
+      int k = random.nextInt(newest.length);
+      long vts = random.nextInt(1000) + 1;
+      assertEquals(vts > newest[k], advance(watermarks, csKey.child("k" + k), vts));
+      newest[k] = Math.max(newest[k], vts);
+    }
+    assertEquals(newest.length, watermarks.size());
+  }
+
+  //tests evicted keys fall back to the cached vts and stay bounded.
+  @Test public void testEvictionFallsBackToTheCache() {
+    MemoryDBManager db = new MemoryDBManager();
+    VtsWatermarks watermarks = new VtsWatermarks(db, 100);
+    CSAcl acl = CSAcl.PUBLIC_READ_WRITE_CREATE;
+
+    Random random = new Random(5);
+    long[] newest = new long[1000];
+    for (long vts = 1; vts <= 20000; vts++) {
+      int k = random.nextInt(newest.length);
+      CSKey key = csKey.child("k" + k);
+      //Sometimes an older value of the key arrives, which must never be delivered
+      long delivered = (newest[k] > 0 && random.nextInt(10) == 0) ? newest[k] - 1 : vts;
+      if (advance(watermarks, key, delivered)) {
+        assertTrue(delivered >= newest[k]);
+        db.addData(new CSValue(key, "data", delivered, delivered, acl, false));
+        newest[k] = delivered;
+      } else {
+        assertTrue(delivered < newest[k]);
+      }
+      assertTrue(watermarks.size() <= 100);
+    }
+  }
+
+  private static boolean advance(VtsWatermarks watermarks, CSKey key, long vts) {
+    return watermarks.advance(key, vts).toBlocking().single();
+  }
+}
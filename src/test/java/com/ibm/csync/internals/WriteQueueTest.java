@@ -0,0 +1,119 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.acls.CSAcl;
+import com.ibm.csync.android.BuildConfig;
+import com.ibm.csync.internals.response.Happy;
+import com.ibm.csync.internals.sqlite.DirtyTableEntry;
+import com.ibm.csync.internals.websocket.CSTransport;
+import com.ibm.csync.internals.websocket.OkHttpWebSocketConnection;
+import com.ibm.csync.internals.websocket.WebSocketConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.Test;
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.assertEquals;
+
+public class WriteQueueTest {
+  public static final String HOST = BuildConfig.CSYNC_HOST;
+  public static final int PORT = BuildConfig.CSYNC_PORT;
+  public static final String PROVIDER = BuildConfig.CSYNC_DEMO_PROVIDER;
+  private static final String TOKEN = BuildConfig.CSYNC_DEMO_TOKEN;
+  private Request request =
+      OkHttpWebSocketConnection.buildConnectRequest(HOST, PORT, false, PROVIDER, TOKEN);
+  private WebSocketConnection connection =
+      new OkHttpWebSocketConnection(request, new OkHttpClient());
+  private CSTransport transport = new CSTransport(connection);
+
+  @Test public void testOfflineWritesAreReplayedOnConnect() throws Exception {
+    final MemoryDBManager db = new MemoryDBManager();
+    final WriteQueue writeQueue = new WriteQueue(db);
+    final CSKey testKey = CSKey.make("tests", "android").uuidChild();
+
+    TestSubscriber<Happy> first = new TestSubscriber<>();
+    TestSubscriber<Happy> second = new TestSubscriber<>();
+    TestSubscriber<Integer> pending = new TestSubscriber<>();
+
+    writeQueue.pendingWrites().subscribe(pending);
+    writeQueue.enqueue(value(testKey, "first")).subscribe(first);
+    writeQueue.enqueue(value(testKey, "second")).subscribe(second);
+
+    //Nothing is sent before the queue is connected
+    assertEquals(2, db.getDirtyData().count().toBlocking().single().intValue());
+    assertEquals(2, pending.getOnNextEvents().get(pending.getOnNextEvents().size() - 1).intValue());
+
+    writeQueue.connect(transport);
+
+    first.awaitTerminalEvent(3000, TimeUnit.MILLISECONDS);
+    second.awaitTerminalEvent(3000, TimeUnit.MILLISECONDS);
+    first.assertNoErrors();
+    second.assertNoErrors();
+    assertEquals(0, first.getOnNextEvents().get(0).code);
+    assertEquals(0, second.getOnNextEvents().get(0).code);
+
+    TestSubscriber<DirtyTableEntry> dirty = new TestSubscriber<>();
+    db.getDirtyData().subscribe(dirty);
+    dirty.assertNoValues();
+    assertEquals(0, pending.getOnNextEvents().get(pending.getOnNextEvents().size() - 1).intValue());
+
+    writeQueue.disconnect();
+    transport.delete(testKey).toBlocking().first();
+  }
+
+  @Test public void testCoalescedWritesResolveWithTheLatest() throws Exception {
+    final MemoryDBManager db = new MemoryDBManager();
+    final WriteQueue writeQueue = new WriteQueue(db, WriteQueue.DEFAULT_MAX_IN_FLIGHT, true);
+    final CSKey testKey = CSKey.make("tests", "android").uuidChild();
+
+    final List<TestSubscriber<Happy>> results = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      TestSubscriber<Happy> result = new TestSubscriber<>();
+      writeQueue.enqueue(value(testKey, "write" + i)).subscribe(result);
+      results.add(result);
+    }
+
+    //Only the latest write is left to send
+    List<DirtyTableEntry> dirty = db.getDirtyData().toList().toBlocking().single();
+    assertEquals(1, dirty.size());
+    assertEquals("write9", dirty.get(0).csValue.data());
+    assertEquals(1, writeQueue.pendingWrites().toBlocking().first().intValue());
+
+    writeQueue.connect(transport);
+
+    for (TestSubscriber<Happy> result : results) {
+      result.awaitTerminalEvent(3000, TimeUnit.MILLISECONDS);
+      result.assertNoErrors();
+      result.assertValueCount(1);
+    }
+    assertEquals(0, writeQueue.pendingWrites().toBlocking().first().intValue());
+
+    writeQueue.disconnect();
+    transport.delete(testKey).toBlocking().first();
+  }
+
+  private static CSValue value(CSKey key, String data) {
+    return new CSValue(key, data, System.currentTimeMillis(), 0, CSAcl.PUBLIC_READ_WRITE_CREATE,
+        false);
+  }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.log;
+
+import com.ibm.csync.CSKey;
+import com.ibm.csync.CSLocalQuery;
+import com.ibm.csync.CSValue;
+import com.ibm.csync.acls.CSAcl;
+import com.ibm.csync.internals.CacheConfig;
+import com.ibm.csync.internals.Metrics;
+import com.ibm.csync.internals.sqlite.DirtyTableEntry;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rx.Observable;
+import rx.observers.TestSubscriber;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogDBManagerTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  LogDBManager log;
+  File directory;
+  private long NO_RVTS_FOUND = 0L;
+
+  private String TEST_DATA = "This is a test CSValue string";
+  private CSKey csKey = CSKey.make("rooms", "public", "msg1");
+  private CSAcl ACL = CSAcl.PUBLIC_READ_WRITE_CREATE;
+
+  private CSValue CSValue1;
+  private CSValue CSValue2;
+
+  @Before public void setUp() throws Exception {
+    directory = folder.newFolder("log");
+    log = new LogDBManager(directory);
+
+    CSValue1 = new CSValue(csKey, "TEST CSValue string", 2222, 1111, ACL, false);
+
+    CSValue2 = new CSValue(csKey, "Change Test CSValue String", 2222, 1111, ACL, false);
+  }
+
+  @After public void tearDown() {
+    log.closeDB();
+  }
+
+  //test updating a previously inserted rvts.
+  @Test public void testGetAndUpsertRvts() {
+    assertEquals(NO_RVTS_FOUND, log.getRvts(csKey));
+
+    log.upsertRvts(csKey, 1111);
+    assertEquals(1111, log.getRvts(csKey));
+
+    log.upsertRvts(csKey, 2222);
+    assertEquals(2222, log.getRvts(csKey));
+  }
+
+  //testGetData asserts that CSValue is not retrieved until a subscription to the Observable from
+  // cachedValues
+  @Test public void testGetData() {
+    TestSubscriber<CSValue> dataSubscriber = new TestSubscriber<>();
+
+    Observable<CSValue> dbObservable = log.cachedValues(csKey, Long.MAX_VALUE);
+    log.addData(CSValue1);
+    assertEquals(0, dataSubscriber.getOnNextEvents().size());
+
+    dbObservable.subscribe(dataSubscriber);
+
+    List<CSValue> CSValueFromDB = dataSubscriber.getOnNextEvents();
+    assertEquals(1, CSValueFromDB.size());
+    assertDataEquals(CSValueFromDB.get(0), CSValue1);
+  }
+
+  //tests addData() ignores a second insert with the same vts and keeps only the newest vts.
+  @Test public void testAddDataKeepsLatestPerKey() {
+    CSValue newer = new CSValue(csKey, "Newer CSValue string", 4444, 3333, ACL, false);
+    CSValue older = new CSValue(csKey, "Older CSValue string", 3333, 2222, ACL, false);
+
+    log.addData(CSValue1);
+    log.addData(CSValue2);
+    assertCached(csKey, 1111);
+    assertDataEquals(log.cachedValues(csKey, Long.MAX_VALUE).toBlocking().single(), CSValue1);
+
+    log.addData(newer);
+    log.addData(older);
+    assertDataEquals(log.cachedValues(csKey, Long.MAX_VALUE).toBlocking().single(), newer);
+    assertEquals(Arrays.asList(1111L), log.vtsToFetch(Arrays.asList(1111L, 3333L))
+        .toBlocking().single());
+  }
+
+  //tests vtsToFetch() with an advance response of 10k vts.
+  @Test public void testVtsToFetchLargeAdvance() {
+    List<Long> advanceVts = new ArrayList<>();
+    for (long vts = 1; vts <= 10000; vts++) {
+      advanceVts.add(vts);
+      if (vts % 10 == 0) {
+        log.addData(new CSValue(csKey.child("k" + vts), "data", vts, vts, ACL, false));
+      }
+    }
+
+    List<Long> toFetch = log.vtsToFetch(advanceVts).toBlocking().single();
+    assertEquals(9000, toFetch.size());
+    for (int i = 0; i < toFetch.size(); i++) {
+      assertTrue(toFetch.get(i) % 10 != 0);
+      assertTrue(i == 0 || toFetch.get(i - 1) < toFetch.get(i));
+    }
+  }
+
+  //tests keys of any depth are found by every kind of pattern.
+  @Test public void testDeepKeysAndPatterns() {
+    CSKey deepKey = CSKey.fromString("a.b.c.d.e.f.g.h.i.j.k.l.m.n.o.p.q.r.s.t");
+    CSKey siblingKey = CSKey.fromString("a.x.c");
+    log.addData(new CSValue(deepKey, "deep", 1, 1, ACL, false));
+    log.addData(new CSValue(siblingKey, "sibling", 2, 2, ACL, false));
+
+    assertCached(deepKey, 1);
+    assertCached(CSKey.fromString("a.b.#"), 1);
+    assertCached(CSKey.fromString("a.#"), 2, 1);
+    assertCached(CSKey.fromString("a.*.c"), 2);
+    assertCached(CSKey.fromString("*.*.c.#"), 2, 1);
+    assertCached(CSKey.fromString("a.b.c.d.e.f.g.h.i.j.k.l.m.n.o.p.q.r.s.u"));
+  }
+
+  //tests tombstones are hidden from cached reads and collected once every rvts passed.
+  @Test public void testTombstones() {
+    CSValue tombstone = new CSValue(csKey, null, 4444, 3333, ACL, true);
+    List<Long> vts = Arrays.asList(tombstone.vts());
+
+    log.addData(CSValue1);
+    log.addData(tombstone);
+    assertCached(csKey);
+    assertTrue(log.vtsToFetch(vts).toBlocking().single().isEmpty());
+
+    assertEquals(tombstone.vts(), log.latestVts(csKey));
+    assertEquals(NO_RVTS_FOUND, log.latestVts(csKey.child("missing")));
+
+    log.upsertRvts(csKey, tombstone.vts() + 1);
+    log.upsertRvts(CSKey.make("other"), tombstone.vts() - 1);
+    log.collectTombstones();
+    assertTrue(log.vtsToFetch(vts).toBlocking().single().isEmpty());
+
+    log.upsertRvts(CSKey.make("other"), tombstone.vts() + 1);
+    log.collectTombstones();
+    assertEquals(vts, log.vtsToFetch(vts).toBlocking().single());
+  }
+
+  //tests evict() drops the least recently read values and resets the rvts of their patterns.
+  @Test public void testEvictLeastRecentlyRead() throws InterruptedException {
+    CacheConfig config = new CacheConfig();
+    config.maxRows = 2;
+    log.closeDB();
+    log = new LogDBManager(directory, config, new Metrics());
+
+    CSKey pattern = csKey.child("#");
+    CSKey otherPattern = CSKey.make("other", "#");
+    log.upsertRvts(pattern, 3);
+    log.upsertRvts(otherPattern, 3);
+
+    for (int i = 1; i <= 3; i++) {
+      log.addData(new CSValue(csKey.child("k" + i), "data" + i, i, i, ACL, false));
+      Thread.sleep(5);
+    }
+
+    assertCached(csKey.child("k1"), 1);
+    log.evict();
+
+    assertCached(pattern, 3, 1);
+    assertEquals(NO_RVTS_FOUND, log.getRvts(pattern));
+    assertEquals(3, log.getRvts(otherPattern));
+  }
+
+  //tests cachedValues() emits only what was requested, newest first.
+  @Test public void testCachedValuesPaging() {
+    for (int i = 1; i <= 5; i++) {
+      log.addData(new CSValue(csKey.child("k" + i), "data" + i, i, i, ACL, false));
+    }
+
+    TestSubscriber<CSValue> subscriber = new TestSubscriber<>(0);
+    log.cachedValues(csKey.child("*"), Long.MAX_VALUE).subscribe(subscriber);
+    assertEquals(0, subscriber.getOnNextEvents().size());
+
+    subscriber.requestMore(3);
+    assertEquals(3, subscriber.getOnNextEvents().size());
+    assertEquals(3, subscriber.getOnNextEvents().get(2).vts());
+    subscriber.assertNoTerminalEvent();
+
+    subscriber.requestMore(10);
+    assertEquals(5, subscriber.getOnNextEvents().size());
+    assertEquals(1, subscriber.getOnNextEvents().get(4).vts());
+    subscriber.assertCompleted();
+  }
+
+  //tests local queries select by pattern and range, skip tombstones and page in order.
+  @Test public void testQuery() {
+    for (int i = 1; i <= 6; i++) {
+      log.addData(new CSValue(csKey.child("k" + i), "data" + i, (i % 3) * 10, i, ACL, i == 4));
+    }
+    log.addData(new CSValue(CSKey.make("rooms", "other", "k7"), "data7", 10, 7, ACL, false));
+
+    CSLocalQuery query = CSLocalQuery.of(csKey.child("*"));
+    assertQuery(query.limit(2), 6, 5);
+    assertQuery(query.vtsFrom(2).orderBy(CSLocalQuery.Order.VTS_ASC), 2, 3, 5, 6);
+    assertQuery(query.orderBy(CSLocalQuery.Order.CTS_DESC), 5, 2, 1, 6, 3);
+    assertQuery(query.ctsFrom(10).vtsTo(5).orderBy(CSLocalQuery.Order.CTS_ASC), 1, 2, 5);
+  }
+
+  private void assertQuery(CSLocalQuery query, long... vts) {
+    List<CSValue> values = log.query(query).toList().toBlocking().single();
+    assertEquals(vts.length, values.size());
+    for (int i = 0; i < vts.length; i++) {
+      assertEquals(vts[i], values.get(i).vts());
+    }
+  }
+
+  @Test public void testDirtyData() {
+    long first = log.addDirty(new CSValue(csKey, "first", 2, 0, ACL, false)).toBlocking().single();
+    long second =
+        log.addDirty(new CSValue(csKey, "second", 1, 0, ACL, false)).toBlocking().single();
+
+    List<DirtyTableEntry> dirty = log.getDirtyData().toList().toBlocking().single();
+    assertEquals(2, dirty.size());
+    assertEquals(second, dirty.get(0).id);
+    assertEquals("first", dirty.get(1).csValue.data());
+
+    log.deleteDirty(second);
+    assertEquals(first, log.getDirtyData().toBlocking().single().id);
+  }
+
+  //tests everything written is there after the log is opened again.
+  @Test public void testReopen() {
+    log.addData(CSValue1);
+    log.addData(new CSValue(csKey.child("gone"), "gone", 1, 1, ACL, false));
+    log.addData(new CSValue(csKey.child("gone"), null, 2, 2, ACL, true));
+    log.upsertRvts(csKey, 1234);
+    long id = log.addDirty(new CSValue(csKey, TEST_DATA, 1, 0, ACL, false)).toBlocking().single();
+    log.closeDB();
+
+    log = new LogDBManager(directory);
+
+    assertDataEquals(log.cachedValues(csKey, Long.MAX_VALUE).toBlocking().single(), CSValue1);
+    assertCached(csKey.child("gone"));
+    assertEquals(1234, log.getRvts(csKey));
+    assertEquals(id, log.getDirtyData().toBlocking().single().id);
+    assertTrue(log.addDirty(CSValue1).toBlocking().single() > id);
+  }
+
+  //tests compaction drops superseded records across segments and keeps the live ones.
+  @Test public void testCompaction() throws Exception {
+    log.closeDB();
+    directory = folder.newFolder("small");
+    log = new LogDBManager(directory, new CacheConfig(), new Metrics(), 4096);
+
+    for (int vts = 1; vts <= 1000; vts++) {
+      log.addData(new CSValue(csKey.child("k" + vts % 10), TEST_DATA, vts, vts, ACL, false));
+    }
+    int before = directory.listFiles().length;
+    log.compact();
+    assertTrue(before > 1);
+    assertEquals(1, directory.listFiles().length);
+
+    log.closeDB();
+    log = new LogDBManager(directory, new CacheConfig(), new Metrics(), 4096);
+    assertCached(csKey.child("*"), 1000, 999, 998, 997, 996, 995, 994, 993, 992, 991);
+  }
+
+  private void assertCached(CSKey pattern, long... vts) {
+    List<CSValue> CSValueFromDB =
+        log.cachedValues(pattern, Long.MAX_VALUE).toList().toBlocking().single();
+    assertEquals(vts.length, CSValueFromDB.size());
+    for (int i = 0; i < vts.length; i++) {
+      assertEquals(vts[i], CSValueFromDB.get(i).vts());
+    }
+  }
+
+  private void assertDataEquals(CSValue actual, CSValue expected) {
+    assertEquals(expected.key(), actual.key());
+    assertEquals(expected.data(), actual.data());
+    assertEquals(expected.vts(), actual.vts());
+    assertEquals(expected.cts(), actual.cts());
+    assertEquals(expected.acl().rawAcl(), actual.acl().rawAcl());
+  }
+}
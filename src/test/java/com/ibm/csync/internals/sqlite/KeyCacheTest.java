@@ -0,0 +1,58 @@
+/*
+ * Copyright IBM Corporation 2016
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ibm.csync.internals.sqlite;
+
+import com.ibm.csync.CSKey;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KeyCacheTest {
+  @Test public void testDecodeMatchesPathCodec() {
+    KeyCache cache = new KeyCache(16);
+    CSKey[] keys = {
+        CSKey.make("a"), CSKey.make("a", "b", "c"), CSKey.make("a", "bé", "c-d_e"), CSKey.root
+    };
+
+    for (CSKey key : keys) {
+      CSKey decoded = cache.decode(PathCodec.encode(key));
+      assertEquals(key, decoded);
+      assertEquals(PathCodec.decode(PathCodec.encode(key)), decoded);
+    }
+  }
+
+  @Test public void testKeysAndParentsAreShared() {
+    KeyCache cache = new KeyCache(16);
+
+    CSKey first = cache.decode(PathCodec.encode(CSKey.make("rooms", "public", "msg1")));
+    CSKey second = cache.decode(PathCodec.encode(CSKey.make("rooms", "public", "msg1")));
+    CSKey sibling = cache.decode(PathCodec.encode(CSKey.make("rooms", "public", "msg2")));
+
+    assertSame(first, second);
+    assertSame(first.parent(), sibling.parent());
+  }
+
+  @Test public void testCapacityIsBounded() {
+    KeyCache cache = new KeyCache(10);
+    for (int i = 0; i < 100; i++) {
+      cache.decode(PathCodec.encode(CSKey.make("a", "b" + i)));
+    }
+    assertTrue(cache.size() <= 10);
+  }
+}